@@ -16,6 +16,11 @@ package dk.dma.commons.service;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dk.dma.commons.management.ManagedAttribute;
 
 /**
  * supporting orderly shutdown.
@@ -26,6 +31,15 @@ public abstract class AbstractBatchedStage<T> extends AbstractMessageProcessorSe
 
     private final int maxBatchSize;
 
+    /** The minimum number of messages to wait for, for at most the linger time, before handling a batch. */
+    private volatile int minBatchSize = 1;
+
+    /** The maximum time in nanoseconds to wait for the minimum batch size, or 0 to never wait. */
+    private volatile long lingerNanos;
+
+    /** The number of batches handled. */
+    private final AtomicLong numberOfBatches = new AtomicLong();
+
     protected AbstractBatchedStage(int queueSize, int maxBatchSize) {
         super(queueSize);
         if (maxBatchSize < 1) {
@@ -34,33 +48,178 @@ public abstract class AbstractBatchedStage<T> extends AbstractMessageProcessorSe
         this.maxBatchSize = maxBatchSize;
     }
 
+    /**
+     * Creates a new stage with a lock-free input queue.
+     * 
+     * @param queueSize
+     *            the capacity of the input queue, rounded up to the nearest power of 2
+     * @param maxBatchSize
+     *            the maximum number of messages handled in one batch
+     * @param waitStrategy
+     *            how producers and the execution thread wait when the queue is full or empty
+     * @see RingBufferQueue
+     */
+    protected AbstractBatchedStage(int queueSize, int maxBatchSize, WaitStrategy waitStrategy) {
+        super(queueSize, waitStrategy);
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
     public int getBatchSize() {
         return maxBatchSize;
     }
 
+    /**
+     * Returns the maximum time to wait for the minimum batch size.
+     * 
+     * @param unit
+     *            the unit of the returned value
+     * @return the linger time, or 0 if batches are handled as soon as a message is available
+     */
+    public long getLinger(TimeUnit unit) {
+        return unit.convert(lingerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the minimum number of messages to wait for before handling a batch.
+     * 
+     * @return the minimum batch size
+     */
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    /**
+     * Returns the number of batches handled. Together with {@link #getNumberOfMessagesProcessed()} this gives the
+     * average batch size.
+     * 
+     * @return the number of batches handled
+     */
+    @ManagedAttribute
+    public long getNumberOfBatches() {
+        return numberOfBatches.get();
+    }
+
+    /**
+     * Sets how long to wait for more messages to fill a batch. By default a batch is handled as soon as a message is
+     * available, together with any other messages that are already queued. Under light load this degenerates into
+     * batches of a single message. With a linger time, the stage waits up to the linger time after taking the first
+     * message of a batch, until the batch has at least the minimum number of messages. A batch never has more than
+     * the maximum batch size. This trades latency for throughput of the handler. Should be set before the stage is
+     * started.
+     * 
+     * @param minBatchSize
+     *            the minimum number of messages to wait for
+     * @param linger
+     *            the maximum time to wait after the first message of a batch, or 0 to never wait
+     * @param unit
+     *            the unit of the linger time
+     * @return this stage
+     * @throws IllegalArgumentException
+     *             if the minimum batch size is not between 1 and the maximum batch size, or if the linger time is
+     *             negative
+     */
+    public AbstractBatchedStage<T> setLinger(int minBatchSize, long linger, TimeUnit unit) {
+        if (minBatchSize < 1 || minBatchSize > maxBatchSize) {
+            throw new IllegalArgumentException("minBatchSize must be between 1 and " + maxBatchSize + ", was "
+                    + minBatchSize);
+        }
+        if (linger < 0) {
+            throw new IllegalArgumentException("linger must be non-negative, was " + linger);
+        }
+        this.minBatchSize = minBatchSize;
+        this.lingerNanos = unit.toNanos(linger);
+        return this;
+    }
+
     /** {@inheritDoc} */
-    @SuppressWarnings("unchecked")
     @Override
     protected final void run() throws Exception {
-        executionThread = Thread.currentThread();
-        while (!isShutdown()) {
-            // This is not the most efficient solution but it is good enough for us.
-            T t = takeInterruptable();
+        try {
+            runWorkers(new WorkerLoop() {
+                public boolean isRunning() {
+                    return !isShutdown();
+                }
+
+                public void run(StageQueue<Object> q) throws Exception {
+                    handleBatches(q);
+                }
+            });
+        } finally {
+            onShutdown();
+        }
+    }
+
+    /** Takes batches of messages from the specified queue and handles them, until the queue is no longer used. */
+    @SuppressWarnings("unchecked")
+    private void handleBatches(StageQueue<Object> queue) throws Exception {
+        // the same buffer is handed to handleMessages for every batch, and cleared after each invocation. Each worker
+        // has its own buffer
+        ArrayList<T> batch = new ArrayList<>(maxBatchSize);
+        while (queue == this.queue ? !isShutdown() : !queue.isTerminated()) {
+            T t = takeInterruptable(queue);
             if (t != null) {// okay we might have more more than one element
-                ArrayList<T> list = new ArrayList<>(maxBatchSize);
-                list.add(t);
-                queue.drainToBlocking((Collection<? super Object>) list.subList(1, list.size()), maxBatchSize - 1);
-                handleMessages(list);
-                numberProcessed.addAndGet(list.size());
+                batch.add(t);
+                long lingerNanos = this.lingerNanos;
+                if (lingerNanos > 0) {
+                    linger(queue, batch, lingerNanos);
+                } else {
+                    // only take what is already queued, we do not want to wait for more messages
+                    queue.drainTo((Collection<? super Object>) batch, maxBatchSize - 1);
+                }
+                int size = batch.size();
+                try {
+                    handleMessages(batch);
+                } finally {
+                    batch.clear();
+                }
+                numberProcessed.addAndGet(size);
+                numberOfBatches.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Handles a batch of messages. The list is a buffer that is reused for every batch, and it is cleared as soon as
+     * this method returns. Implementations must therefore not retain the list, or any view of it, after returning. Copy
+     * the messages if they are needed later. Is invoked concurrently, with a list per worker, if the stage has more
+     * than one worker.
+     * 
+     * @param messages
+     *            the messages, at least one and at most {@link #getBatchSize()}
+     * @throws Exception
+     *             if the messages could not be handled, this stops the stage
+     */
+    @Override
+    protected abstract void handleMessages(List<T> messages) throws Exception;
+
+    /**
+     * Fills the specified batch until it has the minimum batch size or the linger time has elapsed. Returns early if
+     * the stage is shutdown, so the messages taken so far are still handled.
+     */
+    @SuppressWarnings("unchecked")
+    private void linger(StageQueue<Object> queue, ArrayList<T> batch, long lingerNanos) {
+        long deadline = System.nanoTime() + lingerNanos;
+        int minBatchSize = this.minBatchSize;
+        queue.drainTo((Collection<? super Object>) batch, maxBatchSize - batch.size());
+        while (batch.size() < minBatchSize && !isShutdown()) {
+            long remaining = deadline - System.nanoTime();
+            T t = remaining > 0 ? pollInterruptable((StageQueue<T>) queue, remaining, TimeUnit.NANOSECONDS) : null;
+            if (t == null) {
+                return; // the linger time has elapsed, or we have been interrupted because of shutdown
             }
+            batch.add(t);
+            queue.drainTo((Collection<? super Object>) batch, maxBatchSize - batch.size());
         }
-        onShutdown();
     }
 
     protected boolean isShutdown() {
         return state() != State.RUNNING || queue.isTerminated();
     }
 
+    /** Invoked once all workers have finished, also if the stage failed. */
     protected void onShutdown() {}
 
 }
@@ -14,10 +14,16 @@
  */
 package dk.dma.commons.service;
 
+import static java.util.Objects.requireNonNull;
+
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 
@@ -30,20 +36,94 @@ import dk.dma.commons.management.ManagedAttribute;
  */
 public abstract class AbstractMessageProcessorService<T> extends AbstractExecutionThreadService {
 
-    volatile Thread executionThread;
+    /** The threads that are currently blocked in an interruptable block, and may be interrupted by shutdown. */
+    private final Set<Thread> interruptable = ConcurrentHashMap.newKeySet();
+
+    /** Extracts the key that messages are partitioned by between workers, or null to not partition messages. */
+    private volatile Function<? super T, ?> keyFunction;
 
-    private volatile boolean isInInterruptableBlock;
+    /** The number of worker threads handling messages. */
+    private volatile int workers = 1;
 
-    final ShutdownBlockingQueue<Object> queue;
+    final StageQueue<Object> queue;
     final AtomicLong numberProcessed = new AtomicLong();
 
+    /** The input queue as seen by producers, applies the overload policy. */
+    final InputQueue<T> inputQueue;
+
+    /** The capacity of the input queue. */
+    private final int queueSize;
+
+    /** The wait strategy of the input queue, or null if it is a {@link ShutdownBlockingQueue}. */
+    private final WaitStrategy waitStrategy;
+
     protected AbstractMessageProcessorService(int queueSize) {
         queue = new ShutdownBlockingQueue<>(queueSize);
+        inputQueue = new InputQueue<>(queue);
+        this.queueSize = queueSize;
+        this.waitStrategy = null;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Creates a new service with a lock-free {@link RingBufferQueue} as input queue, instead of the default
+     * {@link ShutdownBlockingQueue}. The ring buffer does not allocate per element and does not take locks, which
+     * reduces contention with many producers.
+     * 
+     * @param queueSize
+     *            the capacity of the input queue, rounded up to the nearest power of 2
+     * @param waitStrategy
+     *            how producers and the execution thread wait when the queue is full or empty
+     */
+    protected AbstractMessageProcessorService(int queueSize, WaitStrategy waitStrategy) {
+        queue = new RingBufferQueue<>(queueSize, waitStrategy);
+        inputQueue = new InputQueue<>(queue);
+        this.queueSize = queueSize;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Returns the input queue of the service. Messages added to the queue are subject to the overload policy of the
+     * service.
+     * 
+     * @return the input queue
+     * @see #setOverloadPolicy(OverloadPolicy)
+     */
     public BlockingQueue<T> getInputQueue() {
-        return (BlockingQueue<T>) queue;
+        return inputQueue;
+    }
+
+    /**
+     * Returns the number of messages that were added to the input queue, but dropped by the overload policy or
+     * rejected because the queue was full or shutdown.
+     * 
+     * @return the number of dropped messages
+     */
+    @ManagedAttribute
+    public long getNumberOfDroppedMessages() {
+        return inputQueue.dropped.get();
+    }
+
+    /**
+     * Returns the number of messages that the overload policy has written to disk, and not yet moved back into the
+     * input queue.
+     * 
+     * @return the number of spilled messages
+     * @see OverloadPolicy#spill(java.nio.file.Path)
+     */
+    @ManagedAttribute
+    public long getNumberOfSpilledMessages() {
+        return inputQueue.policy.getNumberOfSpilledMessages();
+    }
+
+    /**
+     * Returns the highest number of messages that have been waiting in the input queue. A high-water mark close to the
+     * capacity of the queue means that the service has been unable to keep up.
+     * 
+     * @return the queue high-water mark
+     */
+    @ManagedAttribute
+    public int getQueueHighWaterMark() {
+        return inputQueue.highWaterMark.get();
     }
 
     @ManagedAttribute
@@ -51,41 +131,218 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
         return numberProcessed.get();
     }
 
+    /**
+     * Returns the number of worker threads handling messages.
+     * 
+     * @return the number of worker threads
+     */
+    @ManagedAttribute
+    public int getNumberOfWorkers() {
+        return workers;
+    }
+
     public int getSize() {
         return queue.size();
     }
 
     protected abstract void handleMessages(List<T> messages) throws Exception;
 
-    T pollInterruptable(ShutdownBlockingQueue<T> queue, long timeout, TimeUnit unit) {
+    T pollInterruptable(StageQueue<T> queue, long timeout, TimeUnit unit) {
+        Thread current = Thread.currentThread();
+        interruptable.add(current);
         try {
-            isInInterruptableBlock = true;
-            T t = queue.poll(timeout, unit);
-            synchronized (this) {
-                isInInterruptableBlock = false;
-                return t;
-            }
+            return queue.poll(timeout, unit);
         } catch (InterruptedException e) {
-            Thread.interrupted();
             return null;
+        } finally {
+            leaveInterruptable(current);
         }
     }
 
-    T takeInterruptable() {
+    @SuppressWarnings("unchecked")
+    T takeInterruptable(StageQueue<Object> queue) {
+        Thread current = Thread.currentThread();
+        interruptable.add(current);
         try {
-            isInInterruptableBlock = true;
-            @SuppressWarnings("unchecked")
-            T t = (T) queue.take();
-            synchronized (this) {
-                isInInterruptableBlock = false;
-                return t;
-            }
+            return (T) queue.take();
         } catch (InterruptedException e) {
-            Thread.interrupted();
             return null;
+        } finally {
+            leaveInterruptable(current);
+        }
+    }
+
+    /** Marks the specified thread as no longer in an interruptable block, and clears any interrupt by shutdown. */
+    private void leaveInterruptable(Thread thread) {
+        synchronized (this) {
+            interruptable.remove(thread);
+        }
+        // shutdown might have interrupted us after we returned from the queue, but before we left the block
+        Thread.interrupted();
+    }
+
+    /**
+     * Sets what happens to messages added to the input queue while the service cannot keep up. The default policy is
+     * {@link OverloadPolicy#block()}.
+     * 
+     * @param policy
+     *            the overload policy
+     * @return this service
+     */
+    public AbstractMessageProcessorService<T> setOverloadPolicy(OverloadPolicy<? super T> policy) {
+        inputQueue.policy = requireNonNull(policy, "policy is null");
+        return this;
+    }
+
+    /**
+     * Sets the number of worker threads that handle messages. By default messages are handled by the execution thread
+     * of the service. With more than one worker, the workers take messages from the input queue concurrently, so
+     * messages are no longer handled in the order they were added, and the message handler must be thread safe. On
+     * shutdown every worker drains the input queue exactly like a single execution thread would, and the service does
+     * not terminate until all workers have finished. Must be set before the service is started.
+     * 
+     * @param workers
+     *            the number of worker threads
+     * @return this service
+     * @throws IllegalArgumentException
+     *             if the number of workers is less than 1
+     * @throws IllegalStateException
+     *             if the service has already been started
+     */
+    public AbstractMessageProcessorService<T> setWorkers(int workers) {
+        return setWorkers(workers, null);
+    }
+
+    /**
+     * Sets the number of worker threads that handle messages, partitioning messages between the workers by a key. All
+     * messages with equal keys are handled by the same worker in the order they were added, while messages with
+     * different keys are handled concurrently. The execution thread of the service moves messages from the input queue
+     * to a queue of each worker. Must be set before the service is started.
+     * 
+     * @param workers
+     *            the number of worker threads
+     * @param keyFunction
+     *            extracts the key of a message, or null to not partition messages
+     * @return this service
+     * @throws IllegalArgumentException
+     *             if the number of workers is less than 1
+     * @throws IllegalStateException
+     *             if the service has already been started
+     * @see #setWorkers(int)
+     */
+    public AbstractMessageProcessorService<T> setWorkers(int workers, Function<? super T, ?> keyFunction) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1, was " + workers);
+        }
+        if (state() != State.NEW) {
+            throw new IllegalStateException("Workers must be set before the service is started, state was " + state());
+        }
+        this.workers = workers;
+        this.keyFunction = keyFunction;
+        return this;
+    }
+
+    /**
+     * Runs the specified loop on every worker, and waits for all workers to finish. With a single worker the loop is
+     * run on the calling thread. If a worker, or the dispatching of messages to the workers, fails, the service is
+     * stopped and the first failure is rethrown once all workers have finished.
+     */
+    final void runWorkers(final WorkerLoop loop) throws Exception {
+        final int workers = this.workers;
+        if (workers == 1) {
+            loop.run(queue);
+            return;
+        }
+        Function<? super T, ?> keyFunction = this.keyFunction;
+        StageQueue<Object>[] partitions = keyFunction == null ? null : newPartitions(workers);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final StageQueue<Object> q = partitions == null ? queue : partitions[i];
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        loop.run(q);
+                    } catch (Throwable e) {
+                        if (failure.compareAndSet(null, e)) {
+                            stopAsync();
+                        }
+                    }
+                }
+            }, serviceName() + "-worker-" + i);
+            threads[i].start();
+        }
+        if (partitions != null) {
+            try {
+                dispatch(loop, keyFunction, partitions, failure);
+            } catch (Throwable e) {
+                // the workers must still finish before the failure is rethrown
+                if (failure.compareAndSet(null, e)) {
+                    stopAsync();
+                }
+            } finally {
+                for (StageQueue<Object> q : partitions) {
+                    q.shutdown();
+                }
+            }
+        }
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    /** Moves messages from the input queue to the queue of the worker they are partitioned to. */
+    @SuppressWarnings("unchecked")
+    private void dispatch(WorkerLoop loop, Function<? super T, ?> keyFunction, StageQueue<Object>[] partitions,
+            AtomicReference<Throwable> failure) throws InterruptedException {
+        while (loop.isRunning() && failure.get() == null) {
+            Object o = takeInterruptable(queue);
+            if (o != null) {
+                StageQueue<Object> q = partitions[partition(keyFunction.apply((T) o), partitions.length)];
+                // a failed worker no longer takes from its queue, so we cannot block indefinitely
+                while (!q.offer(o, 10, TimeUnit.MILLISECONDS)) {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                }
+            }
         }
     }
 
+    /** Returns the partition in the range 0 to partitions - 1 of the specified key, which may be null. */
+    static int partition(Object key, int partitions) {
+        int h = key == null ? 0 : key.hashCode();
+        return Math.floorMod(h ^ h >>> 16, partitions);
+    }
+
+    /** Creates a queue for each worker, of the same kind as the input queue. */
+    @SuppressWarnings("unchecked")
+    private StageQueue<Object>[] newPartitions(int workers) {
+        StageQueue<Object>[] result = new StageQueue[workers];
+        int capacity = Math.max(1, queueSize / workers);
+        for (int i = 0; i < workers; i++) {
+            result[i] = waitStrategy == null ? new ShutdownBlockingQueue<>(capacity) : new RingBufferQueue<>(capacity,
+                    waitStrategy);
+        }
+        return result;
+    }
+
     //
     // T takeInterruptable(ShutdownBlockingQueue<T> queue) {
     // try {
@@ -105,16 +362,27 @@ public abstract class AbstractMessageProcessorService<T> extends AbstractExecuti
     @Override
     protected final synchronized void triggerShutdown() {
         queue.shutdown();
-        Thread t = executionThread;
-        if (t != null) {
-            if (isInInterruptableBlock) {
-                // We only want to interrupt in interruptable blocks
-                t.interrupt();
-            }
+        // We only want to interrupt in interruptable blocks
+        for (Thread t : interruptable) {
+            t.interrupt();
         }
     }
 
     protected void sleepUntilShutdown(long time, TimeUnit unit) throws InterruptedException {
         queue.awaitShutdown(time, unit);
     }
+
+    /** The loop of a worker thread, takes messages from a queue and handles them. */
+    interface WorkerLoop {
+
+        /** Returns whether or not messages should still be taken from the input queue. */
+        boolean isRunning();
+
+        /**
+         * Takes messages from the specified queue and handles them. The queue is either the input queue, in which case
+         * the loop must return once {@link #isRunning()} returns false, or the queue of this worker, in which case the
+         * loop must return once the queue is terminated.
+         */
+        void run(StageQueue<Object> queue) throws Exception;
+    }
 }
@@ -28,17 +28,45 @@ public abstract class AbstractStage<T> extends AbstractMessageProcessorService<T
         super(queueSize);
     }
 
+    /**
+     * Creates a new stage with a lock-free input queue.
+     * 
+     * @param queueSize
+     *            the capacity of the input queue, rounded up to the nearest power of 2
+     * @param waitStrategy
+     *            how producers and the execution thread wait when the queue is full or empty
+     * @see RingBufferQueue
+     */
+    protected AbstractStage(int queueSize, WaitStrategy waitStrategy) {
+        super(queueSize, waitStrategy);
+    }
+
+    /**
+     * Handles a single message. Is invoked concurrently if the stage has more than one worker.
+     * 
+     * @param message
+     *            the message to handle
+     * @see #setWorkers(int)
+     */
     protected abstract void handleMessage(T message);
 
     /** {@inheritDoc} */
     @Override
     protected final void run() throws Exception {
-        executionThread = Thread.currentThread();
-        while (state() == State.RUNNING || !queue.isTerminated()) {
-            T t = takeInterruptable();
-            if (t != null) {
-                handleMessage(t);
+        runWorkers(new WorkerLoop() {
+            public boolean isRunning() {
+                return state() == State.RUNNING || !queue.isTerminated();
+            }
+
+            public void run(StageQueue<Object> q) {
+                while (q == queue ? isRunning() : !q.isTerminated()) {
+                    T t = takeInterruptable(q);
+                    if (t != null) {
+                        handleMessage(t);
+                        numberProcessed.incrementAndGet();
+                    }
+                }
             }
-        }
+        });
     }
 }
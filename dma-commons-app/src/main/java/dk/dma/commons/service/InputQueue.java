@@ -0,0 +1,168 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The input queue of a stage as seen by producers. Messages added to the queue go through the {@link OverloadPolicy}
+ * of the stage, all other operations are passed directly to the underlying queue.
+ *
+ * @author Kasper Nielsen
+ */
+final class InputQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+    /** The number of messages that were not added to the queue. */
+    final AtomicLong dropped = new AtomicLong();
+
+    /** The highest number of messages that have been in the queue. */
+    final AtomicInteger highWaterMark = new AtomicInteger();
+
+    /** The overload policy. */
+    volatile OverloadPolicy<? super T> policy = OverloadPolicy.block();
+
+    /** The underlying queue. */
+    final StageQueue<Object> queue;
+
+    InputQueue(StageQueue<Object> queue) {
+        this.queue = queue;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /** {@inheritDoc} */
+    @SuppressWarnings("unchecked")
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        return queue.drainTo((Collection<Object>) c, maxElements);
+    }
+
+    /**
+     * Adds the specified message to the underlying queue, bypassing the overload policy.
+     *
+     * @param e
+     *            the message to add
+     * @param nanos
+     *            the maximum time to wait for space in the queue, or a negative value to wait indefinitely
+     * @return whether or not the message was added
+     */
+    boolean enqueue(Object e, long nanos) throws InterruptedException {
+        if (nanos < 0) {
+            queue.put(e);
+        } else if (!(nanos == 0 ? queue.offer(e) : queue.offer(e, nanos, TimeUnit.NANOSECONDS))) {
+            return false;
+        }
+        int size = queue.size();
+        int max = highWaterMark.get();
+        while (size > max && !highWaterMark.compareAndSet(max, size)) {
+            max = highWaterMark.get();
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Iterator<T> iterator() {
+        return unchecked(queue.iterator());
+    }
+
+    /** Returns whether or not the underlying queue is at least half full. */
+    boolean isOverloaded() {
+        return queue.size() >= queue.remainingCapacity();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(T e) {
+        try {
+            return offer0(e, 0);
+        } catch (InterruptedException ignore) {
+            // cannot happen as we do not wait
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer0(e, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    private boolean offer0(T e, long nanos) throws InterruptedException {
+        requireNonNull(e, "message is null");
+        // a queue that is shutdown never accepts more messages, whatever the policy
+        return queue.isShutdown() ? enqueue(e, nanos) : policy.offer(this, e, nanos);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public T peek() {
+        return unchecked(queue.peek());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public T poll() {
+        return unchecked(queue.poll());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return unchecked(queue.poll(timeout, unit));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(T e) throws InterruptedException {
+        offer0(e, -1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public T take() throws InterruptedException {
+        return unchecked(queue.take());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T unchecked(Object o) {
+        return (T) o;
+    }
+}
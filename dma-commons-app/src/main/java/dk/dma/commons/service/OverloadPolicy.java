@@ -0,0 +1,320 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * What happens to messages added to the input queue of a stage that cannot keep up. A policy applies to
+ * {@code put}, {@code offer} and {@code add}. Once the stage has been shutdown, messages are rejected like the input
+ * queue always does, whatever the policy. Messages that are not added are counted by
+ * {@link AbstractMessageProcessorService#getNumberOfDroppedMessages()}.
+ *
+ * @author Kasper Nielsen
+ * @see AbstractMessageProcessorService#setOverloadPolicy(OverloadPolicy)
+ */
+public abstract class OverloadPolicy<T> {
+
+    /** The block policy, shared as it has no state. */
+    private static final OverloadPolicy<Object> BLOCK = new OverloadPolicy<Object>() {
+        @Override
+        boolean offer(InputQueue<?> q, Object message, long nanos) throws InterruptedException {
+            if (q.enqueue(message, nanos)) {
+                return true;
+            }
+            q.dropped.incrementAndGet();
+            return false;
+        }
+    };
+
+    /** The drop newest policy, shared as it has no state. */
+    private static final OverloadPolicy<Object> DROP_NEWEST = new OverloadPolicy<Object>() {
+        @Override
+        boolean offer(InputQueue<?> q, Object message, long nanos) throws InterruptedException {
+            if (!q.enqueue(message, 0)) {
+                q.dropped.incrementAndGet();
+            }
+            return true;
+        }
+    };
+
+    /** The drop oldest policy, shared as it has no state. */
+    private static final OverloadPolicy<Object> DROP_OLDEST = new OverloadPolicy<Object>() {
+        @Override
+        boolean offer(InputQueue<?> q, Object message, long nanos) throws InterruptedException {
+            while (!q.enqueue(message, 0)) {
+                if (q.queue.isShutdown()) {
+                    q.dropped.incrementAndGet();
+                    return false;
+                } else if (q.queue.poll() != null) {
+                    q.dropped.incrementAndGet();
+                }
+            }
+            return true;
+        }
+    };
+
+    OverloadPolicy() {}
+
+    /**
+     * Offers a message to the specified queue according to this policy.
+     *
+     * @param q
+     *            the queue
+     * @param message
+     *            the message
+     * @param nanos
+     *            the maximum time to wait for space in the queue, or a negative value to wait indefinitely
+     * @return whether or not the message was accepted, a message dropped by the policy also counts as accepted
+     */
+    abstract boolean offer(InputQueue<?> q, T message, long nanos) throws InterruptedException;
+
+    /**
+     * Returns the number of messages in the disk buffer of the policy.
+     *
+     * @return the number of messages in the disk buffer, always 0 unless the policy spills to disk
+     */
+    long getNumberOfSpilledMessages() {
+        return 0;
+    }
+
+    /**
+     * Returns a policy where producers wait for space in the queue. {@code put} blocks until there is space, and
+     * {@code offer} fails if there is none. This is the default policy.
+     *
+     * @return the block policy
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> OverloadPolicy<T> block() {
+        return (OverloadPolicy<T>) BLOCK;
+    }
+
+    /**
+     * Returns a policy that drops the message being added if the queue is full. Producers never wait, and
+     * {@code put} and {@code offer} always succeed.
+     *
+     * @return the drop newest policy
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> OverloadPolicy<T> dropNewest() {
+        return (OverloadPolicy<T>) DROP_NEWEST;
+    }
+
+    /**
+     * Returns a policy that drops the oldest message in the queue to make room for the message being added if the
+     * queue is full. Producers never wait, and {@code put} and {@code offer} always succeed. Use it when only the most
+     * recent messages are of interest.
+     *
+     * @return the drop oldest policy
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> OverloadPolicy<T> dropOldest() {
+        return (OverloadPolicy<T>) DROP_OLDEST;
+    }
+
+    /**
+     * Returns a policy that samples messages once the queue is at least half full. Messages rejected by the sampler
+     * are dropped, messages accepted by it are added as with {@link #block()}. A
+     * {@link dk.dma.commons.util.filtering.DownSamplingFilter} keyed by the source of the messages, for example,
+     * keeps at most one message per source per sampling period while the stage is behind.
+     *
+     * @param sampler
+     *            the sampler, is only invoked while the queue is at least half full
+     * @return the sample policy
+     */
+    public static <T> OverloadPolicy<T> sample(final Predicate<? super T> sampler) {
+        requireNonNull(sampler, "sampler is null");
+        return new OverloadPolicy<T>() {
+            @Override
+            boolean offer(InputQueue<?> q, T message, long nanos) throws InterruptedException {
+                if (q.isOverloaded() && !sampler.test(message)) {
+                    q.dropped.incrementAndGet();
+                    return true;
+                }
+                return BLOCK.offer(q, message, nanos);
+            }
+        };
+    }
+
+    /**
+     * Returns a policy that writes messages to a file in the specified directory while the queue is full, and moves
+     * them back into the queue, in order, as it empties. Producers never wait, and no message is dropped as long as
+     * there is disk space. Messages must be {@link java.io.Serializable}. The spilled messages are lost if the stage
+     * is stopped before they have been moved back into the queue. As the policy keeps the disk buffer, it must not be
+     * shared between stages.
+     *
+     * @param directory
+     *            the directory to write the disk buffer in
+     * @return the spill policy
+     */
+    public static <T> OverloadPolicy<T> spill(Path directory) {
+        return new Spill<>(requireNonNull(directory, "directory is null"));
+    }
+
+    /** Spills messages to a file in the order they arrive while the queue is full. */
+    static final class Spill<T> extends OverloadPolicy<T> {
+
+        /** The logger. */
+        static final Logger LOG = LoggerFactory.getLogger(Spill.class);
+
+        /** The directory of the file. */
+        private final Path directory;
+
+        /** The file, or null if nothing has been spilled since the file was last emptied. */
+        private Path file;
+
+        /** Reads messages from the file, guarded by this. */
+        private DataInputStream in;
+
+        /** Appends messages to the file, guarded by this. */
+        private DataOutputStream out;
+
+        /** The thread moving messages from the file to the queue, or null if there are none to move. */
+        private Thread refiller;
+
+        /** The number of messages in the file or being moved to the queue, only modified while holding this. */
+        private volatile long spilled;
+
+        Spill(Path directory) {
+            this.directory = directory;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        long getNumberOfSpilledMessages() {
+            return spilled;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean offer(InputQueue<?> q, T message, long nanos) throws InterruptedException {
+            // once something has been spilled, messages must go through the file to keep them in order
+            if (spilled == 0 && q.enqueue(message, 0)) {
+                return true;
+            }
+            synchronized (this) {
+                if (spilled == 0 && q.enqueue(message, 0)) {
+                    return true;
+                }
+                try {
+                    append(message);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not spill message to " + directory, e);
+                }
+                spilled++;
+                if (refiller == null) {
+                    refiller = new Thread(new Refiller(q), "overload-spill-" + file.getFileName());
+                    refiller.setDaemon(true);
+                    refiller.start();
+                }
+            }
+            return true;
+        }
+
+        private void append(Object message) throws IOException {
+            if (file == null) {
+                file = Files.createTempFile(directory, "spill", ".bin");
+                out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(message);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush(); // the refiller must be able to read the message
+        }
+
+        /** Deletes the file, once all messages in it have been moved to the queue. */
+        private void delete() throws IOException {
+            try {
+                in.close();
+                out.close();
+            } finally {
+                Files.deleteIfExists(file);
+                file = null;
+            }
+        }
+
+        private Object read() throws IOException, ClassNotFoundException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return ois.readObject();
+            }
+        }
+
+        /** Moves messages from the file to the queue, until the file is empty. */
+        final class Refiller implements Runnable {
+
+            /** The queue to move messages to. */
+            private final InputQueue<?> q;
+
+            Refiller(InputQueue<?> q) {
+                this.q = q;
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        Object message;
+                        synchronized (Spill.this) {
+                            message = read();
+                        }
+                        // the message still counts as spilled until it is in the queue, so none can overtake it
+                        q.enqueue(message, -1);
+                        synchronized (Spill.this) {
+                            if (--spilled == 0) {
+                                refiller = null;
+                                delete();
+                                return;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    synchronized (Spill.this) {
+                        LOG.error("Lost " + spilled + " spilled messages", e);
+                        q.dropped.addAndGet(spilled);
+                        spilled = 0;
+                        refiller = null;
+                        try {
+                            delete();
+                        } catch (IOException ignore) {}
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+
+import dk.dma.commons.management.ManagedAttribute;
+
+/**
+ * A number of stages connected into a directed acyclic graph. Stages send messages downstream through a
+ * {@link StageOutput}, that the pipeline connects to the input queue of one or more downstream stages. An output
+ * connected to more than one stage either broadcasts every message to all of them, or partitions messages between them
+ * by a key. A stage with more than one upstream stage receives the messages of all of them in its input queue.
+ * <p>
+ * Starting the pipeline starts all stages, downstream stages first. Stopping the pipeline stops the stages upstream
+ * first. Each stage is stopped once all of its upstream stages have terminated and its input queue is empty, so no
+ * message is lost on an orderly shutdown. The time spent draining each stage is recorded.
+ *
+ * @author Kasper Nielsen
+ */
+public class Pipeline extends AbstractIdleService {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(Pipeline.class);
+
+    /** The downstream stages of each stage, in the order the stages were added. */
+    private final Map<AbstractMessageProcessorService<?>, Set<AbstractMessageProcessorService<?>>> downstream =
+            new LinkedHashMap<>();
+
+    /** The time each stage spent draining on the last shutdown, in nanoseconds, in the order they were stopped. */
+    private final Map<AbstractMessageProcessorService<?>, Long> drainNanos = Collections
+            .synchronizedMap(new LinkedHashMap<AbstractMessageProcessorService<?>, Long>());
+
+    /** The total time the last shutdown took, in nanoseconds. */
+    private volatile long totalDrainNanos;
+
+    /**
+     * Adds a stage to the pipeline. Stages are added automatically when connected, so this is only needed for stages
+     * that are not connected to other stages.
+     *
+     * @param stage
+     *            the stage to add
+     * @return this pipeline
+     * @throws IllegalStateException
+     *             if the pipeline has already been started
+     */
+    public synchronized Pipeline add(AbstractMessageProcessorService<?> stage) {
+        requireNonNull(stage, "stage is null");
+        checkNew();
+        if (!downstream.containsKey(stage)) {
+            downstream.put(stage, new LinkedHashSet<AbstractMessageProcessorService<?>>());
+        }
+        return this;
+    }
+
+    /**
+     * Connects an output of a stage to the input queue of a downstream stage. If the output is connected to more than
+     * one stage, every message is sent to all of them.
+     *
+     * @param from
+     *            the stage that sends messages through the output
+     * @param output
+     *            the output
+     * @param to
+     *            the downstream stage
+     * @return this pipeline
+     * @throws IllegalArgumentException
+     *             if the output belongs to another stage, if the output is partitioned, if the output is already
+     *             connected to the stage, or if the connection would create a cycle
+     * @throws IllegalStateException
+     *             if the pipeline has already been started
+     */
+    public synchronized <T> Pipeline connect(AbstractMessageProcessorService<?> from, StageOutput<T> output,
+            AbstractMessageProcessorService<? super T> to) {
+        connect(from, output, null, to);
+        return this;
+    }
+
+    /**
+     * Connects an output of a stage to the input queues of a number of downstream stages, partitioning messages
+     * between them by a key. All messages with equal keys are sent to the same stage.
+     *
+     * @param from
+     *            the stage that sends messages through the output
+     * @param output
+     *            the output
+     * @param keyFunction
+     *            extracts the key of a message
+     * @param to
+     *            the downstream stages
+     * @return this pipeline
+     * @throws IllegalArgumentException
+     *             if the output belongs to another stage, if the output is broadcasted, if the output is already
+     *             connected to one of the stages, or if a connection would create a cycle
+     * @throws IllegalStateException
+     *             if the pipeline has already been started
+     */
+    @SafeVarargs
+    public final synchronized <T> Pipeline partition(AbstractMessageProcessorService<?> from, StageOutput<T> output,
+            Function<? super T, ?> keyFunction, AbstractMessageProcessorService<? super T>... to) {
+        requireNonNull(keyFunction, "keyFunction is null");
+        for (AbstractMessageProcessorService<? super T> s : to) {
+            connect(from, output, keyFunction, s);
+        }
+        return this;
+    }
+
+    private <T> void connect(AbstractMessageProcessorService<?> from, StageOutput<T> output,
+            Function<? super T, ?> keyFunction, AbstractMessageProcessorService<?> to) {
+        requireNonNull(from, "from is null");
+        requireNonNull(output, "output is null");
+        requireNonNull(to, "to is null");
+        checkNew();
+        if (output.owner != null && output.owner != from) {
+            throw new IllegalArgumentException("The output is already connected from " + output.owner);
+        }
+        if (output.isConnectedTo(to)) {
+            // every message would be delivered twice
+            throw new IllegalArgumentException("The output is already connected to " + to);
+        }
+        if (from == to || isReachable(to, from)) {
+            throw new IllegalArgumentException("Connecting " + from + " to " + to + " would create a cycle");
+        }
+        output.connect(to, keyFunction);
+        output.owner = from;
+        add(from);
+        add(to);
+        downstream.get(from).add(to);
+    }
+
+    /**
+     * Returns the time the specified stage spent draining on the last shutdown. This is the time from all upstream
+     * stages had terminated, until the stage had handled all messages in its input queue and terminated.
+     *
+     * @param stage
+     *            the stage
+     * @param unit
+     *            the unit of the returned value
+     * @return the drain time, or -1 if the stage has not been drained
+     */
+    public long getDrainTime(AbstractMessageProcessorService<?> stage, TimeUnit unit) {
+        Long nanos = drainNanos.get(stage);
+        return nanos == null ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the time the last shutdown took to drain all stages, in milliseconds.
+     *
+     * @return the total drain time in milliseconds, or 0 if the pipeline has not been shutdown
+     */
+    @ManagedAttribute
+    public long getDrainTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalDrainNanos);
+    }
+
+    /**
+     * Returns the number of messages waiting in the input queues of all stages. A steadily growing number means that
+     * some stage cannot keep up, the size of each input queue shows which.
+     *
+     * @return the number of queued messages
+     */
+    @ManagedAttribute
+    public int getNumberOfQueuedMessages() {
+        int result = 0;
+        for (AbstractMessageProcessorService<?> s : getStages()) {
+            result += s.getSize();
+        }
+        return result;
+    }
+
+    /**
+     * Returns all stages of the pipeline, upstream stages before their downstream stages.
+     *
+     * @return all stages of the pipeline
+     */
+    public synchronized List<AbstractMessageProcessorService<?>> getStages() {
+        // Kahn's algorithm, visiting stages in the order they were added
+        Map<AbstractMessageProcessorService<?>, Integer> upstreamCount = new HashMap<>();
+        for (Set<AbstractMessageProcessorService<?>> set : downstream.values()) {
+            for (AbstractMessageProcessorService<?> s : set) {
+                Integer c = upstreamCount.get(s);
+                upstreamCount.put(s, c == null ? 1 : c + 1);
+            }
+        }
+        ArrayDeque<AbstractMessageProcessorService<?>> ready = new ArrayDeque<>();
+        for (AbstractMessageProcessorService<?> s : downstream.keySet()) {
+            if (!upstreamCount.containsKey(s)) {
+                ready.add(s);
+            }
+        }
+        List<AbstractMessageProcessorService<?>> result = new ArrayList<>(downstream.size());
+        while (!ready.isEmpty()) {
+            AbstractMessageProcessorService<?> s = ready.poll();
+            result.add(s);
+            for (AbstractMessageProcessorService<?> d : downstream.get(s)) {
+                int c = upstreamCount.get(d) - 1;
+                upstreamCount.put(d, c);
+                if (c == 0) {
+                    ready.add(d);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void shutDown() throws Exception {
+        long start = System.nanoTime();
+        drainNanos.clear();
+        for (AbstractMessageProcessorService<?> s : getStages()) {
+            // all upstream stages have terminated, so nothing more will be added to the input queue
+            long stageStart = System.nanoTime();
+            while (s.isRunning() && (s.getSize() > 0 || s.getNumberOfSpilledMessages() > 0)) {
+                Thread.sleep(1);
+            }
+            s.stopAsync();
+            try {
+                s.awaitTerminated();
+            } catch (IllegalStateException e) {
+                LOG.error("Stage " + s + " failed", e);
+            }
+            long nanos = System.nanoTime() - stageStart;
+            drainNanos.put(s, nanos);
+            LOG.info("Drained " + s + " in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+        }
+        totalDrainNanos = System.nanoTime() - start;
+        LOG.info("Drained all stages in " + getDrainTimeMillis() + " ms");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void startUp() throws Exception {
+        List<AbstractMessageProcessorService<?>> stages = getStages();
+        Collections.reverse(stages);
+        List<AbstractMessageProcessorService<?>> started = new ArrayList<>();
+        for (final AbstractMessageProcessorService<?> s : stages) {
+            s.addListener(new Service.Listener() {
+                @Override
+                public void failed(State from, Throwable failure) {
+                    // make sure upstream stages do not block forever on a queue that is never emptied
+                    s.queue.shutdown();
+                }
+            }, MoreExecutors.directExecutor());
+            try {
+                s.startAsync().awaitRunning();
+            } catch (IllegalStateException e) {
+                // the pipeline fails, so do not leave the stages that did start running
+                Collections.reverse(started);
+                for (AbstractMessageProcessorService<?> t : started) {
+                    t.stopAsync();
+                    try {
+                        t.awaitTerminated();
+                    } catch (IllegalStateException f) {
+                        LOG.error("Stage " + t + " failed", f);
+                    }
+                }
+                throw e;
+            }
+            started.add(s);
+        }
+    }
+
+    /** Checks that the pipeline has not been started. */
+    private void checkNew() {
+        if (state() != State.NEW) {
+            throw new IllegalStateException("The pipeline can only be changed before it is started, state was "
+                    + state());
+        }
+    }
+
+    /** Returns whether or not there is a path from one stage to another. */
+    private boolean isReachable(AbstractMessageProcessorService<?> from, AbstractMessageProcessorService<?> to) {
+        ArrayDeque<AbstractMessageProcessorService<?>> stack = new ArrayDeque<>();
+        Set<AbstractMessageProcessorService<?>> visited = new LinkedHashSet<>();
+        stack.push(from);
+        while (!stack.isEmpty()) {
+            AbstractMessageProcessorService<?> s = stack.pop();
+            if (s == to) {
+                return true;
+            } else if (visited.add(s) && downstream.containsKey(s)) {
+                for (AbstractMessageProcessorService<?> d : downstream.get(s)) {
+                    stack.push(d);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,446 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded lock-free queue backed by an array, with the same shutdown semantics as {@link ShutdownBlockingQueue}.
+ * Unlike <code>ShutdownBlockingQueue</code> no node is allocated per element, and no lock is taken by producers or
+ * consumers unless the other side is parked waiting for them.
+ * <p>
+ * Each slot of the array has a sequence number that tells whether it is ready to be written or read for a given
+ * position. Producers claim a position by incrementing the tail with a CAS, write the element, and then publish it by
+ * advancing the sequence of the slot. Consumers claim positions from the head the same way, so the queue is safe to
+ * use with any number of producers and consumers, although a single consumer never contends on the head. Shutting
+ * down the queue sets a bit in the tail, so producers cannot claim a position after the queue has been shutdown.
+ * <p>
+ * The capacity is rounded up to the nearest power of 2. The iterator is weakly consistent and does not support
+ * removal, and neither does {@link #remove(Object)}.
+ *
+ * @author Kasper Nielsen
+ * @param <E>
+ *            the type of elements held in this queue
+ */
+public class RingBufferQueue<E> extends StageQueue<E> {
+
+    /** Set in the tail when the queue has been shutdown. */
+    private static final long SHUTDOWN = 1L << 62;
+
+    /** The elements. */
+    private final Object[] buffer;
+
+    /** Counted down when the queue is shutdown and all elements have been taken. */
+    private final CountDownLatch fullyShutdown = new CountDownLatch(1);
+
+    /** The position of the next element to take. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Guards the conditions of parked threads. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** The capacity - 1. */
+    private final int mask;
+
+    /** Signalled when an element has been added or the queue has been shutdown. */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Signalled when an element has been taken or the queue has been shutdown. */
+    private final Condition notFull = lock.newCondition();
+
+    /** Counted down when the queue is shutdown. */
+    private final CountDownLatch partialShutdown = new CountDownLatch(1);
+
+    /** The sequence of each slot, equal to the position when writable and to the position + 1 when readable. */
+    private final AtomicLongArray sequences;
+
+    /** The position of the next element to add, with the {@link #SHUTDOWN} bit set once the queue is shutdown. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The number of consumers parked waiting for an element. */
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+    /** The number of producers parked waiting for room. */
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    /** How to wait when the queue is empty or full. */
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity
+     *            the capacity of the queue, rounded up to the nearest power of 2
+     * @param waitStrategy
+     *            how to wait when the queue is empty or full
+     * @throws IllegalArgumentException
+     *             if the capacity is not positive or greater than 2^30
+     */
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be positive and at most 2^30, was " + capacity);
+        }
+        this.waitStrategy = requireNonNull(waitStrategy, "waitStrategy is null");
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean awaitFullyTerminated(long timeout, TimeUnit unit) throws InterruptedException {
+        return fullyShutdown.await(timeout, unit);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean awaitShutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        return partialShutdown.await(timeout, unit);
+    }
+
+    /** Counts down the termination latch if the queue has been shutdown and all elements have been taken. */
+    private void checkTerminated() {
+        long t = tail.get();
+        if ((t & SHUTDOWN) != 0 && head.get() == (t & ~SHUTDOWN) && fullyShutdown.getCount() > 0) {
+            fullyShutdown.countDown();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        requireNonNull(c);
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = poll()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int drainToBlocking(Collection<? super E> c, int maxElements) throws InterruptedException {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        requireNonNull(c);
+        if (maxElements <= 0) {
+            return 0;
+        }
+        E e = take();
+        if (e == null) {
+            return 0;
+        }
+        c.add(e);
+        return 1 + drainTo(c, maxElements - 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean isShutdown() {
+        return (tail.get() & SHUTDOWN) != 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean isTerminated() {
+        return fullyShutdown.getCount() == 0;
+    }
+
+    /** Returns whether or not the element at the head has been published, or the queue has been shutdown. */
+    private boolean isReadable() {
+        long h = head.get();
+        return sequences.get((int) h & mask) == h + 1 || isShutdown();
+    }
+
+    /** Returns whether or not the slot at the tail is free, or the queue has been shutdown. */
+    private boolean isWritable() {
+        long t = tail.get();
+        return (t & SHUTDOWN) != 0 || sequences.get((int) t & mask) == t;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements in the queue. The iterator does not support removal.
+     *
+     * @return an iterator over the elements in the queue
+     */
+    @Override
+    public Iterator<E> iterator() {
+        ArrayList<E> result = new ArrayList<>();
+        long t = tail.get() & ~SHUTDOWN;
+        for (long h = head.get(); h < t; h++) {
+            int index = (int) h & mask;
+            @SuppressWarnings("unchecked")
+            E e = (E) buffer[index];
+            // make sure the element was not taken, and the slot reused, while we read it
+            if (e != null && sequences.get(index) == h + 1) {
+                result.add(e);
+            }
+        }
+        final Iterator<E> i = result.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+
+            public E next() {
+                return i.next();
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(E e) {
+        requireNonNull(e);
+        long pos = tail.get();
+        for (;;) {
+            if ((pos & SHUTDOWN) != 0) {
+                return false;
+            }
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = e;
+                    sequences.set(index, pos + 1);
+                    if (waitingConsumers.get() > 0) {
+                        signal(notEmpty);
+                    }
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // full
+            }
+            pos = tail.get();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        requireNonNull(e);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0 || isShutdown()) {
+                return false;
+            }
+            waitFor(false, nanos);
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E peek() {
+        for (;;) {
+            long h = head.get();
+            int index = (int) h & mask;
+            if (sequences.get(index) != h + 1) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            E e = (E) buffer[index];
+            if (e != null && head.get() == h) {
+                return e;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E poll() {
+        long pos = head.get();
+        for (;;) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    @SuppressWarnings("unchecked")
+                    E e = (E) buffer[index];
+                    buffer[index] = null;
+                    sequences.set(index, pos + mask + 1);
+                    if (waitingProducers.get() > 0) {
+                        signal(notFull);
+                    }
+                    checkTerminated();
+                    return e;
+                }
+            } else if (diff < 0) {
+                checkTerminated();
+                return null; // empty, or the element at the head has not been published yet
+            }
+            pos = head.get();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (;;) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            }
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0 || isTerminated()) {
+                return null;
+            }
+            waitFor(true, nanos);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(E e) throws InterruptedException {
+        requireNonNull(e);
+        while (!offer(e)) {
+            if (isShutdown()) {
+                throw new IllegalStateException("Queue has been shutdown");
+            }
+            waitFor(false, Long.MAX_VALUE);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int remainingCapacity() {
+        return isShutdown() ? 0 : buffer.length - size();
+    }
+
+    /**
+     * Not supported, elements can only be removed from the head of the queue.
+     *
+     * @throws UnsupportedOperationException
+     *             always
+     */
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void shutdown() {
+        for (long t = tail.get(); (t & SHUTDOWN) == 0 && !tail.compareAndSet(t, t | SHUTDOWN); t = tail.get()) {
+            // retry
+        }
+        partialShutdown.countDown();
+        checkTerminated();
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wakes up all threads parked on the specified condition. */
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        // read the head first, so the size is never negative
+        long h = head.get();
+        long size = (tail.get() & ~SHUTDOWN) - h;
+        return (int) Math.max(0, Math.min(buffer.length, size));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E take() throws InterruptedException {
+        for (;;) {
+            E e = poll();
+            if (e != null) {
+                return e;
+            } else if (isTerminated()) {
+                return null;
+            }
+            waitFor(true, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Waits, according to the wait strategy, for an element to become available or a slot to become free.
+     *
+     * @param consumer
+     *            true if waiting for an element, false if waiting for a free slot
+     * @param nanos
+     *            the maximum time to wait
+     * @throws InterruptedException
+     *             if the thread has been interrupted
+     */
+    private void waitFor(boolean consumer, long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (waitStrategy == WaitStrategy.YIELD) {
+            Thread.yield();
+        } else if (waitStrategy == WaitStrategy.PARK) {
+            AtomicInteger waiting = consumer ? waitingConsumers : waitingProducers;
+            lock.lockInterruptibly();
+            try {
+                // register before checking, so the other side either sees us waiting or we see its change
+                waiting.incrementAndGet();
+                try {
+                    if (consumer ? !isReadable() : !isWritable()) {
+                        (consumer ? notEmpty : notFull).awaitNanos(nanos);
+                    }
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -14,7 +14,6 @@
  */
 package dk.dma.commons.service;
 
-import java.util.AbstractQueue;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -51,7 +50,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * @param <E>
  *            the type of elements held in this collection
  */
-public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>, java.io.Serializable {
+public class ShutdownBlockingQueue<E> extends StageQueue<E> implements java.io.Serializable {
     private static final long serialVersionUID = -6903933977591709194L;
 
     /*
@@ -296,10 +295,11 @@ public class ShutdownBlockingQueue<E> extends AbstractQueue<E> implements Blocki
              * are signalled if it ever changes from capacity. Similarly for all other uses of count in other wait
              * guards.
              */
-            while (count.get() == capacity) {
+            while (count.get() == capacity && capacity != 0) {
                 notFull.await();
             }
             if (capacity == 0) {
+                notFull.signal(); // shutdown only signals one waiting producer, let the next one fail as well
                 throw new IllegalStateException("Queue has been shutdown");
             }
             enqueue(node);
@@ -0,0 +1,109 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Function;
+
+/**
+ * A typed output of a stage, that is connected to the input queues of downstream stages by a {@link Pipeline}. A
+ * stage creates an output for each kind of message it produces, and sends its messages through it. Depending on how
+ * the output is connected, each message is either sent to every downstream stage, or to one of them chosen by the key
+ * of the message. Messages sent through an output that is not connected are discarded.
+ *
+ * @author Kasper Nielsen
+ */
+public final class StageOutput<T> {
+
+    /** The queues of the downstream stages. */
+    private volatile BlockingQueue<Object>[] targets = newArray(0);
+
+    /** Extracts the key that messages are partitioned by, or null to send every message to every target. */
+    private volatile Function<? super T, ?> keyFunction;
+
+    /** The stage that sends messages through this output, or null if the output has not been connected. */
+    AbstractMessageProcessorService<?> owner;
+
+    /**
+     * Returns the number of downstream stages this output is connected to.
+     *
+     * @return the number of downstream stages
+     */
+    public int getNumberOfTargets() {
+        return targets.length;
+    }
+
+    /**
+     * Returns whether or not messages are partitioned between the downstream stages.
+     *
+     * @return true if messages are partitioned, false if every message is sent to every downstream stage
+     */
+    public boolean isPartitioned() {
+        return keyFunction != null;
+    }
+
+    /**
+     * Sends the specified message downstream, waiting if necessary for space in the input queues of the downstream
+     * stages.
+     *
+     * @param message
+     *            the message to send
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void send(T message) throws InterruptedException {
+        requireNonNull(message, "message is null");
+        BlockingQueue<Object>[] targets = this.targets;
+        Function<? super T, ?> keyFunction = this.keyFunction;
+        if (keyFunction == null) {
+            for (BlockingQueue<Object> q : targets) {
+                q.put(message);
+            }
+        } else if (targets.length > 0) {
+            targets[AbstractMessageProcessorService.partition(keyFunction.apply(message), targets.length)].put(message);
+        }
+    }
+
+    /** Returns whether or not the input queue of the specified stage is one of the targets. */
+    boolean isConnectedTo(AbstractMessageProcessorService<?> stage) {
+        for (BlockingQueue<Object> q : targets) {
+            if (q == stage.inputQueue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Adds the input queue of the specified stage to the targets, so the overload policy of the stage applies. */
+    @SuppressWarnings("unchecked")
+    void connect(AbstractMessageProcessorService<?> to, Function<? super T, ?> keyFunction) {
+        BlockingQueue<Object>[] targets = this.targets;
+        if (targets.length > 0 && keyFunction != this.keyFunction) {
+            throw new IllegalArgumentException("An output cannot be both partitioned and broadcasted");
+        }
+        BlockingQueue<Object>[] result = newArray(targets.length + 1);
+        System.arraycopy(targets, 0, result, 0, targets.length);
+        result[targets.length] = (InputQueue<Object>) to.inputQueue;
+        this.keyFunction = keyFunction;
+        this.targets = result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BlockingQueue<Object>[] newArray(int length) {
+        return new BlockingQueue[length];
+    }
+}
@@ -0,0 +1,83 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The input queue of a stage. Once the queue has been shutdown no more elements can be added, and blocking takes
+ * return <code>null</code> instead of waiting when the queue is empty. The queue is terminated when it has been
+ * shutdown and all remaining elements have been taken.
+ * 
+ * @author Kasper Nielsen
+ */
+abstract class StageQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * Awaits that the queue is shutdown.
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of the timeout
+     * @return true if the queue was shutdown, false if the timeout elapsed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public abstract boolean awaitShutdown(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Awaits that both the queue is shutdown and all elements have been taken.
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of the timeout
+     * @return true if the queue was terminated, false if the timeout elapsed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public abstract boolean awaitFullyTerminated(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Waits until at least one element is available, and then removes up to the specified number of elements from the
+     * queue and adds them to the specified collection.
+     * 
+     * @param c
+     *            the collection to transfer elements into
+     * @param maxElements
+     *            the maximum number of elements to transfer
+     * @return the number of elements transferred, 0 if the queue has been shutdown and is empty
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public abstract int drainToBlocking(Collection<? super E> c, int maxElements) throws InterruptedException;
+
+    /**
+     * True if shutdown has been requested. The queue might have outstanding elements.
+     * 
+     * @see #isTerminated()
+     */
+    abstract boolean isShutdown();
+
+    /** Returns true if the queue has been shutdown and all elements have been taken. */
+    abstract boolean isTerminated();
+
+    /** Shuts down the queue, no more elements can be added. Wakes up any thread waiting on the queue. */
+    abstract void shutdown();
+}
@@ -0,0 +1,38 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+/**
+ * How threads wait on a {@link RingBufferQueue} that is empty (consumers) or full (producers).
+ * 
+ * @author Kasper Nielsen
+ */
+public enum WaitStrategy {
+
+    /**
+     * Busy spins. Lowest latency, but burns a core for every waiting thread. Only use it when every producer and
+     * consumer has a core of its own, spinning threads starve each other otherwise.
+     */
+    SPIN,
+
+    /** Yields the processor between attempts. Low latency, but still uses CPU while idle. */
+    YIELD,
+
+    /**
+     * Parks the waiting thread until it is signalled. Uses no CPU while idle, the other side only takes a lock to
+     * signal when a thread is actually waiting.
+     */
+    PARK;
+}
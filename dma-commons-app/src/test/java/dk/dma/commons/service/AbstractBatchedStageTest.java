@@ -0,0 +1,136 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AbstractBatchedStage}.
+ *
+ * @author Kasper Nielsen
+ */
+public class AbstractBatchedStageTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lingerMinBatchSizeAboveMax() {
+        new Recorder(10).setLinger(11, 1, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lingerNegative() {
+        new Recorder(10).setLinger(1, -1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void lingerFillsBatch() throws Exception {
+        Recorder r = new Recorder(10);
+        r.setLinger(5, 10, TimeUnit.SECONDS);
+        r.startAsync().awaitRunning();
+        for (int i = 0; i < 5; i++) {
+            r.getInputQueue().put(i);
+            Thread.sleep(5);
+        }
+        r.awaitMessages(5);
+        assertEquals(Arrays.asList(5), r.batchSizes());
+        r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void lingerTimesOut() throws Exception {
+        Recorder r = new Recorder(10);
+        r.setLinger(10, 50, TimeUnit.MILLISECONDS);
+        r.startAsync().awaitRunning();
+        r.getInputQueue().put(1);
+        r.getInputQueue().put(2);
+        r.awaitMessages(2);
+        assertEquals(Arrays.asList(2), r.batchSizes());
+        r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void lingerInterruptedByShutdown() throws Exception {
+        Recorder r = new Recorder(10);
+        r.setLinger(10, 1, TimeUnit.HOURS);
+        r.startAsync().awaitRunning();
+        r.getInputQueue().put(1);
+        Thread.sleep(20);
+        r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(1), r.batchSizes());
+    }
+
+    @Test
+    public void batchBufferIsReused() throws Exception {
+        Recorder r = new Recorder(10);
+        r.startAsync().awaitRunning();
+        r.getInputQueue().put(1);
+        r.awaitMessages(1);
+        r.getInputQueue().put(2);
+        r.awaitMessages(2);
+        r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(2, r.lists.size());
+        assertSame(r.lists.get(0), r.lists.get(1));
+        assertTrue(r.lists.get(0).isEmpty());
+    }
+
+    /** A single message must be handled without waiting for more messages to arrive. */
+    @Test
+    public void singleMessage() throws Exception {
+        Recorder r = new Recorder(10);
+        r.startAsync().awaitRunning();
+        r.getInputQueue().put(1);
+        r.awaitMessages(1);
+        assertEquals(Arrays.asList(1), r.batchSizes());
+        r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+    }
+
+    /** Records the size of each batch. */
+    static class Recorder extends AbstractBatchedStage<Integer> {
+
+        final List<Integer> batchSizes = new ArrayList<>();
+
+        final List<List<Integer>> lists = new ArrayList<>();
+
+        Recorder(int maxBatchSize) {
+            super(100, maxBatchSize);
+        }
+
+        synchronized void awaitMessages(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (getNumberOfMessagesProcessed() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+        }
+
+        synchronized List<Integer> batchSizes() {
+            return new ArrayList<>(batchSizes);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void handleMessages(List<Integer> messages) {
+            batchSizes.add(messages.size());
+            lists.add(messages);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OverloadPolicy}.
+ *
+ * @author Kasper Nielsen
+ */
+public class OverloadPolicyTest {
+
+    @Test
+    public void block() throws InterruptedException {
+        Idle s = new Idle(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(s.getInputQueue().offer(i));
+        }
+        assertFalse(s.getInputQueue().offer(4));
+        assertFalse(s.getInputQueue().offer(4, 1, TimeUnit.MILLISECONDS));
+        assertEquals(2, s.getNumberOfDroppedMessages());
+        assertEquals(4, s.getQueueHighWaterMark());
+    }
+
+    @Test
+    public void dropNewest() throws InterruptedException {
+        Idle s = new Idle(4);
+        s.setOverloadPolicy(OverloadPolicy.dropNewest());
+        for (int i = 0; i < 10; i++) {
+            s.getInputQueue().put(i);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3), s.drain());
+        assertEquals(6, s.getNumberOfDroppedMessages());
+    }
+
+    @Test
+    public void dropOldest() throws InterruptedException {
+        Idle s = new Idle(4);
+        s.setOverloadPolicy(OverloadPolicy.dropOldest());
+        for (int i = 0; i < 10; i++) {
+            s.getInputQueue().put(i);
+        }
+        assertEquals(Arrays.asList(6, 7, 8, 9), s.drain());
+        assertEquals(6, s.getNumberOfDroppedMessages());
+        assertEquals(4, s.getQueueHighWaterMark());
+    }
+
+    @Test
+    public void sample() {
+        Idle s = new Idle(8);
+        s.setOverloadPolicy(OverloadPolicy.sample(new Predicate<Integer>() {
+            public boolean test(Integer t) {
+                return t % 2 == 0;
+            }
+        }));
+        for (int i = 0; i < 10; i++) {
+            s.getInputQueue().offer(i);
+        }
+        // sampling starts once the queue is half full
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 6, 8), s.drain());
+        assertEquals(3, s.getNumberOfDroppedMessages());
+    }
+
+    @Test
+    public void spill() throws Exception {
+        Path dir = Files.createTempDirectory("spill");
+        Idle s = new Idle(4);
+        s.setOverloadPolicy(OverloadPolicy.<Integer> spill(dir));
+        for (int i = 0; i < 100; i++) {
+            s.getInputQueue().put(i);
+        }
+        assertTrue(s.getNumberOfSpilledMessages() > 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, s.getInputQueue().take().intValue());
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (s.getNumberOfSpilledMessages() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, s.getNumberOfSpilledMessages());
+        assertEquals(0, s.getNumberOfDroppedMessages());
+        assertTrue(isEmpty(dir));
+        Files.delete(dir);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shutdownRejects() throws InterruptedException {
+        Idle s = new Idle(4);
+        s.setOverloadPolicy(OverloadPolicy.dropNewest());
+        s.startAsync().awaitRunning();
+        s.stopAsync().awaitTerminated();
+        s.getInputQueue().put(1);
+    }
+
+    private static boolean isEmpty(Path dir) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                if (!ds.iterator().hasNext()) {
+                    return true;
+                }
+            }
+            Thread.sleep(1);
+        }
+        return false;
+    }
+
+    /** A stage that is never started, so messages stay in the queue. */
+    static class Idle extends AbstractStage<Integer> {
+
+        Idle(int queueSize) {
+            super(queueSize);
+        }
+
+        List<Integer> drain() {
+            List<Integer> result = new ArrayList<>();
+            getInputQueue().drainTo(result);
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void handleMessage(Integer message) {}
+
+        /** {@inheritDoc} */
+        @Override
+        protected void handleMessages(List<Integer> messages) {}
+    }
+}
@@ -0,0 +1,195 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Service;
+
+/**
+ * Tests {@link Pipeline}.
+ *
+ * @author Kasper Nielsen
+ */
+public class PipelineTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cycle() {
+        Relay a = new Relay(10, 0);
+        Relay b = new Relay(10, 0);
+        new Pipeline().connect(a, a.output, b).connect(b, b.output, a);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void connectAfterStart() {
+        Relay a = new Relay(10, 0);
+        Pipeline p = new Pipeline().add(a);
+        p.startAsync().awaitRunning();
+        try {
+            p.connect(a, a.output, new Relay(10, 0));
+        } finally {
+            p.stopAsync().awaitTerminated();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputOfAnotherStage() {
+        Relay a = new Relay(10, 0);
+        Relay b = new Relay(10, 0);
+        new Pipeline().connect(a, a.output, b).connect(b, a.output, new Relay(10, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void connectTwice() {
+        Relay a = new Relay(10, 0);
+        Relay b = new Relay(10, 0);
+        new Pipeline().connect(a, a.output, b).connect(a, a.output, b);
+    }
+
+    @Test
+    public void startFailureStopsStartedStages() {
+        Relay a = new Relay(10, 0) {
+            protected void startUp() {
+                throw new IllegalStateException();
+            }
+        };
+        Relay b = new Relay(10, 0);
+        Pipeline p = new Pipeline().connect(a, a.output, b);
+        p.startAsync();
+        try {
+            p.awaitRunning();
+        } catch (IllegalStateException ignore) {}
+        assertEquals(Service.State.FAILED, p.state());
+        // b is downstream of a, so it was started first
+        assertEquals(Service.State.TERMINATED, b.state());
+    }
+
+    @Test
+    public void stagesInTopologicalOrder() {
+        Relay a = new Relay(10, 0);
+        Relay b = new Relay(10, 0);
+        Relay c = new Relay(10, 0);
+        Pipeline p = new Pipeline().connect(b, b.output, c).connect(a, a.output, b);
+        assertEquals(Arrays.asList(a, b, c), p.getStages());
+    }
+
+    /** A slow downstream stage must have handled every message before the pipeline terminates. */
+    @Test
+    public void drainsUpstreamFirst() throws Exception {
+        Relay a = new Relay(1000, 0);
+        Relay b = new Relay(10, 1);
+        Pipeline p = new Pipeline().connect(a, a.output, b);
+        p.startAsync().awaitRunning();
+        for (int i = 0; i < 100; i++) {
+            a.getInputQueue().put(i);
+        }
+        p.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(100, b.messages.size());
+        assertTrue(p.getDrainTime(b, TimeUnit.MILLISECONDS) >= 0);
+        assertTrue(p.getDrainTime(a, TimeUnit.NANOSECONDS) >= 0);
+    }
+
+    @Test
+    public void broadcastAndFanIn() throws Exception {
+        Relay a = new Relay(100, 0);
+        Relay b = new Relay(100, 0);
+        Relay c = new Relay(100, 0);
+        Relay d = new Relay(1000, 0);
+        Pipeline p = new Pipeline().connect(a, a.output, b).connect(a, a.output, c);
+        p.connect(b, b.output, d).connect(c, c.output, d);
+        p.startAsync().awaitRunning();
+        for (int i = 0; i < 100; i++) {
+            a.getInputQueue().put(i);
+        }
+        p.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(100, b.messages.size());
+        assertEquals(100, c.messages.size());
+        assertEquals(200, d.messages.size());
+        assertEquals(Arrays.asList(a, b, c, d), p.getStages());
+    }
+
+    @Test
+    public void partitioned() throws Exception {
+        Relay a = new Relay(100, 0);
+        Relay b = new Relay(100, 0);
+        Relay c = new Relay(100, 0);
+        Function<Integer, Integer> key = new Function<Integer, Integer>() {
+            public Integer apply(Integer t) {
+                return t % 4;
+            }
+        };
+        Pipeline p = new Pipeline().partition(a, a.output, key, b, c);
+        p.startAsync().awaitRunning();
+        for (int i = 0; i < 100; i++) {
+            a.getInputQueue().put(i);
+        }
+        p.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(100, b.messages.size() + c.messages.size());
+        HashSet<Integer> keys = new HashSet<>();
+        for (Integer i : b.messages) {
+            keys.add(i % 4);
+        }
+        for (Integer i : c.messages) {
+            assertTrue(!keys.contains(i % 4));
+        }
+    }
+
+    /** Records every message and sends it downstream. */
+    static class Relay extends AbstractStage<Integer> {
+
+        final List<Integer> messages = new ArrayList<>();
+
+        final StageOutput<Integer> output = new StageOutput<>();
+
+        final long sleepMillis;
+
+        Relay(int queueSize, long sleepMillis) {
+            super(queueSize);
+            this.sleepMillis = sleepMillis;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void handleMessage(Integer message) {
+            try {
+                Thread.sleep(sleepMillis);
+                synchronized (this) {
+                    messages.add(message);
+                }
+                output.send(message);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void handleMessages(List<Integer> messages) {
+            for (Integer m : messages) {
+                handleMessage(m);
+            }
+        }
+    }
+}
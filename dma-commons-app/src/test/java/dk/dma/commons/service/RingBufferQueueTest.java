@@ -0,0 +1,158 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link RingBufferQueue}.
+ *
+ * @author Kasper Nielsen
+ */
+public class RingBufferQueueTest {
+
+    @Test
+    public void capacity() {
+        RingBufferQueue<Integer> q = new RingBufferQueue<>(3, WaitStrategy.PARK);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(q.offer(i));
+        }
+        assertFalse(q.offer(4));
+        assertEquals(4, q.size());
+        assertEquals(0, q.remainingCapacity());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, q.poll().intValue());
+        }
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void drainToBlocking() throws InterruptedException {
+        RingBufferQueue<Integer> q = new RingBufferQueue<>(16, WaitStrategy.PARK);
+        for (int i = 0; i < 5; i++) {
+            q.put(i);
+        }
+        ArrayList<Integer> list = new ArrayList<>();
+        assertEquals(3, q.drainToBlocking(list, 3));
+        assertEquals(2, q.drainToBlocking(list, 3));
+        assertEquals(5, list.size());
+        q.shutdown();
+        assertEquals(0, q.drainToBlocking(list, 3));
+    }
+
+    @Test
+    public void pollTimeout() throws InterruptedException {
+        RingBufferQueue<Integer> q = new RingBufferQueue<>(16, WaitStrategy.PARK);
+        assertNull(q.poll(10, TimeUnit.MILLISECONDS));
+        assertFalse(q.isTerminated());
+    }
+
+    @Test
+    public void shutdown() throws InterruptedException {
+        RingBufferQueue<Integer> q = new RingBufferQueue<>(16, WaitStrategy.PARK);
+        q.put(1);
+        q.put(2);
+        q.shutdown();
+        assertTrue(q.awaitShutdown(0, TimeUnit.SECONDS));
+        assertFalse(q.offer(3));
+        try {
+            q.put(3);
+            throw new AssertionError("Queue has been shutdown");
+        } catch (IllegalStateException ok) {}
+        assertFalse(q.isTerminated());
+        assertEquals(1, q.take().intValue());
+        assertEquals(2, q.take().intValue());
+        assertTrue(q.awaitFullyTerminated(1, TimeUnit.SECONDS));
+        assertNull(q.take());
+    }
+
+    @Test
+    public void shutdownWakesUpConsumer() throws InterruptedException {
+        final RingBufferQueue<Integer> q = new RingBufferQueue<>(16, WaitStrategy.PARK);
+        final Integer[] result = { 1 };
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[0] = q.take();
+                } catch (InterruptedException ignore) {}
+            }
+        };
+        t.start();
+        Thread.sleep(20);
+        q.shutdown();
+        t.join(1000);
+        assertFalse(t.isAlive());
+        assertNull(result[0]);
+        assertTrue(q.isTerminated());
+    }
+
+    @Test
+    public void multipleProducersPark() throws InterruptedException {
+        multipleProducers(WaitStrategy.PARK, 100000);
+    }
+
+    @Test
+    public void multipleProducersSpin() throws InterruptedException {
+        // spinning threads starve each other on machines with few cores
+        multipleProducers(WaitStrategy.SPIN, 1000);
+    }
+
+    @Test
+    public void multipleProducersYield() throws InterruptedException {
+        multipleProducers(WaitStrategy.YIELD, 100000);
+    }
+
+    /** Checks that every element is taken exactly once, in the order each producer added them. */
+    private static void multipleProducers(WaitStrategy waitStrategy, final int count) throws InterruptedException {
+        final RingBufferQueue<Long> q = new RingBufferQueue<>(64, waitStrategy);
+        final int producers = 4;
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final long id = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (long j = 0; j < count; j++) {
+                            q.put(id << 32 | j);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long[] next = new long[producers];
+        for (int i = 0; i < producers * count; i++) {
+            long l = q.take();
+            int id = (int) (l >>> 32);
+            assertEquals(next[id]++, l & 0xffffffffL);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        q.shutdown();
+        assertNull(q.take());
+        assertTrue(q.isTerminated());
+    }
+}
@@ -0,0 +1,230 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Service.State;
+
+/**
+ * Tests stages with more than one worker.
+ *
+ * @author Kasper Nielsen
+ */
+public class WorkersTest {
+
+    /** Partitions messages by their value modulo 8. */
+    static final Function<Integer, Integer> KEY = new Function<Integer, Integer>() {
+        public Integer apply(Integer t) {
+            return t % 8;
+        }
+    };
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noWorkers() {
+        new Recorder(10).setWorkers(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setWorkersAfterStart() throws Exception {
+        Recorder r = new Recorder(10);
+        r.startAsync().awaitRunning();
+        try {
+            r.setWorkers(2);
+        } finally {
+            r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void batchedDrainsOnShutdown() throws Exception {
+        Recorder r = new Recorder(10);
+        r.setWorkers(4);
+        r.startAsync().awaitRunning();
+        for (int i = 0; i < 10000; i++) {
+            r.getInputQueue().put(i);
+        }
+        r.awaitMessages(10000);
+        r.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(10000, r.getNumberOfMessagesProcessed());
+        assertEquals(10000, r.messages.size());
+        assertEquals(1, r.shutdowns);
+    }
+
+    @Test
+    public void stageDrainsOnShutdown() throws Exception {
+        Collector c = new Collector(WaitStrategy.PARK);
+        c.setWorkers(4);
+        c.startAsync().awaitRunning();
+        for (int i = 0; i < 10000; i++) {
+            c.getInputQueue().put(i);
+        }
+        c.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(10000, c.getNumberOfMessagesProcessed());
+        assertEquals(10000, c.messages.size());
+        assertTrue(c.threads.size() > 1);
+    }
+
+    @Test
+    public void keyAffinity() throws Exception {
+        keyAffinity(new Collector());
+        keyAffinity(new Collector(WaitStrategy.PARK));
+    }
+
+    private static void keyAffinity(Collector c) throws Exception {
+        c.setWorkers(4, KEY);
+        c.startAsync().awaitRunning();
+        for (int i = 0; i < 10000; i++) {
+            c.getInputQueue().put(i);
+        }
+        c.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+        assertEquals(10000, c.messages.size());
+        Map<Integer, Integer> last = new HashMap<>();
+        Map<Integer, Thread> threads = new HashMap<>();
+        for (int i = 0; i < c.messages.size(); i++) {
+            Integer m = c.messages.get(i);
+            Integer previous = last.put(m % 8, m);
+            assertTrue(previous == null || previous < m);
+            Thread t = threads.put(m % 8, c.threads.get(i));
+            assertTrue(t == null || t == c.threads.get(i));
+        }
+    }
+
+    @Test
+    public void workerFailureFailsStage() throws Exception {
+        Collector c = new Collector() {
+            protected void handleMessage(Integer message) {
+                if (message == 5) {
+                    throw new IllegalStateException();
+                }
+                super.handleMessage(message);
+            }
+        };
+        c.setWorkers(3, KEY);
+        c.startAsync().awaitRunning();
+        for (int i = 0; i < 100; i++) {
+            c.getInputQueue().put(i);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (c.state() != State.FAILED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(State.FAILED, c.state());
+        assertTrue(c.failureCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void dispatchFailureFailsStage() throws Exception {
+        Recorder r = new Recorder(10);
+        r.setWorkers(3, new Function<Integer, Integer>() {
+            public Integer apply(Integer t) {
+                if (t == 50) {
+                    throw new IllegalStateException();
+                }
+                return t % 8;
+            }
+        });
+        r.startAsync().awaitRunning();
+        for (int i = 0; i < 100; i++) {
+            r.getInputQueue().put(i);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (r.state() != State.FAILED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(State.FAILED, r.state());
+        assertTrue(r.failureCause() instanceof IllegalStateException);
+        // the workers have finished before the stage failed
+        long processed = r.getNumberOfMessagesProcessed();
+        assertEquals(1, r.shutdowns);
+        Thread.sleep(50);
+        assertEquals(processed, r.getNumberOfMessagesProcessed());
+        assertTrue(processed <= 50);
+    }
+
+    /** Records every message and the thread that handled it. */
+    static class Collector extends AbstractStage<Integer> {
+
+        final List<Integer> messages = new ArrayList<>();
+
+        final List<Thread> threads = new ArrayList<>();
+
+        Collector() {
+            super(100);
+        }
+
+        Collector(WaitStrategy waitStrategy) {
+            super(100, waitStrategy);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void handleMessage(Integer message) {
+            messages.add(message);
+            threads.add(Thread.currentThread());
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void handleMessages(List<Integer> messages) {
+            for (Integer m : messages) {
+                handleMessage(m);
+            }
+        }
+    }
+
+    /** Records every message of every batch. */
+    static class Recorder extends AbstractBatchedStage<Integer> {
+
+        final Set<Integer> messages = new HashSet<>();
+
+        int shutdowns;
+
+        Recorder(int maxBatchSize) {
+            super(100, maxBatchSize);
+        }
+
+        synchronized void awaitMessages(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (getNumberOfMessagesProcessed() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void handleMessages(List<Integer> messages) {
+            this.messages.addAll(messages);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void onShutdown() {
+            shutdowns++;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Polygon;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Generates position reports of a synthetic fleet of vessels sailing in the waters around Denmark. Each vessel sails
+ * at a constant speed on a slowly changing course, turning around at the edge of the area, and reports its position at
+ * the rate AIS class A transponders use for its speed. About a fifth of the vessels are moored.
+ * <p>
+ * The generator is deterministic for a given seed, and is not thread safe.
+ *
+ * @author Kasper Nielsen
+ */
+public final class FleetGenerator {
+
+    /** The southern edge of the area the fleet sails in. */
+    static final double MIN_LATITUDE = 53.5;
+
+    /** The northern edge of the area the fleet sails in. */
+    static final double MAX_LATITUDE = 59.5;
+
+    /** The western edge of the area the fleet sails in. */
+    static final double MIN_LONGITUDE = 3;
+
+    /** The eastern edge of the area the fleet sails in. */
+    static final double MAX_LONGITUDE = 16;
+
+    /** The number of meters per degree of latitude. */
+    private static final double METERS_PER_DEGREE = 111195;
+
+    /** The meters per second of 1 knot. */
+    private static final double KNOT = 1852d / 3600;
+
+    /** The course of each vessel in radians, clockwise from north. */
+    private final double[] courses;
+
+    /** The latitude of the last report of each vessel. */
+    private final double[] latitudes;
+
+    /** The longitude of the last report of each vessel. */
+    private final double[] longitudes;
+
+    /** The simulated time of the last report of each vessel. */
+    private final long[] lastReport;
+
+    /** The milliseconds between reports of each vessel. */
+    private final long[] reportIntervals;
+
+    /** The random source. */
+    private final Random random;
+
+    /** The speed of each vessel in meters per second. */
+    private final double[] speeds;
+
+    /** The vessels, identified by an MMSI number. */
+    private final Integer[] targets;
+
+    /** The current simulated time. */
+    private long time;
+
+    /**
+     * Creates a new fleet.
+     *
+     * @param size
+     *            the number of vessels
+     * @param seed
+     *            the seed of the random source
+     * @throws IllegalArgumentException
+     *             if the size is not positive
+     */
+    public FleetGenerator(int size, long seed) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive, was " + size);
+        }
+        random = new Random(seed);
+        courses = new double[size];
+        latitudes = new double[size];
+        longitudes = new double[size];
+        lastReport = new long[size];
+        reportIntervals = new long[size];
+        speeds = new double[size];
+        targets = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            targets[i] = 219000000 + i;
+            latitudes[i] = MIN_LATITUDE + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE);
+            longitudes[i] = MIN_LONGITUDE + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE);
+            courses[i] = random.nextDouble() * 2 * Math.PI;
+            double r = random.nextDouble();
+            double knots = r < 0.2 ? 0 : r < 0.7 ? 8 + random.nextDouble() * 6
+                    : r < 0.95 ? 14 + random.nextDouble() * 9 : 23 + random.nextDouble() * 12;
+            speeds[i] = knots * KNOT;
+            reportIntervals[i] = knots == 0 ? 180000 : knots < 14 ? 10000 : knots < 23 ? 6000 : 2000;
+            // stagger the reports so they do not all arrive at the same time
+            lastReport[i] = -(long) (random.nextDouble() * reportIntervals[i]);
+        }
+    }
+
+    /**
+     * Advances the simulated time and returns the reports of all vessels that were due to report in the period.
+     *
+     * @param millis
+     *            the number of milliseconds to advance the simulated time by
+     * @return the reports
+     */
+    public Reports advance(long millis) {
+        long to = time + millis;
+        Integer[] ts = new Integer[16];
+        PositionTime[] pts = new PositionTime[16];
+        int count = 0;
+        for (int i = 0; i < targets.length; i++) {
+            while (lastReport[i] + reportIntervals[i] <= to) {
+                long next = lastReport[i] + reportIntervals[i];
+                move(i, next);
+                if (count == ts.length) {
+                    ts = Arrays.copyOf(ts, count * 2);
+                    pts = Arrays.copyOf(pts, count * 2);
+                }
+                ts[count] = targets[i];
+                pts[count++] = PositionTime.create(latitudes[i], longitudes[i], next);
+            }
+        }
+        time = to;
+        return new Reports(Arrays.copyOf(ts, count), Arrays.copyOf(pts, count));
+    }
+
+    /**
+     * Returns a number of areas of interest within the area the fleet sails in. Every other area is a circle, the rest
+     * are polygons of 3 to 8 vertices. The areas have a radius of 1 to 50 kilometers.
+     *
+     * @param count
+     *            the number of areas
+     * @param seed
+     *            the seed of the random source
+     * @return the areas
+     */
+    public static List<Area> areas(int count, long seed) {
+        Random random = new Random(seed);
+        List<Area> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double latitude = MIN_LATITUDE + random.nextDouble() * (MAX_LATITUDE - MIN_LATITUDE);
+            double longitude = MIN_LONGITUDE + random.nextDouble() * (MAX_LONGITUDE - MIN_LONGITUDE);
+            double radius = 1000 + random.nextDouble() * 49000;
+            if (i % 2 == 0) {
+                result.add(new Circle(Position.create(latitude, longitude), radius, CoordinateSystem.GEODETIC));
+            } else {
+                double[] angles = new double[3 + random.nextInt(6)];
+                for (int j = 0; j < angles.length; j++) {
+                    angles[j] = random.nextDouble() * 2 * Math.PI;
+                }
+                Arrays.sort(angles);
+                List<Position> vertices = new ArrayList<>(angles.length);
+                for (double angle : angles) {
+                    double r = radius * (0.5 + random.nextDouble() / 2) / METERS_PER_DEGREE;
+                    vertices.add(Position.create(latitude + r * Math.cos(angle),
+                            longitude + r * Math.sin(angle) / Math.cos(Math.toRadians(latitude))));
+                }
+                result.add(new Polygon(vertices, CoordinateSystem.CARTESIAN));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the current simulated time.
+     *
+     * @return the current simulated time
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /** Moves the specified vessel to its position at the specified time. */
+    private void move(int i, long at) {
+        double meters = speeds[i] * (at - lastReport[i]) / 1000;
+        if (meters > 0) {
+            courses[i] += random.nextGaussian() * Math.toRadians(5);
+            double latitude = latitudes[i] + meters * Math.cos(courses[i]) / METERS_PER_DEGREE;
+            double longitude = longitudes[i] + meters * Math.sin(courses[i])
+                    / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitudes[i])));
+            if (latitude < MIN_LATITUDE || latitude > MAX_LATITUDE || longitude < MIN_LONGITUDE
+                    || longitude > MAX_LONGITUDE) {
+                // turn around at the edge, and stay where we are until the next report
+                courses[i] += Math.PI;
+            } else {
+                latitudes[i] = latitude;
+                longitudes[i] = longitude;
+            }
+        }
+        lastReport[i] = at;
+    }
+
+    /**
+     * Returns the number of vessels in the fleet.
+     *
+     * @return the number of vessels in the fleet
+     */
+    public int size() {
+        return targets.length;
+    }
+
+    /** A number of position reports. */
+    public static final class Reports {
+
+        /** The position and time of each report. */
+        final PositionTime[] positionTimes;
+
+        /** The vessel of each report. */
+        final Integer[] targets;
+
+        Reports(Integer[] targets, PositionTime[] positionTimes) {
+            this.targets = targets;
+            this.positionTimes = positionTimes;
+        }
+
+        /**
+         * Returns the number of reports.
+         *
+         * @return the number of reports
+         */
+        public int size() {
+            return targets.length;
+        }
+
+        /**
+         * Applies all reports to the specified tracker.
+         *
+         * @param tracker
+         *            the tracker to update
+         */
+        public void applyTo(PositionTracker<Integer> tracker) {
+            tracker.updateAll(targets, positionTimes);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Measures the cost of {@link PositionTracker#getTargetsWithin(Area)} for a mix of circles and polygons, with different
+ * cell sizes of the spatial index.
+ *
+ * @author Kasper Nielsen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class QueryBenchmark {
+
+    /** The number of areas to query, must be a power of 2. */
+    static final int AREAS = 64;
+
+    /** The areas to query. */
+    private Area[] areas;
+
+    /** The cell size of the spatial index. */
+    @Param({ "0.1", "0.5", "2" })
+    public double cellSize;
+
+    /** The index of the next area to query. */
+    private int next;
+
+    /** The number of vessels. */
+    @Param({ "10000", "100000" })
+    public int targets;
+
+    /** The tracker to query. */
+    private PositionTracker<Integer> tracker;
+
+    @Setup
+    public void setup() {
+        FleetGenerator fleet = new FleetGenerator(targets, 1);
+        tracker = new PositionTracker<>(cellSize);
+        fleet.advance(TimeUnit.MINUTES.toMillis(3)).applyTo(tracker);
+        tracker.doRun();
+        areas = FleetGenerator.areas(AREAS, 2).toArray(new Area[AREAS]);
+    }
+
+    @Benchmark
+    public Map<Integer, PositionTime> getTargetsWithin() {
+        return tracker.getTargetsWithin(areas[next++ & (AREAS - 1)]);
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Measures the cost of a single tick of a {@link PositionTracker}, including notifying subscriptions. Before each tick
+ * the reports a {@link FleetGenerator} produces in one tick period are applied to the tracker, so the number of
+ * changed targets per tick grows with the tick period.
+ *
+ * @author Kasper Nielsen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TickBenchmark {
+
+    /** The fleet. */
+    private FleetGenerator fleet;
+
+    /** The handler of all subscriptions. */
+    private CountingHandler handler;
+
+    /** The storage mode of the tracker. */
+    @Param({ "OBJECTS", "PACKED" })
+    public PositionTracker.StorageMode storageMode;
+
+    /** The number of subscriptions, half of them circles and half polygons. */
+    @Param({ "0", "100", "1000" })
+    public int subscriptions;
+
+    /** The number of vessels. */
+    @Param({ "10000", "100000" })
+    public int targets;
+
+    /** The simulated milliseconds between ticks. */
+    @Param({ "1000", "5000" })
+    public int tickPeriod;
+
+    /** The tracker to tick. */
+    private PositionTracker<Integer> tracker;
+
+    @Setup
+    public void setup() {
+        fleet = new FleetGenerator(targets, 1);
+        tracker = new PositionTracker<>(PositionTracker.DEFAULT_CELL_SIZE, storageMode);
+        handler = new CountingHandler();
+        List<Area> areas = FleetGenerator.areas(subscriptions, 2);
+        for (int i = 0; i < areas.size(); i++) {
+            // a handler can only be registered once, so each subscription gets its own delegating handler
+            tracker.subscribe(areas.get(i), new CountingHandler(handler));
+        }
+        fleet.advance(TimeUnit.MINUTES.toMillis(3)).applyTo(tracker);
+        tracker.doRun();
+    }
+
+    @Setup(Level.Invocation)
+    public void update() {
+        fleet.advance(tickPeriod).applyTo(tracker);
+    }
+
+    @Benchmark
+    public long doRun() {
+        tracker.doRun();
+        return handler.events.sum();
+    }
+
+    /** A handler that counts events, subscriptions are notified in parallel so the count is shared safely. */
+    static final class CountingHandler extends PositionUpdatedHandler<Integer> {
+
+        /** The handler that counts the events, this handler or the handler it delegates to. */
+        private final CountingHandler counter;
+
+        /** The number of events. */
+        final LongAdder events = new LongAdder();
+
+        CountingHandler() {
+            this.counter = this;
+        }
+
+        CountingHandler(CountingHandler counter) {
+            this.counter = counter;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void entering(Integer t, PositionTime positiontime) {
+            counter.events.increment();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void exiting(Integer t) {
+            counter.events.increment();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void updated(Integer t, PositionTime previous, PositionTime current) {
+            counter.events.increment();
+        }
+    }
+}
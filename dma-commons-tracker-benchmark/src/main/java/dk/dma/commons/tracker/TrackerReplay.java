@@ -0,0 +1,74 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import dk.dma.enav.model.geometry.Area;
+
+/**
+ * Drives a {@link PositionTracker} with a {@link FleetGenerator} in (accelerated) real time, and prints the tick
+ * metrics of the tracker every 10 seconds. Usage:
+ *
+ * <pre>
+ * TrackerReplay [targets [subscriptions [speedup [tickPeriodMS [seconds]]]]]
+ * </pre>
+ *
+ * @author Kasper Nielsen
+ */
+public class TrackerReplay {
+
+    /** The milliseconds between feeding reports to the tracker. */
+    static final int FEED_PERIOD_MS = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        int targets = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int subscriptions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final int speedup = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int tickPeriodMS = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+
+        final FleetGenerator fleet = new FleetGenerator(targets, 1);
+        final PositionTracker<Integer> tracker = new PositionTracker<>();
+        final TickBenchmark.CountingHandler handler = new TickBenchmark.CountingHandler();
+        List<Area> areas = FleetGenerator.areas(subscriptions, 2);
+        for (Area area : areas) {
+            tracker.subscribe(area, new TickBenchmark.CountingHandler(handler));
+        }
+        fleet.advance(TimeUnit.MINUTES.toMillis(3)).applyTo(tracker);
+
+        ScheduledExecutorService ses = Executors.newScheduledThreadPool(2);
+        ses.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                fleet.advance(FEED_PERIOD_MS * speedup).applyTo(tracker);
+            }
+        }, 0, FEED_PERIOD_MS, TimeUnit.MILLISECONDS);
+        tracker.schedule(ses, tickPeriodMS);
+
+        System.out.println("Replaying " + targets + " targets with " + subscriptions + " subscriptions at " + speedup
+                + "x speed, tick period " + tickPeriodMS + " ms");
+        for (int i = 10; i <= seconds; i += 10) {
+            Thread.sleep(10000);
+            System.out.println(i + "s: ticks=" + tracker.getNumberOfTicks() + ", updates/tick="
+                    + (long) tracker.getAverageUpdatesPerTick() + ", avg tick=" + tracker.getAverageTickDurationMicros()
+                    + " us, max tick=" + tracker.getMaxTickDurationMicros() + " us, overruns="
+                    + tracker.getNumberOfOverruns() + ", events=" + handler.events.sum());
+        }
+        ses.shutdownNow();
+    }
+}
@@ -0,0 +1,94 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Measures the cost of {@link PositionTracker#update(Object, PositionTime)}. Replays a minute of reports from a
+ * {@link FleetGenerator} over and over, shifting the time of the reports by a minute for each replay so they are never
+ * older than the current position.
+ *
+ * @author Kasper Nielsen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class UpdateBenchmark {
+
+    /** The simulated duration of the replayed reports. */
+    static final long DURATION = TimeUnit.MINUTES.toMillis(1);
+
+    /** The index of the next report to replay. */
+    private int next;
+
+    /** The time to add to the time of the replayed reports. */
+    private long offset;
+
+    /** The replayed reports. */
+    private FleetGenerator.Reports reports;
+
+    /** The storage mode of the tracker. */
+    @Param({ "OBJECTS", "PACKED" })
+    public PositionTracker.StorageMode storageMode;
+
+    /** The number of vessels. */
+    @Param({ "10000", "100000" })
+    public int targets;
+
+    /** The tracker to update. */
+    private PositionTracker<Integer> tracker;
+
+    @Setup
+    public void setup() {
+        FleetGenerator fleet = new FleetGenerator(targets, 1);
+        tracker = new PositionTracker<>(PositionTracker.DEFAULT_CELL_SIZE, storageMode);
+        // make sure every vessel, including the moored ones, has reported before we start measuring
+        fleet.advance(TimeUnit.MINUTES.toMillis(3)).applyTo(tracker);
+        tracker.doRun();
+        reports = fleet.advance(DURATION);
+        offset = 0;
+        next = 0;
+    }
+
+    @Benchmark
+    public void update() {
+        int i = next;
+        if (++next == reports.size()) {
+            next = 0;
+            offset += DURATION;
+        }
+        PositionTime pt = reports.positionTimes[i];
+        tracker.update(reports.targets[i],
+                PositionTime.create(pt.getLatitude(), pt.getLongitude(), pt.getTime() + offset));
+    }
+}
@@ -0,0 +1,440 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A handler that queues all events in a bounded queue, and delivers them to another handler from an executor. Events
+ * are always delivered one at a time and in the order they were queued, but never from the thread of the tracker.
+ * <p>
+ * Events are queued while the tracker notifies subscriptions in parallel on the common fork join pool. So a tracker
+ * that blocks because the queue is full, blocks through {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)}
+ * to let the pool notify other subscriptions on another thread meanwhile.
+ *
+ * @author Kasper Nielsen
+ */
+final class AsyncDispatcher<T> extends PositionUpdatedHandler<T> {
+
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncDispatcher.class);
+
+    /** The maximum number of events to deliver before giving other tasks on the executor a chance to run. */
+    static final int MAX_EVENTS_PER_RUN = 1024;
+
+    /** The maximum number of queued events, or targets with queued events if coalescing. */
+    private final int capacity;
+
+    /** The handler to deliver events to. */
+    private final PositionUpdatedHandler<? super T> delegate;
+
+    /** The handler to deliver events to if it is a batch handler, otherwise null. */
+    private final BatchPositionUpdatedHandler<? super T> batchDelegate;
+
+    /** The number of events that has been delivered. */
+    final AtomicLong delivered = new AtomicLong();
+
+    /** The number of events that has been dropped. */
+    final AtomicLong dropped = new AtomicLong();
+
+    /** The total time in nanoseconds spent in the handler. */
+    final AtomicLong handlerNanos = new AtomicLong();
+
+    /** The number of times the executor rejected delivering events. */
+    final AtomicLong rejected = new AtomicLong();
+
+    /** Drains the queue, only scheduled on the executor if not already scheduled. */
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /** The executor events are delivered from. */
+    private final Executor executor;
+
+    /**
+     * Waits for room in the queue, or for the executor to reject the drainer. Is used while holding the lock, that is
+     * released while waiting.
+     */
+    private final ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+        public boolean block() throws InterruptedException {
+            synchronized (AsyncDispatcher.this) {
+                while (pending >= capacity && scheduled) {
+                    AsyncDispatcher.this.wait();
+                }
+            }
+            return true;
+        }
+
+        public boolean isReleasable() {
+            synchronized (AsyncDispatcher.this) {
+                return pending < capacity || !scheduled;
+            }
+        }
+    };
+
+    /** Queued events, if not coalescing. Guarded by this. */
+    private final ArrayDeque<Event<T>> fifo;
+
+    /** The time in nanoseconds the last delivered event had been queued. */
+    volatile long lastLagNanos;
+
+    /** The maximum time in nanoseconds any event has been queued. */
+    volatile long maxLagNanos;
+
+    /** The number of queued events. Guarded by this. */
+    private int pending;
+
+    /** Queued events by target, if coalescing. Guarded by this. */
+    private final LinkedHashMap<T, Event<T>> perTarget;
+
+    /** What to do if the queue is full. */
+    private final OverflowPolicy policy;
+
+    /** Whether or not the drainer has been scheduled on the executor. Guarded by this. */
+    private boolean scheduled;
+
+    @SuppressWarnings("unchecked")
+    AsyncDispatcher(PositionUpdatedHandler<? super T> delegate, Executor executor, int capacity,
+            OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.delegate = requireNonNull(delegate, "handler is null");
+        this.executor = requireNonNull(executor, "executor is null");
+        this.policy = requireNonNull(policy, "policy is null");
+        if (policy == OverflowPolicy.BLOCK && executor == ForkJoinPool.commonPool()) {
+            // a tracker blocked on the pool could wait for a drainer that is queued behind it
+            throw new IllegalArgumentException("The common pool cannot be used as executor with the BLOCK policy");
+        }
+        this.capacity = capacity;
+        this.batchDelegate = delegate instanceof BatchPositionUpdatedHandler
+                ? (BatchPositionUpdatedHandler<? super T>) delegate : null;
+        this.fifo = policy == OverflowPolicy.COALESCE ? null : new ArrayDeque<Event<T>>();
+        this.perTarget = policy == OverflowPolicy.COALESCE ? new LinkedHashMap<T, Event<T>>() : null;
+    }
+
+    /** Discards all queued events. */
+    synchronized void clear() {
+        if (fifo == null) {
+            perTarget.clear();
+        } else {
+            fifo.clear();
+        }
+        pending = 0;
+        notifyAll();
+    }
+
+    private void deliver(Event<T> e) {
+        long start = System.nanoTime();
+        try {
+            if (e.type == Event.ENTERING) {
+                delegate.entering(e.t, e.current);
+            } else if (e.type == Event.UPDATED) {
+                delegate.updated(e.t, e.previous, e.current);
+            } else {
+                delegate.exiting(e.t);
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Handler failed while processing " + e.t, ex);
+        }
+        handlerNanos.addAndGet(System.nanoTime() - start);
+        delivered.incrementAndGet();
+    }
+
+    private void deliver(PositionUpdateBatch<T> batch) {
+        long start = System.nanoTime();
+        try {
+            batchDelegate.updated(batch);
+        } catch (RuntimeException ex) {
+            LOG.error("Handler failed while processing " + batch, ex);
+        }
+        handlerNanos.addAndGet(System.nanoTime() - start);
+        delivered.addAndGet(batch.size());
+    }
+
+    /**
+     * Delivers queued events until the queue is empty or {@link #MAX_EVENTS_PER_RUN} events has been delivered. Batch
+     * handlers receive all the events that are delivered in between as a single batch.
+     */
+    void drain() {
+        PositionUpdateBatch<T> batch = batchDelegate == null ? null : new PositionUpdateBatch<T>();
+        int count = 0;
+        for (;;) {
+            Event<T> e;
+            synchronized (this) {
+                e = poll();
+                if (e == null && (batch == null || batch.isEmpty())) {
+                    scheduled = false;
+                    return;
+                }
+                notifyAll(); // wake up the tracker if it is blocked
+            }
+            if (e == null) {
+                // deliver the batch and check for events that was queued while doing it
+                deliver(batch);
+                batch = new PositionUpdateBatch<>();
+            }
+            for (; e != null; e = e.next) {
+                long lag = System.nanoTime() - e.nanos;
+                lastLagNanos = lag;
+                if (lag > maxLagNanos) {
+                    maxLagNanos = lag;
+                }
+                if (batch == null) {
+                    deliver(e);
+                } else if (e.type == Event.ENTERING) {
+                    batch.addEntering(e.t, e.current);
+                } else if (e.type == Event.UPDATED) {
+                    batch.addUpdated(e.t, e.previous, e.current);
+                } else {
+                    batch.addExiting(e.t);
+                }
+                count++;
+            }
+            if (count >= MAX_EVENTS_PER_RUN) {
+                if (batch != null && !batch.isEmpty()) {
+                    deliver(batch);
+                }
+                schedule();
+                return;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void entering(T t, PositionTime positiontime) {
+        enqueue(new Event<>(Event.ENTERING, t, null, positiontime));
+    }
+
+    private void enqueue(Event<T> e) {
+        synchronized (this) {
+            if (fifo == null) {
+                Event<T> existing = perTarget.get(e.t);
+                if (existing == null) {
+                    if (perTarget.size() >= capacity) {
+                        Iterator<Event<T>> i = perTarget.values().iterator();
+                        for (Event<T> d = i.next(); d != null; d = d.next) {
+                            dropped.incrementAndGet();
+                            pending--;
+                        }
+                        i.remove();
+                    }
+                    perTarget.put(e.t, e);
+                    pending++;
+                } else {
+                    int length = Event.length(existing); // merge modifies the existing chain
+                    Event<T> merged = existing.merge(e);
+                    if (merged == null) {
+                        perTarget.remove(e.t);
+                    }
+                    pending += Event.length(merged) - length;
+                }
+            } else {
+                if (pending >= capacity) {
+                    if (policy == OverflowPolicy.DROP_OLDEST) {
+                        fifo.poll();
+                        pending--;
+                        dropped.incrementAndGet();
+                    } else {
+                        try {
+                            ForkJoinPool.managedBlock(blocker);
+                        } catch (InterruptedException ex) {
+                            // give up on the event, and leave it to the owner of the thread to stop
+                            Thread.currentThread().interrupt();
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        if (pending >= capacity) {
+                            // the executor rejected the drainer, nothing makes room until it is scheduled again
+                            dropped.incrementAndGet();
+                            e = null;
+                        }
+                    }
+                }
+                if (e != null) {
+                    fifo.add(e);
+                    pending++;
+                }
+            }
+            if (scheduled || pending == 0) {
+                return;
+            }
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Schedules the drainer on the executor. If the executor rejects it, the queued events are kept and the drainer is
+     * scheduled again by the next event.
+     */
+    private void schedule() {
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                scheduled = false;
+                notifyAll(); // a blocked tracker must not wait for the drainer
+            }
+            if (rejected.incrementAndGet() == 1) {
+                LOG.error("The executor rejected delivering events to " + delegate, e);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void exiting(T t) {
+        enqueue(new Event<T>(Event.EXITING, t, null, null));
+    }
+
+    /**
+     * Returns the number of queued events.
+     *
+     * @return the number of queued events
+     */
+    synchronized int getNumberOfPendingEvents() {
+        return pending;
+    }
+
+    /**
+     * Returns the time the last delivered event spent in the queue.
+     *
+     * @param unit
+     *            the unit of the returned value
+     * @return the time the last delivered event spent in the queue
+     */
+    long getLag(TimeUnit unit) {
+        return unit.convert(lastLagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the maximum time any delivered event spent in the queue.
+     *
+     * @param unit
+     *            the unit of the returned value
+     * @return the maximum time any delivered event spent in the queue
+     */
+    long getMaxLag(TimeUnit unit) {
+        return unit.convert(maxLagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the next event (or chain of events for a single target if coalescing). Must hold the lock. */
+    private Event<T> poll() {
+        Event<T> e;
+        if (fifo == null) {
+            Iterator<Event<T>> i = perTarget.values().iterator();
+            if (!i.hasNext()) {
+                return null;
+            }
+            e = i.next();
+            i.remove();
+        } else {
+            e = fifo.poll();
+        }
+        pending -= Event.length(e);
+        return e;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void updated(T t, PositionTime previous, PositionTime current) {
+        enqueue(new Event<>(Event.UPDATED, t, previous, current));
+    }
+
+    /** A queued event, when coalescing events for a single target are kept as a linked chain. */
+    static final class Event<T> {
+        static final int ENTERING = 0;
+
+        static final int UPDATED = 1;
+
+        static final int EXITING = 2;
+
+        PositionTime current;
+
+        /** The time the event was first queued. */
+        final long nanos = System.nanoTime();
+
+        /** The next event for the same target, only used when coalescing. */
+        Event<T> next;
+
+        PositionTime previous;
+
+        final T t;
+
+        int type;
+
+        Event(int type, T t, PositionTime previous, PositionTime current) {
+            this.type = type;
+            this.t = t;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        /**
+         * Merges the specified event into the tail of this chain of events.
+         *
+         * @return the new head of the chain, or null if the events cancelled each other out
+         */
+        Event<T> merge(Event<T> e) {
+            Event<T> before = null;
+            Event<T> tail = this;
+            while (tail.next != null) {
+                before = tail;
+                tail = tail.next;
+            }
+            if (tail.type == ENTERING && e.type == UPDATED || tail.type == UPDATED && e.type == UPDATED) {
+                tail.current = e.current;
+            } else if (tail.type == ENTERING && e.type == EXITING) {
+                // the handler never knew it was inside
+                if (before == null) {
+                    return null;
+                }
+                before.next = null;
+            } else if (tail.type == UPDATED && e.type == EXITING) {
+                tail.type = EXITING;
+                tail.previous = tail.current = null;
+            } else {
+                tail.next = e;
+            }
+            return this;
+        }
+
+        static int length(Event<?> e) {
+            int length = 0;
+            for (; e != null; e = e.next) {
+                length++;
+            }
+            return length;
+        }
+    }
+}
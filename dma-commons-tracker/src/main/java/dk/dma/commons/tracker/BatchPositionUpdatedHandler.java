@@ -0,0 +1,48 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A position update handler that is notified once per tick of the tracker with all the changes within the area of
+ * interest, instead of once for every changed object. Subscriptions are created the same way as for any other handler.
+ * For asynchronous subscriptions, each batch contains the events that have been queued since the last batch.
+ * 
+ * @author Kasper Nielsen
+ */
+public abstract class BatchPositionUpdatedHandler<T> extends PositionUpdatedHandler<T> {
+
+    /** Never invoked, changes are delivered to {@link #updated(PositionUpdateBatch)}. */
+    @Override
+    protected final void entering(T t, PositionTime positiontime) {}
+
+    /** Never invoked, changes are delivered to {@link #updated(PositionUpdateBatch)}. */
+    @Override
+    protected final void exiting(T t) {}
+
+    /** Never invoked, changes are delivered to {@link #updated(PositionUpdateBatch)}. */
+    @Override
+    protected final void updated(T t, PositionTime previous, PositionTime current) {}
+
+    /**
+     * Invoked with all objects that entered, exited or were updated within the area of interest. Never invoked with
+     * an empty batch.
+     * 
+     * @param batch
+     *            the changes
+     */
+    protected abstract void updated(PositionUpdateBatch<? extends T> batch);
+}
@@ -0,0 +1,131 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * The changes published by the most recent ticks of a tracker that had any changes. The maps and collections of each
+ * tick are kept as they are, they are never modified after the tick has completed.
+ *
+ * @author Kasper Nielsen
+ */
+final class ChangeJournal<T> {
+
+    /** The maximum number of ticks kept. */
+    final int capacity;
+
+    /** The ticks, oldest first. */
+    private final ArrayDeque<Tick<T>> ticks = new ArrayDeque<>();
+
+    /** All changes published after this version are in the journal. */
+    private long since;
+
+    /** The version of the last tick added. */
+    private long version;
+
+    ChangeJournal(int capacity, long version) {
+        this.capacity = capacity;
+        this.since = version;
+        this.version = version;
+    }
+
+    /**
+     * Adds the changes of a tick, discarding the changes of the oldest tick if the journal is full.
+     *
+     * @param version
+     *            the version of the tick
+     * @param updates
+     *            the targets published in the tick and their position
+     * @param removed
+     *            the targets removed in the tick
+     */
+    synchronized void add(long version, Map<T, PositionTime> updates, Collection<T> removed) {
+        if (!updates.isEmpty() || !removed.isEmpty()) {
+            if (ticks.size() == capacity) {
+                since = ticks.removeFirst().version;
+            }
+            ticks.addLast(new Tick<>(version, updates, removed));
+        }
+        this.version = version;
+    }
+
+    /**
+     * Returns the changes published after the specified version.
+     *
+     * @param version
+     *            the version
+     * @return the changes, or null if the journal does not have all changes after the version
+     */
+    ChangeSet<T> changesSince(long version) {
+        ArrayList<Tick<T>> list = new ArrayList<>();
+        long current;
+        synchronized (this) {
+            if (version < since || version > this.version) {
+                return null;
+            }
+            current = this.version;
+            for (Tick<T> t : ticks) {
+                if (t.version > version) {
+                    list.add(t);
+                }
+            }
+        }
+        HashMap<T, PositionTime> updated = new HashMap<>();
+        HashSet<T> removed = new HashSet<>();
+        for (Tick<T> t : list) {
+            for (T r : t.removed) {
+                updated.remove(r);
+                removed.add(r);
+            }
+            for (Map.Entry<T, PositionTime> e : t.updates.entrySet()) {
+                removed.remove(e.getKey());
+                updated.put(e.getKey(), e.getValue());
+            }
+        }
+        return new ChangeSet<>(current, false, updated, removed);
+    }
+
+    /** Returns the version of the last tick added. */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /** The changes of a single tick. */
+    static final class Tick<T> {
+
+        /** The targets removed in the tick. */
+        final Collection<T> removed;
+
+        /** The targets published in the tick and their position. */
+        final Map<T, PositionTime> updates;
+
+        /** The version of the tick. */
+        final long version;
+
+        Tick(long version, Map<T, PositionTime> updates, Collection<T> removed) {
+            this.version = version;
+            this.updates = updates;
+            this.removed = removed;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * The changes of a {@link PositionTracker} since a given version, as returned by
+ * {@link PositionTracker#changesSince(long)}. Pass {@link #getVersion()} to the next invocation of
+ * <code>changesSince</code> to receive the changes following this change set.
+ *
+ * @author Kasper Nielsen
+ */
+public final class ChangeSet<T> {
+
+    /** Whether or not this change set contains all targets instead of the changes since a version. */
+    private final boolean full;
+
+    /** The targets that have been removed. */
+    private final Set<T> removed;
+
+    /** The targets that have been updated and their latest published position. */
+    private final Map<T, PositionTime> updated;
+
+    /** The version of the tracker this change set brings the receiver up to. */
+    private final long version;
+
+    ChangeSet(long version, boolean full, Map<T, PositionTime> updated, Set<T> removed) {
+        this.version = version;
+        this.full = full;
+        this.updated = Collections.unmodifiableMap(updated);
+        this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    /**
+     * Returns the targets that have been removed since the requested version. Always empty for full change sets.
+     *
+     * @return the targets that have been removed
+     */
+    public Set<T> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns the targets that have been updated since the requested version and their latest published position. For
+     * full change sets this is every published target.
+     *
+     * @return the targets that have been updated and their position
+     */
+    public Map<T, PositionTime> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Returns the version to pass to {@link PositionTracker#changesSince(long)} to receive the following changes.
+     *
+     * @return the version of this change set
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns whether or not this change set contains the position of every target, because the changes since the
+     * requested version are no longer in the change journal. Receivers should discard all targets they know of that
+     * are not in a full change set.
+     *
+     * @return whether or not this is a full change set
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "ChangeSet [version=" + version + ", full=" + full + ", updated=" + updated.size() + ", removed="
+                + removed.size() + "]";
+    }
+}
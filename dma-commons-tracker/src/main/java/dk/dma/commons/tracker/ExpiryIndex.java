@@ -0,0 +1,183 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * An index of targets by the time they were last updated, used for evicting targets that have stopped reporting. Time
+ * is divided into buckets (a timing wheel), and each target is kept in the bucket of the time it was last updated. A
+ * target is only moved to another bucket the first time it is updated within a new bucket. So expiring targets only
+ * visits the buckets that are older than the time to live, and never targets that are still reporting.
+ *
+ * @author Kasper Nielsen
+ */
+final class ExpiryIndex<T> {
+
+    /** The number of buckets the time to live is divided into. */
+    static final int BUCKETS_PER_TIME_TO_LIVE = 16;
+
+    /** The start time of the bucket of each target. */
+    private final ConcurrentHashMap<T, Long> bucketOf = new ConcurrentHashMap<>();
+
+    /** All non-empty buckets keyed by their start time in nanoseconds. */
+    private final ConcurrentHashMap<Long, Set<T>> buckets = new ConcurrentHashMap<>();
+
+    private void add(final T t, Long bucket) {
+        buckets.compute(bucket, new BiFunction<Long, Set<T>, Set<T>>() {
+            public Set<T> apply(Long key, Set<T> set) {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet();
+                }
+                set.add(t);
+                return set;
+            }
+        });
+    }
+
+    /**
+     * Invokes the callback for every target that might have expired. The callback must verify that the target has not
+     * been updated since with {@link #isIn(Object, long)} while holding the lock of the target.
+     *
+     * @param now
+     *            the current time in nanoseconds
+     * @param timeToLiveNanos
+     *            the time to live in nanoseconds
+     * @param callback
+     *            invoked with each target and the bucket it was found in
+     */
+    void expire(long now, long timeToLiveNanos, ExpiryCallback<T> callback) {
+        long resolution = resolution(timeToLiveNanos);
+        for (Map.Entry<Long, Set<T>> e : buckets.entrySet()) {
+            long bucket = e.getKey();
+            // all targets in the bucket were last updated before bucket + resolution
+            if (bucket + resolution <= now - timeToLiveNanos) {
+                for (T t : e.getValue()) {
+                    callback.expired(t, bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether or not any target might have expired, that is, whether or not {@link #expire} would invoke its
+     * callback.
+     *
+     * @param now
+     *            the current time in nanoseconds
+     * @param timeToLiveNanos
+     *            the time to live in nanoseconds
+     * @return whether or not any target might have expired
+     */
+    boolean hasExpired(long now, long timeToLiveNanos) {
+        long resolution = resolution(timeToLiveNanos);
+        for (long bucket : buckets.keySet()) {
+            if (bucket + resolution <= now - timeToLiveNanos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether or not the specified target is still in the specified bucket.
+     *
+     * @param t
+     *            the target
+     * @param bucket
+     *            the bucket
+     * @return whether or not the target is still in the bucket
+     */
+    boolean isIn(T t, long bucket) {
+        Long b = bucketOf.get(t);
+        return b != null && b.longValue() == bucket;
+    }
+
+    /**
+     * Removes the specified target from the index. Must be invoked while holding the lock of the target.
+     *
+     * @param t
+     *            the target
+     */
+    void remove(T t) {
+        Long bucket = bucketOf.remove(t);
+        if (bucket != null) {
+            remove(t, bucket);
+        }
+    }
+
+    private void remove(final T t, Long bucket) {
+        buckets.computeIfPresent(bucket, new BiFunction<Long, Set<T>, Set<T>>() {
+            public Set<T> apply(Long key, Set<T> set) {
+                set.remove(t);
+                return set.isEmpty() ? null : set;
+            }
+        });
+    }
+
+    /**
+     * Records that the specified target has been updated. Must be invoked while holding the lock of the target.
+     *
+     * @param t
+     *            the target
+     * @param now
+     *            the current time in nanoseconds
+     * @param timeToLiveNanos
+     *            the time to live in nanoseconds
+     */
+    void touch(T t, long now, long timeToLiveNanos) {
+        long resolution = resolution(timeToLiveNanos);
+        long bucket = now - Math.floorMod(now, resolution);
+        Long previous = bucketOf.get(t);
+        if (previous == null || previous.longValue() != bucket) {
+            Long b = bucket;
+            bucketOf.put(t, b);
+            if (previous != null) {
+                remove(t, previous);
+            }
+            add(t, b);
+        }
+    }
+
+    /**
+     * Returns the number of targets in the index.
+     *
+     * @return the number of targets in the index
+     */
+    int size() {
+        return bucketOf.size();
+    }
+
+    private static long resolution(long timeToLiveNanos) {
+        return Math.max(1, timeToLiveNanos / BUCKETS_PER_TIME_TO_LIVE);
+    }
+
+    /** A callback for targets that might have expired. */
+    interface ExpiryCallback<T> {
+
+        /**
+         * Invoked for a target that might have expired.
+         *
+         * @param t
+         *            the target
+         * @param bucket
+         *            the bucket the target was found in
+         */
+        void expired(T t, long bucket);
+    }
+}
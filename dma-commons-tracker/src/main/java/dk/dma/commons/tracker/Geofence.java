@@ -0,0 +1,429 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.List;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Polygon;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A region that subscriptions test positions against, together with a bounding box that always contains it. Used for
+ * the entry shape of subscriptions, and for the exit shape, which is the area of interest expanded by the slack of the
+ * subscription.
+ * <p>
+ * Geofences created with {@link #of(Area)} are compiled for fast containment tests. Positions outside of the bounding
+ * box are rejected with a few comparisons. For circles and polygons positions are then tested with a planar
+ * approximation, and only positions close to the edge, where the approximation might be wrong, are tested with the
+ * exact geodesic test of the area.
+ *
+ * @author Kasper Nielsen
+ */
+abstract class Geofence {
+
+    /** The mean radius of the earth in meters. */
+    static final double EARTH_RADIUS = 6371008.8;
+
+    /** Circles further away from the poles than this latitude are compiled. */
+    static final double MAX_COMPILED_LATITUDE = 75;
+
+    /** Circles with a radius in meters of at most this are compiled. */
+    static final double MAX_COMPILED_RADIUS = 500000;
+
+    /** The relative error of the planar approximation of distances used for compiled circles. */
+    static final double PLANAR_TOLERANCE = 0.05;
+
+    /** The northern edge of the bounding box. */
+    final double maxLat;
+
+    /** The eastern edge of the bounding box, less than the western edge if the box crosses the date line. */
+    final double maxLon;
+
+    /** The southern edge of the bounding box. */
+    final double minLat;
+
+    /** The western edge of the bounding box. */
+    final double minLon;
+
+    /**
+     * Creates a new geofence with the specified bounding box expanded by a margin. The margin is converted to degrees
+     * of longitude at the latitude furthest away from equator, and if the expanded box contains a pole it covers all
+     * longitudes.
+     */
+    Geofence(double minLat, double maxLat, double minLon, double maxLon, double margin) {
+        this.minLat = Math.max(-90, minLat - margin);
+        this.maxLat = Math.min(90, maxLat + margin);
+        double maxAbsLat = Math.max(Math.abs(minLat), Math.abs(maxLat)) + margin;
+        double lonMargin = margin == 0 ? 0 : maxAbsLat >= 90 ? 360 : margin / Math.cos(Math.toRadians(maxAbsLat));
+        double width = maxLon - minLon;
+        if (lonMargin > 0 && (width < 0 ? width + 360 : width) + 2 * lonMargin >= 360) {
+            this.minLon = -180;
+            this.maxLon = 180;
+        } else {
+            this.minLon = minLon - lonMargin < -180 ? minLon - lonMargin + 360 : minLon - lonMargin;
+            this.maxLon = maxLon + lonMargin > 180 ? maxLon + lonMargin - 360 : maxLon + lonMargin;
+        }
+    }
+
+    /**
+     * Returns whether or not the specified position is within the bounding box.
+     *
+     * @param p
+     *            the position to test
+     * @return whether or not the position is within the bounding box
+     */
+    final boolean boundingBoxContains(Position p) {
+        double lat = p.getLatitude();
+        double lon = p.getLongitude();
+        if (lat < minLat || lat > maxLat) {
+            return false;
+        }
+        return minLon <= maxLon ? minLon <= lon && lon <= maxLon : minLon <= lon || lon <= maxLon;
+    }
+
+    /**
+     * Returns whether or not the specified position is within the region.
+     *
+     * @param p
+     *            the position to test
+     * @return whether or not the position is within the region
+     */
+    abstract boolean contains(Position p);
+
+    /**
+     * Returns a geofence that contains every position within the specified distance of an area. Circles are expanded
+     * by increasing the radius. Bounding boxes and polygons are expanded by testing the distance to the nearest edge
+     * of positions that are outside of the area but within the expanded bounding box.
+     *
+     * @param area
+     *            the area to expand
+     * @param slack
+     *            the distance in meters to expand the area with
+     * @return the expanded geofence
+     * @throws UnsupportedOperationException
+     *             if the slack is positive and the area is not a circle, bounding box or polygon
+     */
+    static Geofence expand(Area area, double slack) {
+        if (slack == 0) {
+            return of(area);
+        } else if (area instanceof Circle) {
+            Circle c = (Circle) area;
+            return of(c.withRadius(c.getRadius() + slack));
+        } else if (area instanceof BoundingBox) {
+            BoundingBox bb = (BoundingBox) area;
+            double[] latitudes = { bb.getMinLat(), bb.getMinLat(), bb.getMaxLat(), bb.getMaxLat() };
+            double[] longitudes = { bb.getMinLon(), bb.getMaxLon(), bb.getMaxLon(), bb.getMinLon() };
+            return new Buffered(area, latitudes, longitudes, slack);
+        } else if (area instanceof Polygon) {
+            List<Position> vertices = ((Polygon) area).getVertices();
+            return new Buffered(area, latitudes(vertices), longitudes(vertices), slack);
+        }
+        throw new UnsupportedOperationException("Slack is only supported for circles, bounding boxes and polygons, was "
+                + area.getClass().getName());
+    }
+
+    /** Returns the latitudes of the specified vertices. */
+    private static double[] latitudes(List<Position> vertices) {
+        double[] result = new double[vertices.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = vertices.get(i).getLatitude();
+        }
+        return result;
+    }
+
+    /** Returns the longitudes of the specified vertices. */
+    private static double[] longitudes(List<Position> vertices) {
+        double[] result = new double[vertices.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = vertices.get(i).getLongitude();
+        }
+        return result;
+    }
+
+    /** Returns the difference between two longitudes in the range [-180, 180). */
+    static double longitudeDifference(double longitude, double from) {
+        double d = (longitude - from) % 360;
+        return d >= 180 ? d - 360 : d < -180 ? d + 360 : d;
+    }
+
+    /**
+     * Returns a geofence compiled from the specified area. The geofence contains exactly the same positions as the
+     * area.
+     *
+     * @param area
+     *            the area
+     * @return a geofence compiled from the area
+     */
+    static Geofence of(Area area) {
+        if (area instanceof Circle) {
+            Circle c = (Circle) area;
+            double radius = Math.toDegrees(c.getRadius() / EARTH_RADIUS);
+            if (c.getRadius() <= MAX_COMPILED_RADIUS
+                    && Math.abs(c.getCenter().getLatitude()) + radius <= MAX_COMPILED_LATITUDE) {
+                return new CompiledCircle(c, radius);
+            }
+        } else if (area instanceof Polygon) {
+            List<Position> vertices = ((Polygon) area).getVertices();
+            return new CompiledPolygon(area, latitudes(vertices), longitudes(vertices));
+        }
+        return new Delegating(area, area.getBoundingBox());
+    }
+
+    /** Returns the squared planar distance in degrees from the origin to the line segment from a to b. */
+    static double distanceSquared(double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double length = dx * dx + dy * dy;
+        double f = length == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / length));
+        double x = ax + f * dx;
+        double y = ay + f * dy;
+        return x * x + y * y;
+    }
+
+    /**
+     * An area and every position within a fixed distance of its edges. Distances to the edges are measured in an
+     * equirectangular projection centered at the position being tested, with edges being straight lines between the
+     * vertices in latitude/longitude. Which is accurate for any distance that is small compared to the radius of the
+     * earth.
+     */
+    static final class Buffered extends Geofence {
+
+        /** The area being expanded. */
+        private final Geofence area;
+
+        /** The latitudes of the vertices. */
+        private final double[] latitudes;
+
+        /** The longitudes of the vertices. */
+        private final double[] longitudes;
+
+        /** The slack in degrees of latitude. */
+        private final double slackDegrees;
+
+        Buffered(Area area, double[] latitudes, double[] longitudes, double slack) {
+            this(area, latitudes, longitudes, Math.toDegrees(slack / EARTH_RADIUS), area.getBoundingBox());
+        }
+
+        private Buffered(Area area, double[] latitudes, double[] longitudes, double slackDegrees, BoundingBox bb) {
+            super(bb.getMinLat(), bb.getMaxLat(), bb.getMinLon(), bb.getMaxLon(), slackDegrees);
+            this.area = of(area);
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.slackDegrees = slackDegrees;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean contains(Position p) {
+            if (!boundingBoxContains(p)) {
+                return false;
+            } else if (area.contains(p)) {
+                return true;
+            }
+            double lat = p.getLatitude();
+            double lon = p.getLongitude();
+            double cos = Math.cos(Math.toRadians(lat));
+            double limit = slackDegrees * slackDegrees;
+            for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+                // the edge from a to b with the position at the origin
+                double ax = longitudeDifference(longitudes[j], lon) * cos;
+                double bx = ax + longitudeDifference(longitudes[i], longitudes[j]) * cos;
+                if (distanceSquared(ax, latitudes[j] - lat, bx, latitudes[i] - lat) <= limit) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A compiled circle. Distances are approximated in an equirectangular projection at the mean latitude of the
+     * center and the position, which is accurate to within {@link #PLANAR_TOLERANCE} for the circles that are
+     * compiled. Only positions with an approximated distance within the tolerance of the radius are tested exactly.
+     */
+    static final class CompiledCircle extends Geofence {
+
+        /** The circle. */
+        private final Circle circle;
+
+        /** The latitude of the center. */
+        private final double latitude;
+
+        /** The longitude of the center. */
+        private final double longitude;
+
+        /** Positions with a squared approximated distance in degrees below this are inside. */
+        private final double inside;
+
+        /** Positions with a squared approximated distance in degrees above this are outside. */
+        private final double outside;
+
+        CompiledCircle(Circle circle, double radiusDegrees) {
+            super(circle.getCenter().getLatitude(), circle.getCenter().getLatitude(), circle.getCenter().getLongitude(),
+                    circle.getCenter().getLongitude(), radiusDegrees * (1 + PLANAR_TOLERANCE));
+            this.circle = circle;
+            this.latitude = circle.getCenter().getLatitude();
+            this.longitude = circle.getCenter().getLongitude();
+            this.inside = Math.pow(radiusDegrees * (1 - PLANAR_TOLERANCE), 2);
+            this.outside = Math.pow(radiusDegrees * (1 + PLANAR_TOLERANCE), 2);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean contains(Position p) {
+            if (!boundingBoxContains(p)) {
+                return false;
+            }
+            double y = p.getLatitude() - latitude;
+            double x = longitudeDifference(p.getLongitude(), longitude)
+                    * Math.cos(Math.toRadians((p.getLatitude() + latitude) / 2));
+            double d = x * x + y * y;
+            return d <= inside || d < outside && circle.contains(p);
+        }
+    }
+
+    /**
+     * A compiled polygon. Positions are tested with a planar ray casting test in latitude/longitude. But if the
+     * position is within the tolerance of an edge, the position is tested with the polygon itself instead. The
+     * tolerance of each edge is twice the distance between the midpoint of the great circle between the two vertices
+     * and the midpoint of the straight line between them, so edges are correctly classified whether the polygon
+     * interprets them as great circles or as straight lines. Like the polygon, longitudes are not wrapped around the
+     * date line. An edge crossing the date line is a straight line the long way around the earth, far from its great
+     * circle, so positions anywhere near it are tested with the polygon itself.
+     */
+    static final class CompiledPolygon extends Geofence {
+
+        /** The smallest tolerance in degrees of any edge. */
+        static final double MIN_TOLERANCE = 1e-5;
+
+        /** The polygon. */
+        private final Area area;
+
+        /** The latitudes of the vertices. */
+        private final double[] latitudes;
+
+        /** The longitudes of the vertices. */
+        private final double[] longitudes;
+
+        /** The squared tolerance in degrees of the edge ending at each vertex. */
+        private final double[] tolerances;
+
+        CompiledPolygon(Area area, double[] latitudes, double[] longitudes) {
+            this(area, latitudes, longitudes, tolerances(latitudes, longitudes));
+        }
+
+        /** The bounding box is expanded by the tolerance, as great circle edges might bulge outside of it. */
+        private CompiledPolygon(Area area, double[] latitudes, double[] longitudes, double[] tolerances) {
+            this(area, latitudes, longitudes, tolerances, area.getBoundingBox());
+        }
+
+        private CompiledPolygon(Area area, double[] latitudes, double[] longitudes, double[] tolerances,
+                BoundingBox bb) {
+            super(bb.getMinLat(), bb.getMaxLat(), bb.getMinLon(), bb.getMaxLon(), Math.sqrt(max(tolerances)));
+            this.area = area;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.tolerances = tolerances;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean contains(Position p) {
+            if (!boundingBoxContains(p)) {
+                return false;
+            }
+            double lat = p.getLatitude();
+            double lon = p.getLongitude();
+            double cos = Math.cos(Math.toRadians(lat));
+            boolean inside = false;
+            for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+                // the edge from a to b with the position at the origin
+                double ax = longitudes[j] - lon;
+                double ay = latitudes[j] - lat;
+                double bx = longitudes[i] - lon;
+                double by = latitudes[i] - lat;
+                if (distanceSquared(ax * cos, ay, bx * cos, by) <= tolerances[i]) {
+                    return area.contains(p); // too close to the edge
+                }
+                if ((ay > 0) != (by > 0) && 0 < ax + (bx - ax) * -ay / (by - ay)) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        private static double max(double[] values) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (double v : values) {
+                max = Math.max(max, v);
+            }
+            return max;
+        }
+
+        /** Returns the squared tolerance of the edge ending at each vertex. */
+        private static double[] tolerances(double[] latitudes, double[] longitudes) {
+            double[] tolerances = new double[latitudes.length];
+            for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+                tolerances[i] = Math.pow(2 * deviation(latitudes[j], longitudes[j], latitudes[i], longitudes[i])
+                        + MIN_TOLERANCE, 2);
+            }
+            return tolerances;
+        }
+
+        /**
+         * Returns the planar distance in degrees between the midpoint of the great circle and the midpoint of the
+         * straight line between two vertices.
+         */
+        private static double deviation(double lat1, double lon1, double lat2, double lon2) {
+            double phi1 = Math.toRadians(lat1);
+            double phi2 = Math.toRadians(lat2);
+            double lambda1 = Math.toRadians(lon1);
+            double lambda2 = Math.toRadians(lon2);
+            double x = Math.cos(phi1) * Math.cos(lambda1) + Math.cos(phi2) * Math.cos(lambda2);
+            double y = Math.cos(phi1) * Math.sin(lambda1) + Math.cos(phi2) * Math.sin(lambda2);
+            double z = Math.sin(phi1) + Math.sin(phi2);
+            double norm = Math.sqrt(x * x + y * y + z * z);
+            if (norm < 1e-9) {
+                return 360; // antipodal vertices, always test exactly
+            }
+            double midLat = Math.toDegrees(Math.asin(z / norm));
+            double midLon = Math.toDegrees(Math.atan2(y, x));
+            double dy = midLat - (lat1 + lat2) / 2;
+            double dx = longitudeDifference(midLon, (lon1 + lon2) / 2) * Math.cos(Math.toRadians(midLat));
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    /** A geofence that delegates to an area. */
+    static final class Delegating extends Geofence {
+
+        /** The area to delegate to. */
+        private final Area area;
+
+        Delegating(Area area, BoundingBox bb) {
+            super(bb.getMinLat(), bb.getMaxLat(), bb.getMinLon(), bb.getMaxLon(), 0);
+            this.area = area;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean contains(Position p) {
+            return area.contains(p);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A spatial index that divides the world into a grid of fixed size latitude/longitude cells. Each cell holds the set
+ * of targets whose latest position lies within it. The index is kept up to date incrementally by the tracker whenever
+ * a target is updated.
+ *
+ * @author Kasper Nielsen
+ */
+final class GridIndex<T> {
+
+    /**
+     * The smallest radius of curvature of the WGS84 ellipsoid in meters. Used for converting distances to angles, so
+     * that bounding boxes are never too small, and lower bounds of distances are never too large.
+     */
+    static final double MIN_RADIUS = 6335439;
+
+    /** The size of each cell in degrees. */
+    private final double cellSize;
+
+    /** The number of cells along the latitude axis. */
+    private final int latCells;
+
+    /** The number of cells along the longitude axis. */
+    private final int lonCells;
+
+    /** All non-empty cells, keyed by {@link #cellOf(double, double)}. */
+    private final ConcurrentHashMap<Long, Set<T>> cells = new ConcurrentHashMap<>();
+
+    GridIndex(double cellSize) {
+        if (!(cellSize > 0 && cellSize <= 90)) {
+            throw new IllegalArgumentException("Cell size must be greater than 0 and at most 90 degrees, was "
+                    + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.latCells = (int) Math.ceil(180 / cellSize);
+        this.lonCells = (int) Math.ceil(360 / cellSize);
+    }
+
+    /**
+     * Adds the specified target to the cell containing the specified position.
+     *
+     * @param t
+     *            the target
+     * @param p
+     *            the position of the target
+     */
+    void add(final T t, Position p) {
+        cells.compute(cellOf(p), new BiFunction<Long, Set<T>, Set<T>>() {
+            public Set<T> apply(Long key, Set<T> set) {
+                if (set == null) {
+                    set = ConcurrentHashMap.newKeySet();
+                }
+                set.add(t);
+                return set;
+            }
+        });
+    }
+
+    /**
+     * Returns the key of the cell containing the specified position.
+     *
+     * @param latitude
+     *            the latitude of the position
+     * @param longitude
+     *            the longitude of the position
+     * @return the key of the cell
+     */
+    long cellOf(double latitude, double longitude) {
+        return key(latIndex(latitude), lonIndex(longitude));
+    }
+
+    long cellOf(Position p) {
+        return cellOf(p.getLatitude(), p.getLongitude());
+    }
+
+    /**
+     * Returns the keys of all cells that overlap the bounding box of the specified geofence.
+     *
+     * @param fence
+     *            the geofence
+     * @param maxCells
+     *            the maximum number of cells to return
+     * @return the keys of all cells that overlap the bounding box, or null if there are more than the specified
+     *         maximum number of cells
+     */
+    long[] cellsOverlapping(Geofence fence, int maxCells) {
+        int latFrom = latIndex(fence.minLat);
+        int lonFrom = lonIndex(fence.minLon);
+        int latCount = latIndex(fence.maxLat) - latFrom + 1;
+        int lonCount = lonCount(lonFrom, lonIndex(fence.maxLon));
+        if ((long) latCount * lonCount > maxCells) {
+            return null;
+        }
+        long[] result = new long[latCount * lonCount];
+        for (int i = 0; i < latCount; i++) {
+            for (int j = 0; j < lonCount; j++) {
+                result[i * lonCount + j] = key(latFrom + i, (lonFrom + j) % lonCells);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether or not the specified shape is known to cover the cell with the specified indexes entirely. In
+     * which case targets in the cell do not need to be tested individually. This is only tested for convex shapes, for
+     * any other kind of shape we always return false.
+     */
+    private static boolean covers(Area shape, BoundingBox bb, double minLat, double minLon, double maxLat,
+            double maxLon) {
+        if (shape instanceof BoundingBox) {
+            return bb.getMinLat() <= minLat && maxLat <= bb.getMaxLat() && bb.getMinLon() <= minLon
+                    && maxLon <= bb.getMaxLon();
+        } else if (shape instanceof Circle) {
+            // for cells smaller than a hemisphere the point furthest away from the center is always a corner
+            return shape.contains(Position.create(minLat, minLon)) && shape.contains(Position.create(minLat, maxLon))
+                    && shape.contains(Position.create(maxLat, minLon))
+                    && shape.contains(Position.create(maxLat, maxLon));
+        }
+        return false;
+    }
+
+    /**
+     * Returns the eastern edge of the specified column of cells. Columns outside of the grid wraps around, so for
+     * example the eastern edge of column -1 is -180 and the eastern edge of column {@code lonCells} is 180 plus the
+     * width of the first column.
+     */
+    private double eastEdge(int column) {
+        return Math.floorDiv(column, lonCells) * 360 + Math.min(180, (Math.floorMod(column, lonCells) + 1) * cellSize
+                - 180);
+    }
+
+    /**
+     * Invokes the callback for every target within the specified area. Only the cells that overlap the bounding box of
+     * the area are visited, and targets are only tested individually in cells that are not entirely covered by the
+     * area.
+     *
+     * @param shape
+     *            the area of interest
+     * @param positions
+     *            the current position of all targets
+     * @param block
+     *            the callback
+     */
+    void forEachWithinArea(final Area shape, TargetStore<T> positions, BiConsumer<T, PositionTime> block) {
+        final BoundingBox bb = shape.getBoundingBox();
+        int lonFrom = lonIndex(bb.getMinLon());
+        int lonCount = lonCount(lonFrom, lonIndex(bb.getMaxLon()));
+        forEachWithin(latIndex(bb.getMinLat()), latIndex(bb.getMaxLat()), lonFrom, lonCount, new Region() {
+            public boolean contains(Position p) {
+                return shape.contains(p);
+            }
+
+            public boolean covers(double minLat, double minLon, double maxLat, double maxLon) {
+                return GridIndex.covers(shape, bb, minLat, minLon, maxLat, maxLon);
+            }
+        }, positions, block);
+    }
+
+    /**
+     * Invokes the callback for every target within the specified distance of a position. Only the cells that overlap
+     * the bounding box of the circle around the position are visited.
+     *
+     * @param center
+     *            the position to measure from
+     * @param meters
+     *            the maximum geodesic distance in meters
+     * @param positions
+     *            the current position of all targets
+     * @param block
+     *            the callback
+     */
+    void forEachWithinDistance(final Position center, final double meters, TargetStore<T> positions,
+            BiConsumer<T, PositionTime> block) {
+        double lat = center.getLatitude();
+        double lon = center.getLongitude();
+        double radius = meters / MIN_RADIUS;
+        double deltaLat = Math.toDegrees(radius);
+        int lonFrom = 0;
+        int lonCount = lonCells;
+        // if the circle contains a pole it covers all longitudes
+        if (radius < Math.PI / 2 && lat + deltaLat < 90 && lat - deltaLat > -90) {
+            double deltaLon = Math.toDegrees(Math.asin(Math.sin(radius) / Math.cos(Math.toRadians(lat))));
+            if (2 * deltaLon + cellSize < 360) {
+                lonFrom = lonIndex(normalizeLongitude(lon - deltaLon));
+                lonCount = lonCount(lonFrom, lonIndex(normalizeLongitude(lon + deltaLon)));
+            }
+        }
+        forEachWithin(latIndex(lat - deltaLat), latIndex(lat + deltaLat), lonFrom, lonCount, new Region() {
+            public boolean contains(Position p) {
+                return center.geodesicDistanceTo(p) <= meters;
+            }
+
+            public boolean covers(double minLat, double minLon, double maxLat, double maxLon) {
+                return contains(Position.create(minLat, minLon)) && contains(Position.create(minLat, maxLon))
+                        && contains(Position.create(maxLat, minLon)) && contains(Position.create(maxLat, maxLon));
+            }
+        }, positions, block);
+    }
+
+    /** Visits the targets within a region in the specified range of cells. */
+    private void forEachWithin(int latFrom, int latTo, int lonFrom, int lonCount, Region region,
+            TargetStore<T> positions, BiConsumer<T, PositionTime> block) {
+        for (int i = latFrom; i <= latTo; i++) {
+            for (int j = 0; j < lonCount; j++) {
+                int lonIndex = (lonFrom + j) % lonCells;
+                long key = key(i, lonIndex);
+                Set<T> set = cells.get(key);
+                if (set != null && !set.isEmpty()) {
+                    double minLat = i * cellSize - 90;
+                    double minLon = lonIndex * cellSize - 180;
+                    boolean covered = region.covers(minLat, minLon, Math.min(90, minLat + cellSize),
+                            Math.min(180, minLon + cellSize));
+                    for (T t : set) {
+                        PositionTime pt = positions.get(t);
+                        // The target might have moved to another cell since we got the set. In which case we
+                        // either have visited it already or will visit it in the other cell.
+                        if (pt != null && cellOf(pt) == key && (covered || region.contains(pt))) {
+                            block.accept(t, pt);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the targets nearest to the specified position. Cells are visited in rings of increasing distance from the
+     * cell containing the position. The search stops as soon as no unvisited cell can contain a target that is closer
+     * than the k'th nearest target found so far.
+     *
+     * @param center
+     *            the position to measure from
+     * @param k
+     *            the maximum number of targets to return
+     * @param positions
+     *            the current position of all targets
+     * @return the nearest targets and their position, ordered by increasing geodesic distance
+     */
+    LinkedHashMap<T, PositionTime> nearest(Position center, int k, TargetStore<T> positions) {
+        PriorityQueue<Neighbour<T>> nearest = new PriorityQueue<>(k, Neighbour.FURTHEST_FIRST);
+        double lat = center.getLatitude();
+        double lon = center.getLongitude();
+        int latIndex = latIndex(lat);
+        int lonIndex = lonIndex(lon);
+        for (int r = 0;; r++) {
+            for (int i = Math.max(0, latIndex - r); i <= Math.min(latCells - 1, latIndex + r); i++) {
+                if (Math.abs(i - latIndex) == r) { // the top or bottom row of the ring
+                    for (int j = 0; j < Math.min(2 * r + 1, lonCells); j++) {
+                        visit(key(i, Math.floorMod(lonIndex - r + j, lonCells)), center, k, positions, nearest);
+                    }
+                } else if (2 * r <= lonCells) { // the left and right column, unless we have wrapped around
+                    visit(key(i, Math.floorMod(lonIndex - r, lonCells)), center, k, positions, nearest);
+                    if (2 * r < lonCells) {
+                        visit(key(i, Math.floorMod(lonIndex + r, lonCells)), center, k, positions, nearest);
+                    }
+                }
+            }
+            // find a lower bound for the distance to any cell outside of the rings visited so far
+            double bound = Double.POSITIVE_INFINITY;
+            if (latIndex - r > 0) {
+                bound = Math.min(bound, Math.toRadians(lat - ((latIndex - r) * cellSize - 90)));
+            }
+            if (latIndex + r < latCells - 1) {
+                bound = Math.min(bound, Math.toRadians((latIndex + r + 1) * cellSize - 90 - lat));
+            }
+            if (2 * r + 1 < lonCells) {
+                double west = lon - eastEdge(lonIndex - r - 1);
+                double east = eastEdge(lonIndex + r) - lon;
+                // the distance to the nearest meridian bounding the rings
+                double deltaLon = Math.toRadians(Math.min(90, Math.min(west, east)));
+                bound = Math.min(bound, Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(deltaLon)));
+            }
+            if (bound == Double.POSITIVE_INFINITY
+                    || (nearest.size() == k && nearest.peek().distance <= bound * MIN_RADIUS)) {
+                break;
+            }
+        }
+        Neighbour<?>[] sorted = nearest.toArray(new Neighbour<?>[nearest.size()]);
+        Arrays.sort(sorted, Neighbour.FURTHEST_FIRST);
+        LinkedHashMap<T, PositionTime> result = new LinkedHashMap<>();
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            @SuppressWarnings("unchecked")
+            Neighbour<T> n = (Neighbour<T>) sorted[i];
+            result.put(n.target, n.positionTime);
+        }
+        return result;
+    }
+
+    /** Adds the targets in the specified cell to the nearest targets, if they are closer than the current ones. */
+    private void visit(long key, Position center, int k, TargetStore<T> positions,
+            PriorityQueue<Neighbour<T>> nearest) {
+        Set<T> set = cells.get(key);
+        if (set != null) {
+            for (T t : set) {
+                PositionTime pt = positions.get(t);
+                if (pt != null && cellOf(pt) == key) {
+                    double distance = center.geodesicDistanceTo(pt);
+                    if (nearest.size() < k) {
+                        nearest.add(new Neighbour<>(t, pt, distance));
+                    } else if (distance < nearest.peek().distance) {
+                        nearest.poll();
+                        nearest.add(new Neighbour<>(t, pt, distance));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the size of each cell in degrees.
+     *
+     * @return the size of each cell in degrees
+     */
+    double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Returns the number of non-empty cells.
+     *
+     * @return the number of non-empty cells
+     */
+    int getNumberOfCells() {
+        return cells.size();
+    }
+
+    private int latIndex(double latitude) {
+        return Math.max(0, Math.min(latCells - 1, (int) Math.floor((latitude + 90) / cellSize)));
+    }
+
+    /** Returns the number of longitude cells from the first to the last index (inclusive). */
+    private int lonCount(int lonFrom, int lonTo) {
+        // bounding boxes crossing the date line wraps around
+        return lonFrom <= lonTo ? lonTo - lonFrom + 1 : lonCells - lonFrom + lonTo + 1;
+    }
+
+    private int lonIndex(double longitude) {
+        return Math.max(0, Math.min(lonCells - 1, (int) Math.floor((longitude + 180) / cellSize)));
+    }
+
+    /** Returns the specified longitude in the range [-180, 180). */
+    private static double normalizeLongitude(double longitude) {
+        return ((longitude + 180) % 360 + 360) % 360 - 180;
+    }
+
+    /**
+     * Moves the specified target from the cell containing the previous position to the cell containing the new
+     * position. Must be invoked while holding the lock of the target, for example, from a
+     * {@link TargetStore.UpdateListener}.
+     *
+     * @param t
+     *            the target
+     * @param fromLatitude
+     *            the previous latitude of the target or NaN if the target has not been indexed before
+     * @param fromLongitude
+     *            the previous longitude of the target
+     * @param to
+     *            the new position of the target
+     */
+    void move(T t, double fromLatitude, double fromLongitude, Position to) {
+        if (Double.isNaN(fromLatitude)) {
+            add(t, to);
+        } else {
+            long from = cellOf(fromLatitude, fromLongitude);
+            if (from != cellOf(to)) {
+                remove(t, from);
+                add(t, to);
+            }
+        }
+    }
+
+    /**
+     * Removes the specified target from the cell containing the specified position.
+     *
+     * @param t
+     *            the target
+     * @param p
+     *            the position the target was added with
+     */
+    void remove(T t, Position p) {
+        remove(t, cellOf(p));
+    }
+
+    private void remove(final T t, long cell) {
+        cells.computeIfPresent(cell, new BiFunction<Long, Set<T>, Set<T>>() {
+            public Set<T> apply(Long key, Set<T> set) {
+                set.remove(t);
+                return set.isEmpty() ? null : set;
+            }
+        });
+    }
+
+    private static long key(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | lonIndex;
+    }
+
+    /** A region used for visiting targets. */
+    private interface Region {
+
+        /** Returns whether or not the region contains the specified position. */
+        boolean contains(Position p);
+
+        /** Returns whether or not the region contains every position in the specified cell. */
+        boolean covers(double minLat, double minLon, double maxLat, double maxLon);
+    }
+
+    /** A target found by a nearest neighbour search. */
+    private static final class Neighbour<T> {
+
+        /** Orders neighbours by decreasing distance. */
+        static final Comparator<Neighbour<?>> FURTHEST_FIRST = new Comparator<Neighbour<?>>() {
+            public int compare(Neighbour<?> a, Neighbour<?> b) {
+                return Double.compare(b.distance, a.distance);
+            }
+        };
+
+        /** The geodesic distance to the target in meters. */
+        final double distance;
+
+        /** The current position of the target. */
+        final PositionTime positionTime;
+
+        final T target;
+
+        Neighbour(T target, PositionTime positionTime, double distance) {
+            this.target = target;
+            this.positionTime = positionTime;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with buckets of exponentially increasing size. Bucket 0 counts durations below 1
+ * microsecond, bucket i counts durations of at least 2^(i-1) and less than 2^i microseconds, and the last bucket
+ * counts all longer durations.
+ *
+ * @author Kasper Nielsen
+ */
+final class Histogram {
+
+    /** The number of buckets, the last bucket holds durations of 2^(BUCKETS - 2) microseconds (~16 seconds) or more. */
+    static final int BUCKETS = 26;
+
+    /** The number of durations in each bucket. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** The number of recorded durations. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The last recorded duration in nanoseconds. */
+    private volatile long last;
+
+    /** The longest recorded duration in nanoseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+    /** The sum of all recorded durations in nanoseconds. */
+    private final AtomicLong total = new AtomicLong();
+
+    /** Returns the number of recorded durations. */
+    long getCount() {
+        return count.get();
+    }
+
+    /** Returns the last recorded duration in nanoseconds. */
+    long getLast() {
+        return last;
+    }
+
+    /** Returns the longest recorded duration in nanoseconds. */
+    long getMax() {
+        return max.get();
+    }
+
+    /** Returns the sum of all recorded durations in nanoseconds. */
+    long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        last = nanos;
+        for (long m = max.get(); nanos > m && !max.compareAndSet(m, nanos); m = max.get()) {
+            // retry
+        }
+    }
+
+    /** Returns the number of durations in each bucket. */
+    long[] toArray() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buckets.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A target store that keeps {@link PositionTime} objects in concurrent hash maps.
+ *
+ * @author Kasper Nielsen
+ */
+final class MapTargetStore<T> extends TargetStore<T> {
+
+    /** All targets at last update. */
+    private final ConcurrentHashMap<T, PositionTime> latest = new ConcurrentHashMap<>();
+
+    /** All targets that we are currently monitoring. */
+    private final ConcurrentHashMap<T, PositionTime> targets = new ConcurrentHashMap<>();
+
+    /** {@inheritDoc} */
+    @Override
+    void forEach(BiConsumer<T, PositionTime> block) {
+        targets.forEach(block);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    PositionTime get(T t) {
+        return targets.get(t);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    PositionTime getLatest(T t) {
+        return latest.get(t);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    PositionTime publish(T t, final PositionTime pt) {
+        final PositionTime[] previous = new PositionTime[1];
+        // hold the lock of the target, so we never publish a target that is being removed
+        targets.computeIfPresent(t, new BiFunction<T, PositionTime, PositionTime>() {
+            public PositionTime apply(T t, PositionTime current) {
+                previous[0] = latest.put(t, pt);
+                return current;
+            }
+        });
+        return previous[0];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean remove(T t, final RemovalListener<T> listener) {
+        final boolean[] removed = new boolean[1];
+        targets.computeIfPresent(t, new BiFunction<T, PositionTime, PositionTime>() {
+            public PositionTime apply(T t, PositionTime current) {
+                if (!listener.removing(t, current, latest.get(t))) {
+                    return current;
+                }
+                latest.remove(t);
+                removed[0] = true;
+                return null;
+            }
+        });
+        return removed[0];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    int size() {
+        return targets.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void update(T target, PositionTime positionTime, UpdateListener<T> listener) {
+        Updater u = new Updater(listener);
+        u.positionTime = positionTime;
+        targets.compute(target, u);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void updateAll(T[] ts, PositionTime[] positionTimes, int from, int to, UpdateListener<T> listener) {
+        Updater u = new Updater(listener);
+        for (int i = from; i < to; i++) {
+            PositionTime pt = positionTimes[i];
+            PositionTime existing = targets.get(ts[i]);
+            // no need to lock if we already have a later position
+            if (existing == null || existing.getTime() < pt.getTime()) {
+                u.positionTime = pt;
+                targets.compute(ts[i], u);
+            }
+        }
+    }
+
+    /** Keeps the position time with the highest timestamp. Can be reused for updating multiple targets. */
+    final class Updater implements BiFunction<T, PositionTime, PositionTime> {
+
+        private final UpdateListener<T> listener;
+
+        /** The new position. */
+        PositionTime positionTime;
+
+        Updater(UpdateListener<T> listener) {
+            this.listener = listener;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public PositionTime apply(T t, PositionTime existing) {
+            if (existing == null) {
+                listener.updated(t, Double.NaN, Double.NaN, positionTime);
+            } else if (existing.getTime() >= positionTime.getTime()) {
+                return existing;
+            } else {
+                listener.updated(t, existing.getLatitude(), existing.getLongitude(), positionTime);
+            }
+            return positionTime;
+        }
+    }
+}
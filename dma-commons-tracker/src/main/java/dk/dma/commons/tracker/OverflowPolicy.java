@@ -0,0 +1,41 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+/**
+ * What an asynchronous subscription should do when its event queue is full.
+ *
+ * @author Kasper Nielsen
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Blocks the tracker until there is room in the queue. A slow handler stalls the tick, but other subscriptions are
+     * still notified meanwhile. The event is dropped if the tracker is interrupted while blocked. The common fork join
+     * pool, that the tracker notifies subscriptions on, cannot be used for delivering events with this policy.
+     */
+    BLOCK,
+
+    /** Drops the oldest queued event to make room for the new event. */
+    DROP_OLDEST,
+
+    /**
+     * Merges all queued events for the same target into the net change, for example, an update followed by another
+     * update is delivered as a single update from the first previous position to the last current position. The
+     * capacity is the maximum number of targets with queued events, if exceeded the events of the target that has been
+     * waiting the longest are dropped.
+     */
+    COALESCE;
+}
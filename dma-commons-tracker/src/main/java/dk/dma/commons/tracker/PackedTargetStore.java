@@ -0,0 +1,299 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A target store that keeps positions as primitives in fixed size chunks of memory, indexed by a slot id that is
+ * assigned to each target the first time it is updated. {@link PositionTime} objects are only created when a position
+ * is read. Compared to {@link MapTargetStore}, which holds two position objects and two hash map nodes per target,
+ * each target only costs one hash map node, the boxed slot id and a single slot. Slot ids are boxed once, when a target
+ * is added, and never while it is updated or published.
+ * <p>
+ * Each slot has a sequence number that is incremented before and after the slot is written (a seqlock). Readers retry
+ * if the sequence number is odd, or if it changed while the slot was being read. Writers are serialized by holding the
+ * lock of the target in the slot map. The slots of removed targets are reused, so readers verify that the target still
+ * has the same slot after having read it.
+ *
+ * @author Kasper Nielsen
+ */
+final class PackedTargetStore<T> extends TargetStore<T> {
+
+    /** The number of slots in each chunk is 2^CHUNK_SHIFT. */
+    static final int CHUNK_SHIFT = 12;
+
+    /** Mask for finding the index of a slot within its chunk. */
+    static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    /** The number of longs used for each slot. */
+    static final int FIELDS = 7;
+
+    /** The offset of the sequence number of a slot. */
+    static final int SEQ = 0;
+
+    /** The offset of the current position of a slot. */
+    static final int CURRENT = 1;
+
+    /** The offset of the position at the last tick of a slot, the latitude is NaN if it has not been published. */
+    static final int LATEST = 4;
+
+    /** All chunks of slots. Chunks are never moved once created, so writers never loose updates. */
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    /** The number of slots in {@link #freeSlots}, guarded by this. */
+    private int freeCount;
+
+    /** Slots of removed targets that can be reused, guarded by this. */
+    private int[] freeSlots = new int[16];
+
+    /** The next slot to allocate. */
+    private final AtomicInteger nextSlot = new AtomicInteger();
+
+    /** A publisher for each thread, so publishing does not allocate a function for each target. */
+    private final ThreadLocal<Publisher> publishers = new ThreadLocal<Publisher>() {
+        protected Publisher initialValue() {
+            return new Publisher();
+        }
+    };
+
+    /** The slot of each target. */
+    private final ConcurrentHashMap<T, Integer> slots = new ConcurrentHashMap<>();
+
+    /** Allocates a new slot, creating a new chunk if needed. */
+    private int allocate() {
+        synchronized (this) {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            }
+        }
+        int slot = nextSlot.getAndIncrement();
+        int chunk = slot >>> CHUNK_SHIFT;
+        if (chunk >= chunks.length) {
+            synchronized (this) {
+                AtomicLongArray[] c = chunks;
+                if (chunk >= c.length) {
+                    c = Arrays.copyOf(c, Math.max(chunk + 1, c.length * 2));
+                    for (int i = chunks.length; i < c.length; i++) {
+                        c[i] = new AtomicLongArray(FIELDS << CHUNK_SHIFT);
+                    }
+                    chunks = c;
+                }
+            }
+        }
+        return slot;
+    }
+
+    private AtomicLongArray chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void forEach(BiConsumer<T, PositionTime> block) {
+        for (Map.Entry<T, Integer> e : slots.entrySet()) {
+            PositionTime pt = read(e.getValue(), CURRENT);
+            // the slot might have been reused by another target while we read it
+            if (pt != null && e.getValue().equals(slots.get(e.getKey()))) {
+                block.accept(e.getKey(), pt);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    PositionTime get(T t) {
+        return readTarget(t, CURRENT);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    PositionTime getLatest(T t) {
+        return readTarget(t, LATEST);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    PositionTime publish(T t, PositionTime pt) {
+        Publisher p = publishers.get();
+        p.positionTime = pt;
+        slots.computeIfPresent(t, p);
+        PositionTime previous = p.previous;
+        p.positionTime = p.previous = null;
+        return previous;
+    }
+
+    /** Reads the position at the specified offset of the slot of a target. */
+    private PositionTime readTarget(T t, int offset) {
+        Integer slot = slots.get(t);
+        if (slot == null) {
+            return null;
+        }
+        PositionTime pt = read(slot, offset);
+        // the slot might have been reused by another target while we read it
+        return slot.equals(slots.get(t)) ? pt : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    boolean remove(T t, final RemovalListener<T> listener) {
+        final boolean[] removed = new boolean[1];
+        slots.computeIfPresent(t, new BiFunction<T, Integer, Integer>() {
+            public Integer apply(T t, Integer slot) {
+                if (!listener.removing(t, read(slot, CURRENT), read(slot, LATEST))) {
+                    return slot;
+                }
+                release(slot);
+                removed[0] = true;
+                return null;
+            }
+        });
+        return removed[0];
+    }
+
+    /**
+     * Reads the position at the specified offset of a slot.
+     *
+     * @param slot
+     *            the slot to read
+     * @param offset
+     *            the offset of the position within the slot
+     * @return the position, or null if the latitude is NaN
+     */
+    PositionTime read(int slot, int offset) {
+        AtomicLongArray a = chunk(slot);
+        int base = (slot & CHUNK_MASK) * FIELDS;
+        for (;;) {
+            long seq = a.get(base + SEQ);
+            if ((seq & 1) == 0) {
+                double latitude = Double.longBitsToDouble(a.get(base + offset));
+                double longitude = Double.longBitsToDouble(a.get(base + offset + 1));
+                long time = a.get(base + offset + 2);
+                if (a.get(base + SEQ) == seq) {
+                    return Double.isNaN(latitude) ? null : PositionTime.create(latitude, longitude, time);
+                }
+            }
+            Thread.yield(); // a writer is in progress
+        }
+    }
+
+    /** Adds the slot of a removed target to the free slots. */
+    private synchronized void release(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    int size() {
+        return slots.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void update(T target, PositionTime positionTime, UpdateListener<T> listener) {
+        Updater u = new Updater(listener);
+        u.positionTime = positionTime;
+        slots.compute(target, u);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void updateAll(T[] targets, PositionTime[] positionTimes, int from, int to, UpdateListener<T> listener) {
+        Updater u = new Updater(listener);
+        for (int i = from; i < to; i++) {
+            u.positionTime = positionTimes[i];
+            slots.compute(targets[i], u);
+        }
+    }
+
+    /**
+     * Writes a position to the specified offset of a slot. Must only be invoked while holding the lock of the target.
+     */
+    private void write(int slot, int offset, double latitude, double longitude, long time) {
+        AtomicLongArray a = chunk(slot);
+        int base = (slot & CHUNK_MASK) * FIELDS;
+        long seq = a.get(base + SEQ);
+        a.set(base + SEQ, seq + 1);
+        a.set(base + offset, Double.doubleToRawLongBits(latitude));
+        a.set(base + offset + 1, Double.doubleToRawLongBits(longitude));
+        a.set(base + offset + 2, time);
+        a.set(base + SEQ, seq + 2);
+    }
+
+    /** Publishes the current position of a target. Can be reused for publishing multiple targets by a single thread. */
+    final class Publisher implements BiFunction<T, Integer, Integer> {
+
+        /** The position to publish. */
+        PositionTime positionTime;
+
+        /** The previously published position, or null if the target had not been published. */
+        PositionTime previous;
+
+        /** {@inheritDoc} */
+        @Override
+        public Integer apply(T t, Integer slot) {
+            previous = read(slot, LATEST);
+            write(slot, LATEST, positionTime.getLatitude(), positionTime.getLongitude(), positionTime.getTime());
+            return slot;
+        }
+    }
+
+    /** Keeps the position time with the highest timestamp. Can be reused for updating multiple targets. */
+    final class Updater implements BiFunction<T, Integer, Integer> {
+
+        private final UpdateListener<T> listener;
+
+        /** The new position. */
+        PositionTime positionTime;
+
+        Updater(UpdateListener<T> listener) {
+            this.listener = listener;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Integer apply(T t, Integer slot) {
+            if (slot == null) {
+                slot = allocate();
+                write(slot, LATEST, Double.NaN, Double.NaN, 0);
+                write(slot, CURRENT, positionTime.getLatitude(), positionTime.getLongitude(), positionTime.getTime());
+                listener.updated(t, Double.NaN, Double.NaN, positionTime);
+            } else {
+                // we hold the lock so no one else is writing to the slot
+                AtomicLongArray a = chunk(slot);
+                int base = (slot & CHUNK_MASK) * FIELDS;
+                if (a.get(base + CURRENT + 2) < positionTime.getTime()) {
+                    double latitude = Double.longBitsToDouble(a.get(base + CURRENT));
+                    double longitude = Double.longBitsToDouble(a.get(base + CURRENT + 1));
+                    write(slot, CURRENT, positionTime.getLatitude(), positionTime.getLongitude(),
+                            positionTime.getTime());
+                    listener.updated(t, latitude, longitude, positionTime);
+                }
+            }
+            return slot;
+        }
+    }
+}
@@ -16,18 +16,34 @@ package dk.dma.commons.tracker;
 
 import static java.util.Objects.requireNonNull;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
-import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import dk.dma.commons.management.ManagedAttribute;
+import dk.dma.commons.tracker.SubscriptionIndex.Changes;
 import dk.dma.enav.model.geometry.Area;
-import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Position;
 import dk.dma.enav.model.geometry.PositionTime;
 
 /**
@@ -37,20 +53,203 @@ import dk.dma.enav.model.geometry.PositionTime;
  */
 public class PositionTracker<T> {
 
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PositionTracker.class);
+
+    /** Overruns are logged at most once within this number of nanoseconds. */
+    static final long OVERRUN_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /** The default size in degrees of the cells in the spatial index. */
+    public static final double DEFAULT_CELL_SIZE = 0.5;
+
     /** Magic constant. */
     static final int THRESHOLD = 1;
 
-    /** All targets at last update. Must be read via synchronized */
-    private ConcurrentHashMap<T, PositionTime> latest = new ConcurrentHashMap<>();
+    /** Bulk updates with at least this number of targets are split into chunks that are applied in parallel. */
+    static final int BULK_PARALLEL_THRESHOLD = 2048;
+
+    /** A spatial index of all targets, used for area queries. */
+    final GridIndex<T> grid;
+
+    /** All targets that have been updated since the last tick. */
+    final ConcurrentHashMap<T, Boolean> changed = new ConcurrentHashMap<>();
+
+    /** The number of ticks that were run before the end of the update period because of many changes. */
+    private final AtomicLong earlyTicks = new AtomicLong();
+
+    /** The number of targets that have been evicted because they stopped reporting. */
+    private final AtomicLong evicted = new AtomicLong();
+
+    /** The time of the last overrun that was logged. */
+    private volatile long lastOverrunLogged;
+
+    /** The minimum distance in meters a target must move from its published position to be published again. */
+    private volatile double minMovement;
+
+    /** The minimum time in milliseconds between published reports of a target, or 0 for no minimum. */
+    private volatile long minUpdateIntervalMillis;
+
+    /** The number of updated targets published to subscriptions in the last tick. */
+    private volatile int lastTickUpdates;
+
+    /** The number of ticks that took longer than the update period. */
+    private final AtomicLong overruns = new AtomicLong();
+
+    /** The number of targets that have been changed or removed since the start of the last tick. */
+    private final AtomicLong pendingChanges = new AtomicLong();
+
+    /** The total number of updated targets published to subscriptions. */
+    private final AtomicLong publishedUpdates = new AtomicLong();
+
+    /** The number of updates that were dropped because of the minimum movement, or held back by the update interval. */
+    private final AtomicLong suppressedUpdates = new AtomicLong();
+
+    /** Targets whose latest report is held back by the minimum update interval, and the tick they were held back at. */
+    private final ConcurrentHashMap<T, Long> heldBack = new ConcurrentHashMap<>();
+
+    /** The duration of each tick. */
+    private final Histogram tickDurations = new Histogram();
+
+    /** The number of scheduled ticks that were skipped because nothing had changed. */
+    private final AtomicLong skippedTicks = new AtomicLong();
+
+    /** The scheduler started by {@link #scheduleAdaptive(ScheduledExecutorService, int, int)}, or null. */
+    private volatile AdaptiveScheduler scheduler;
+
+    /** An index of targets by the time they were last updated, used for evicting targets that stop reporting. */
+    final ExpiryIndex<T> expiry = new ExpiryIndex<>();
+
+    /** Removes targets unconditionally. */
+    private final Remover remover = new Remover(Long.MIN_VALUE);
+
+    /** All targets that have been removed since the last tick, and their position at the last tick. */
+    final ConcurrentHashMap<T, PositionTime> removed = new ConcurrentHashMap<>();
 
     /** All current subscriptions. */
     final ConcurrentHashMap<PositionUpdatedHandler<? super T>, Subscription<T>> subscriptions = new ConcurrentHashMap<>();
 
-    /** All targets that we are currently monitoring. */
-    private final ConcurrentHashMap<T, PositionTime> targets = new ConcurrentHashMap<>();
+    /** Maps cells of the spatial index to the subscriptions that overlap them. */
+    final SubscriptionIndex<T> subscriptionIndex;
+
+    /**
+     * All targets that we are currently monitoring, and their position at last update. The position at last update is
+     * only modified from within {@link #doRun()}.
+     */
+    private final TargetStore<T> targets;
+
+    /** The recent positions of each target, or null if no history is kept. */
+    private volatile TrackHistory<T> history;
+
+    /** The changes published by the most recent ticks, or null if no change journal is kept. */
+    private volatile ChangeJournal<T> journal;
+
+    /** The time to live of targets in nanoseconds, or 0 if targets are never evicted. */
+    private volatile long timeToLiveNanos;
+
+    /** The version of the tracker, incremented by every tick. Only modified while holding the lock of the tracker. */
+    private volatile long version;
+
+    /** Invoked by the target store, while holding the lock of the target, whenever a target has been updated. */
+    private final TargetStore.UpdateListener<T> onUpdate = new TargetStore.UpdateListener<T>() {
+        public void updated(T t, double previousLatitude, double previousLongitude, PositionTime current) {
+            grid.move(t, previousLatitude, previousLongitude, current);
+            if (changed.put(t, Boolean.TRUE) == null) {
+                AdaptiveScheduler scheduler = PositionTracker.this.scheduler;
+                long pending = pendingChanges.incrementAndGet();
+                if (scheduler != null && pending >= scheduler.changeThreshold) {
+                    scheduler.triggerEarly();
+                }
+            }
+            TrackHistory<T> history = PositionTracker.this.history;
+            if (history != null) {
+                history.add(t, current);
+            }
+            long timeToLiveNanos = PositionTracker.this.timeToLiveNanos;
+            if (timeToLiveNanos > 0) {
+                expiry.touch(t, System.nanoTime(), timeToLiveNanos);
+            }
+        }
+    };
+
+    /** Creates a new tracker with a spatial index of {@value #DEFAULT_CELL_SIZE} degree cells. */
+    public PositionTracker() {
+        this(DEFAULT_CELL_SIZE);
+    }
 
     /**
-     * Invokes the callback for every tracked object within the specified area of interest.
+     * Creates a new tracker.
+     * 
+     * @param cellSize
+     *            the size in degrees of the cells in the spatial index used for area queries. Smaller cells means
+     *            fewer targets visited per query but more cells for large areas
+     * @throws IllegalArgumentException
+     *             if the cell size is not greater than 0 and at most 90
+     */
+    public PositionTracker(double cellSize) {
+        this(cellSize, StorageMode.OBJECTS);
+    }
+
+    /**
+     * Creates a new tracker.
+     * 
+     * @param cellSize
+     *            the size in degrees of the cells in the spatial index used for area queries
+     * @param storageMode
+     *            how the position of each target is stored
+     * @throws IllegalArgumentException
+     *             if the cell size is not greater than 0 and at most 90
+     */
+    public PositionTracker(double cellSize, StorageMode storageMode) {
+        this.grid = new GridIndex<>(cellSize);
+        this.subscriptionIndex = new SubscriptionIndex<>(grid);
+        this.targets = TargetStore.create(requireNonNull(storageMode, "storageMode is null"));
+    }
+
+    /**
+     * Returns the changes published since the specified version. This allows clients to poll for changes instead of
+     * registering a subscription. A client starts by requesting the changes since version 0, and passes the
+     * {@link ChangeSet#getVersion() version} of each change set to the next request. If the changes since the version
+     * are no longer in the change journal, a {@link ChangeSet#isFull() full} change set with the published position of
+     * every target is returned.
+     * 
+     * @param version
+     *            the version returned with the previous change set, or 0
+     * @return the changes since the version
+     * @throws IllegalArgumentException
+     *             if the version is negative
+     * @throws IllegalStateException
+     *             if no change journal is kept
+     * @see #setChangeJournal(int)
+     */
+    public ChangeSet<T> changesSince(long version) {
+        if (version < 0) {
+            throw new IllegalArgumentException("Version must be non-negative, was " + version);
+        }
+        ChangeJournal<T> journal = this.journal;
+        if (journal == null) {
+            throw new IllegalStateException("No change journal is kept, use setChangeJournal to keep one");
+        }
+        ChangeSet<T> result = journal.changesSince(version);
+        if (result == null) {
+            // read the version before the targets, changes made while reading are also in the next change set
+            long current = journal.getVersion();
+            final HashMap<T, PositionTime> all = new HashMap<>();
+            targets.forEach(new BiConsumer<T, PositionTime>() {
+                public void accept(T t, PositionTime pt) {
+                    PositionTime latest = targets.getLatest(t);
+                    if (latest != null) {
+                        all.put(t, latest);
+                    }
+                }
+            });
+            result = new ChangeSet<>(current, true, all, Collections.<T> emptySet());
+        }
+        return result;
+    }
+
+    /**
+     * Invokes the callback for every tracked object within the specified area of interest. Only targets in the cells
+     * of the spatial index that overlap the bounding box of the area are visited.
      * 
      * @param shape
      *            the area of interest
@@ -60,14 +259,71 @@ public class PositionTracker<T> {
     public void forEachWithinArea(final Area shape, final BiConsumer<T, PositionTime> block) {
         requireNonNull(shape, "shape is null");
         requireNonNull(block, "block is null");
-        targets.forEach(THRESHOLD, new BiConsumer<T, PositionTime>() {
-            @Override
-            public void accept(T a, PositionTime b) {
-                if (shape.contains(b)) {
-                    block.accept(a, b);
-                }
-            }
-        });
+        grid.forEachWithinArea(shape, targets, block);
+    }
+
+    /**
+     * Copies the most recent positions in the history of the specified target into the specified arrays, oldest first.
+     * No objects are allocated for the positions.
+     * 
+     * @param target
+     *            the target
+     * @param n
+     *            the maximum number of positions to copy
+     * @param latitudes
+     *            the array to copy the latitudes into
+     * @param longitudes
+     *            the array to copy the longitudes into
+     * @param times
+     *            the array to copy the times into
+     * @return the number of positions copied, 0 if no history is kept for the target
+     * @throws IllegalArgumentException
+     *             if the arrays do not have room for n positions
+     * @see #setHistory(int, long, TimeUnit)
+     */
+    public int getHistory(T target, int n, double[] latitudes, double[] longitudes, long[] times) {
+        checkHistoryArrays(n, latitudes, longitudes, times);
+        TrackHistory<T> history = this.history;
+        return history == null ? 0 : history.copyLast(requireNonNull(target, "target is null"), n, latitudes,
+                longitudes, times);
+    }
+
+    /**
+     * Copies the positions in the history of the specified target that were reported at or after the specified time
+     * into the specified arrays, oldest first. If there are more positions than the length of the latitudes array, only
+     * the most recent positions are copied. No objects are allocated for the positions.
+     * 
+     * @param target
+     *            the target
+     * @param time
+     *            the earliest time of the positions to copy
+     * @param latitudes
+     *            the array to copy the latitudes into
+     * @param longitudes
+     *            the array to copy the longitudes into
+     * @param times
+     *            the array to copy the times into
+     * @return the number of positions copied, 0 if no history is kept for the target
+     * @throws IllegalArgumentException
+     *             if the longitudes or times array does not have room for as many positions as the latitudes array
+     * @see #setHistory(int, long, TimeUnit)
+     */
+    public int getHistorySince(T target, long time, double[] latitudes, double[] longitudes, long[] times) {
+        checkHistoryArrays(latitudes.length, latitudes, longitudes, times);
+        TrackHistory<T> history = this.history;
+        return history == null ? 0 : history.copySince(requireNonNull(target, "target is null"), time, latitudes,
+                longitudes, times);
+    }
+
+    private static void checkHistoryArrays(int n, double[] latitudes, double[] longitudes, long[] times) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must be non-negative, was " + n);
+        }
+        if (latitudes.length < n || longitudes.length < n || times.length < n) {
+            throw new IllegalArgumentException("All arrays must have room for " + n + " positions, latitudes.length = "
+                    + latitudes.length + ", longitudes.length = " + longitudes.length + ", times.length = "
+                    + times.length);
+        }
     }
 
     public PositionTime getLatestIfLaterThan(T target, long time) {
@@ -85,7 +341,151 @@ public class PositionTracker<T> {
      * @return the latest position time updated
      */
     public PositionTime getLatest(T target) {
-        return latest.get(target);
+        return targets.getLatest(target);
+    }
+
+    /**
+     * Returns the number of targets that have been evicted because they have not been updated within the time to live.
+     * 
+     * @return the number of evicted targets
+     */
+    @ManagedAttribute
+    public long getNumberOfEvictedTargets() {
+        return evicted.get();
+    }
+
+    /**
+     * Returns the average duration of a tick in microseconds.
+     * 
+     * @return the average duration of a tick in microseconds, or 0 if no ticks have been run
+     */
+    @ManagedAttribute
+    public long getAverageTickDurationMicros() {
+        long count = tickDurations.getCount();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(tickDurations.getTotal() / count);
+    }
+
+    /**
+     * Returns the average number of updated targets published to subscriptions in each tick.
+     * 
+     * @return the average number of updated targets published in each tick, or 0 if no ticks have been run
+     */
+    @ManagedAttribute
+    public double getAverageUpdatesPerTick() {
+        long count = tickDurations.getCount();
+        return count == 0 ? 0 : (double) publishedUpdates.get() / count;
+    }
+
+    /**
+     * Returns the duration of the last tick in microseconds.
+     * 
+     * @return the duration of the last tick in microseconds
+     */
+    @ManagedAttribute
+    public long getLastTickDurationMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(tickDurations.getLast());
+    }
+
+    /**
+     * Returns the duration of the longest tick in microseconds.
+     * 
+     * @return the duration of the longest tick in microseconds
+     */
+    @ManagedAttribute
+    public long getMaxTickDurationMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(tickDurations.getMax());
+    }
+
+    /**
+     * Returns the number of ticks that have been run before the end of the update period because the change threshold
+     * of an adaptive schedule was reached.
+     * 
+     * @return the number of early ticks
+     */
+    @ManagedAttribute
+    public long getNumberOfEarlyTicks() {
+        return earlyTicks.get();
+    }
+
+    /**
+     * Returns the number of scheduled ticks that took longer than the update period.
+     * 
+     * @return the number of overruns
+     */
+    @ManagedAttribute
+    public long getNumberOfOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * Returns the minimum distance a target must move before its new position is published to subscriptions.
+     * 
+     * @return the minimum movement in meters, or 0 if every change of position is published
+     */
+    public double getMinMovement() {
+        return minMovement;
+    }
+
+    /**
+     * Returns the minimum time between the reports of a target that are published to subscriptions.
+     * 
+     * @param unit
+     *            the unit of the returned value
+     * @return the minimum update interval, or 0 if there is no minimum
+     */
+    public long getMinUpdateInterval(TimeUnit unit) {
+        return unit.convert(minUpdateIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of ticks of an adaptive schedule that have been skipped because nothing had changed.
+     * 
+     * @return the number of skipped ticks
+     */
+    @ManagedAttribute
+    public long getNumberOfSkippedTicks() {
+        return skippedTicks.get();
+    }
+
+    /**
+     * Returns the total number of updated targets that have been published to subscriptions.
+     * 
+     * @return the total number of published updates
+     */
+    @ManagedAttribute
+    public long getNumberOfPublishedUpdates() {
+        return publishedUpdates.get();
+    }
+
+    /**
+     * Returns the number of ticks that have been run.
+     * 
+     * @return the number of ticks
+     */
+    @ManagedAttribute
+    public long getNumberOfTicks() {
+        return tickDurations.getCount();
+    }
+
+    /**
+     * Returns the number of updated targets that were published to subscriptions in the last tick.
+     * 
+     * @return the number of updated targets published in the last tick
+     */
+    @ManagedAttribute
+    public int getNumberOfUpdatesInLastTick() {
+        return lastTickUpdates;
+    }
+
+    /**
+     * Returns the number of updates that were dropped because the target had not moved the minimum movement, or that
+     * were held back because the target reported within the minimum update interval.
+     * 
+     * @return the number of suppressed updates
+     */
+    @ManagedAttribute
+    public long getNumberOfSuppressedUpdates() {
+        return suppressedUpdates.get();
     }
 
     /**
@@ -119,49 +519,430 @@ public class PositionTracker<T> {
         final ConcurrentHashMap<T, PositionTime> result = new ConcurrentHashMap<>();
         forEachWithinArea(shape, new BiConsumer<T, PositionTime>() {
             public void accept(T a, PositionTime b) {
-                if (shape.contains(b)) {
-                    result.put(a, b);
-                }
+                result.put(a, b);
             }
         });
         return result;
     }
 
+    /**
+     * Returns a histogram of the duration of ticks. Element 0 is the number of ticks that took less than 1
+     * microsecond, element i is the number of ticks that took at least 2^(i-1) and less than 2^i microseconds. The
+     * last element is the number of ticks that took even longer.
+     * 
+     * @return a histogram of the duration of ticks
+     */
+    @ManagedAttribute
+    public long[] getTickDurationHistogram() {
+        return tickDurations.toArray();
+    }
+
+    /**
+     * Returns the time to live of targets.
+     * 
+     * @param unit
+     *            the unit of the returned value
+     * @return the time to live of targets, or 0 if targets are never evicted
+     */
+    public long getTimeToLive(TimeUnit unit) {
+        return unit.convert(timeToLiveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the version of the tracker. The version is incremented by every tick.
+     * 
+     * @return the version of the tracker
+     * @see #changesSince(long)
+     */
+    @ManagedAttribute
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Restores the targets in a snapshot written by {@link #writeSnapshot(Path, TargetCodec)}. Targets that have been
+     * updated with a later position than the one in the snapshot keep their current position. The restored targets are
+     * published immediately, and subscriptions start tracking the targets within their area without being notified.
+     * So the handlers of subscriptions that are registered before the snapshot is restored do not receive entering
+     * events for targets that were already in their area when the snapshot was written.
+     * 
+     * @param path
+     *            the file to read the snapshot from
+     * @param codec
+     *            the codec to read targets with
+     * @return the number of targets in the snapshot
+     * @throws IOException
+     *             if the snapshot could not be read
+     */
+    public synchronized int restoreSnapshot(Path path, TargetCodec<? extends T> codec) throws IOException {
+        requireNonNull(path, "path is null");
+        requireNonNull(codec, "codec is null");
+        final ArrayList<T> restored = new ArrayList<>();
+        int count = Snapshot.read(path, codec, new BiConsumer<T, PositionTime>() {
+            public void accept(T t, PositionTime pt) {
+                targets.update(t, pt, onUpdate);
+                restored.add(t);
+            }
+        });
+        HashMap<T, PositionTime> published = new HashMap<>();
+        for (T t : restored) {
+            // unmark the target before reading it, so any concurrent update is picked up by the next tick
+            changed.remove(t);
+            PositionTime pt = targets.get(t);
+            if (pt != null && targets.getLatest(t) == null) {
+                targets.publish(t, pt);
+                published.put(t, pt);
+                for (Subscription<T> s : subscriptions.values()) {
+                    s.restore(t, pt);
+                }
+            } else if (pt != null) {
+                changed.put(t, Boolean.TRUE);
+            }
+        }
+        ChangeJournal<T> journal = this.journal;
+        long version = ++this.version;
+        if (journal != null) {
+            journal.add(version, published, Collections.<T> emptyList());
+        }
+        return count;
+    }
+
+    /**
+     * Returns the targets nearest to the specified position. Only the cells of the spatial index closest to the
+     * position are visited, so the cost of the query depends on the density of targets around the position rather
+     * than on the total number of targets.
+     * 
+     * @param position
+     *            the position to measure from
+     * @param k
+     *            the maximum number of targets to return
+     * @return a map of the nearest targets and their latest position, iterating in order of increasing geodesic
+     *         distance
+     * @throws IllegalArgumentException
+     *             if k is not positive
+     */
+    public Map<T, PositionTime> nearest(Position position, int k) {
+        requireNonNull(position, "position is null");
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive, was " + k);
+        }
+        return grid.nearest(position, k, targets);
+    }
+
+    /**
+     * Removes the specified target from the tracker. Subscriptions that are tracking the target will be notified that
+     * the target is exiting at the next tick. If the target is updated again it is treated as a new target.
+     * 
+     * @param t
+     *            the target to remove
+     * @return whether or not the target was being tracked
+     */
     public boolean remove(T t) {
-        return latest.remove(t) != null;
+        return targets.remove(requireNonNull(t, "target is null"), remover);
     }
 
-    public Future<?> schedule(ScheduledExecutorService ses, int updatePeriodMS) {
+    public Future<?> schedule(ScheduledExecutorService ses, final int updatePeriodMS) {
         return ses.scheduleAtFixedRate(new Runnable() {
             public void run() {
-                doRun();
+                tick(updatePeriodMS);
             }
         }, 0, updatePeriodMS, TimeUnit.MILLISECONDS);
     }
 
-    /** Should be scheduled to run every x second to update handlers. */
-    synchronized void doRun() {
-        ConcurrentHashMap<T, PositionTime> current = new ConcurrentHashMap<>(targets);
-        final Map<T, PositionTime> latest = this.latest;
+    /**
+     * Schedules ticks that adapt to the amount of traffic. Every update period a tick is run, unless no target has been
+     * updated or removed since the last tick. And as soon as the specified number of targets have been changed since
+     * the last tick, a tick is run immediately without waiting for the end of the period. Ticks that take longer than
+     * the update period are logged and counted, see {@link #getNumberOfOverruns()}. Scheduling again cancels the
+     * previous adaptive schedule.
+     * 
+     * @param ses
+     *            the executor to run ticks on
+     * @param updatePeriodMS
+     *            the maximum time in milliseconds between a change and the tick that notifies subscriptions
+     * @param changeThreshold
+     *            the number of changed targets that triggers a tick before the end of the update period
+     * @return a future that can be used to cancel the schedule
+     * @throws IllegalArgumentException
+     *             if the update period or the change threshold is not positive
+     */
+    public Future<?> scheduleAdaptive(ScheduledExecutorService ses, int updatePeriodMS, int changeThreshold) {
+        requireNonNull(ses, "ses is null");
+        if (updatePeriodMS <= 0) {
+            throw new IllegalArgumentException("Update period must be positive, was " + updatePeriodMS);
+        }
+        if (changeThreshold <= 0) {
+            throw new IllegalArgumentException("Change threshold must be positive, was " + changeThreshold);
+        }
+        AdaptiveScheduler s = new AdaptiveScheduler(ses, updatePeriodMS, changeThreshold);
+        s.future = ses.scheduleAtFixedRate(s, updatePeriodMS, updatePeriodMS, TimeUnit.MILLISECONDS);
+        AdaptiveScheduler previous = scheduler;
+        scheduler = s;
+        if (previous != null) {
+            previous.future.cancel(false);
+        }
+        return s.future;
+    }
+
+    /**
+     * Runs a tick, counting and logging it if it takes longer than the specified update period.
+     * 
+     * @param updatePeriodMS
+     *            the update period in milliseconds
+     */
+    void tick(int updatePeriodMS) {
+        long start = System.nanoTime();
+        doRun();
+        long duration = System.nanoTime() - start;
+        if (duration > TimeUnit.MILLISECONDS.toNanos(updatePeriodMS)) {
+            long count = overruns.incrementAndGet();
+            long now = System.nanoTime();
+            if (now - lastOverrunLogged > OVERRUN_LOG_INTERVAL_NANOS || count == 1) {
+                lastOverrunLogged = now;
+                LOG.warn("Tick took " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms, update period is "
+                        + updatePeriodMS + " ms, total number of overruns = " + count);
+            }
+        }
+    }
 
+    /**
+     * Should be scheduled to run every x second to update handlers. Only targets that have been updated since the last
+     * tick are visited, so the cost of a tick is proportional to the number of changed targets.
+     */
+    synchronized void doRun() {
+        final long start = System.nanoTime();
+        pendingChanges.set(0);
+        long timeToLiveNanos = this.timeToLiveNanos;
+        if (timeToLiveNanos > 0) {
+            expiry.expire(System.nanoTime(), timeToLiveNanos, new ExpiryIndex.ExpiryCallback<T>() {
+                public void expired(T t, long bucket) {
+                    if (targets.remove(t, new Remover(bucket))) {
+                        evicted.incrementAndGet();
+                    }
+                }
+            });
+        }
+        // route each change to the subscriptions overlapping the cell of its previous or current position
+        final ConcurrentHashMap<Subscription<T>, Changes<T>> routed = new ConcurrentHashMap<>();
+        // subscriptions tracking removed targets must be notified that they are exiting
+        final ArrayList<T> removedTargets = new ArrayList<>();
+        for (Iterator<Map.Entry<T, PositionTime>> i = removed.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<T, PositionTime> e = i.next();
+            i.remove();
+            removedTargets.add(e.getKey());
+            subscriptionIndex.routeRemoved(e.getKey(), e.getValue(), routed);
+        }
         // We only want to process those that have been updated since last time
         final ConcurrentHashMap<T, PositionTime> updates = new ConcurrentHashMap<>();
-        current.forEach(THRESHOLD, new BiConsumer<T, PositionTime>() {
-            public void accept(T t, PositionTime pt) {
-                PositionTime p = latest.get(t);
-                if (p == null || !p.positionEquals(pt)) {
-                    updates.put(t, pt);
+        final double minMovement = this.minMovement;
+        final long minUpdateIntervalMillis = this.minUpdateIntervalMillis;
+        final boolean filter = minMovement > 0 || minUpdateIntervalMillis > 0;
+        final long minUpdateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minUpdateIntervalMillis);
+        if (minUpdateIntervalNanos == 0) {
+            heldBack.clear();
+        }
+        changed.forEachKey(THRESHOLD, new Consumer<T>() {
+            public void accept(T t) {
+                // remove the mark before reading the position, so concurrent updates are seen on the next tick
+                if (changed.remove(t) != null) {
+                    PositionTime pt = targets.get(t);
+                    if (pt == null) {
+                        heldBack.remove(t);
+                    } else {
+                        // suppress small movements and frequent reports before they are diffed and routed, the
+                        // published position is kept so small movements add up until they exceed the minimum
+                        PositionTime latest = filter ? targets.getLatest(t) : null;
+                        if (latest != null) {
+                            Long since = minUpdateIntervalNanos == 0 ? null : heldBack.remove(t);
+                            if (distance(latest, pt) < minMovement) {
+                                suppressedUpdates.incrementAndGet();
+                                return;
+                            }
+                            // hold back frequent reports until the target reports after the interval, or until it
+                            // has been held back for the interval, the target is revisited by every tick until then
+                            if (pt.getTime() - latest.getTime() < minUpdateIntervalMillis
+                                    && (since == null || start - since < minUpdateIntervalNanos)) {
+                                if (since == null) {
+                                    suppressedUpdates.incrementAndGet();
+                                }
+                                heldBack.put(t, since == null ? start : since);
+                                return;
+                            }
+                        }
+                        PositionTime p = targets.publish(t, pt);
+                        if (p == null || !p.positionEquals(pt)) {
+                            updates.put(t, pt);
+                            subscriptionIndex.route(t, p, pt, routed);
+                        }
+                    }
                 }
             }
         });
+        // marked after visiting the changed targets, so the visit does not see them again
+        for (T t : heldBack.keySet()) {
+            if (changed.put(t, Boolean.TRUE) == null) {
+                pendingChanges.incrementAndGet();
+            }
+        }
+        for (Subscription<T> s : subscriptionIndex.global) {
+            routed.put(s, new Changes<>(updates, removedTargets));
+        }
         // update each subscription with new positions
-        subscriptions.forEachValue(THRESHOLD, new Consumer<Subscription<T>>() {
-            public void accept(final Subscription<T> s) {
-                s.updateWith(updates);
+        routed.forEach(THRESHOLD, new BiConsumer<Subscription<T>, Changes<T>>() {
+            public void accept(Subscription<T> s, Changes<T> c) {
+                s.updateWith(c.updates, c.removed);
             }
         });
-        // update latest with current latest
-        this.latest = current;
+        ChangeJournal<T> journal = this.journal;
+        long version = ++this.version;
+        if (journal != null) {
+            journal.add(version, updates, removedTargets);
+        }
+        lastTickUpdates = updates.size();
+        publishedUpdates.addAndGet(updates.size());
+        tickDurations.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns an approximation of the distance in meters between two positions, that is accurate for the short
+     * distances used for filtering movements.
+     */
+    private static double distance(Position a, Position b) {
+        double dLat = Math.toRadians(b.getLatitude() - a.getLatitude());
+        double dLon = Math.toRadians(Geofence.longitudeDifference(b.getLongitude(), a.getLongitude()))
+                * Math.cos(Math.toRadians((a.getLatitude() + b.getLatitude()) / 2));
+        return Geofence.EARTH_RADIUS * Math.sqrt(dLat * dLat + dLon * dLon);
+    }
+
+    /**
+     * Writes a snapshot of the current position of all targets to the specified file. The snapshot is written to a
+     * uniquely named temporary file that replaces the specified file when complete, so it is safe to write snapshots
+     * periodically, or concurrently, to the same file. Targets that are updated while the snapshot is being written
+     * might be written with either their old or their new position.
+     * 
+     * @param path
+     *            the file to write the snapshot to
+     * @param codec
+     *            the codec to write targets with
+     * @return the number of targets written
+     * @throws IOException
+     *             if the snapshot could not be written
+     * @see #restoreSnapshot(Path, TargetCodec)
+     */
+    public int writeSnapshot(Path path, TargetCodec<? super T> codec) throws IOException {
+        requireNonNull(path, "path is null");
+        requireNonNull(codec, "codec is null");
+        return Snapshot.write(path, codec, targets);
+    }
+
+    /**
+     * Sets the number of ticks to keep the published changes of in the change journal used by
+     * {@link #changesSince(long)}. Ticks without any changes are not kept. The journal keeps references to the changes
+     * of each tick, so keeping a journal costs little more than the memory of the changes. Changing the capacity
+     * discards all changes kept so far.
+     * 
+     * @param ticks
+     *            the number of ticks with changes to keep, or 0 to not keep a change journal
+     * @return this tracker
+     * @throws IllegalArgumentException
+     *             if the number of ticks is negative
+     */
+    public synchronized PositionTracker<T> setChangeJournal(int ticks) {
+        if (ticks < 0) {
+            throw new IllegalArgumentException("Number of ticks must be non-negative, was " + ticks);
+        }
+        journal = ticks == 0 ? null : new ChangeJournal<T>(ticks, version);
+        return this;
+    }
+
+    /**
+     * Sets the number of recent positions to keep for each target. The positions are kept in a fixed capacity ring
+     * buffer of primitives for each target, so the oldest positions are overwritten once it is full. A position is only
+     * added to the history if at least the sampling interval has passed since the previous position that was added.
+     * Changing the history discards all positions kept so far.
+     * 
+     * @param capacity
+     *            the maximum number of positions to keep for each target, or 0 to not keep any history
+     * @param samplingInterval
+     *            the minimum time between two positions in the history, measured in reported time
+     * @param unit
+     *            the unit of the sampling interval
+     * @return this tracker
+     * @see #getHistory(Object, int, double[], double[], long[])
+     * @see #getHistorySince(Object, long, double[], double[], long[])
+     */
+    public PositionTracker<T> setHistory(int capacity, long samplingInterval, TimeUnit unit) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be non-negative, was " + capacity);
+        }
+        if (samplingInterval < 0) {
+            throw new IllegalArgumentException("Sampling interval must be non-negative, was " + samplingInterval);
+        }
+        history = capacity == 0 ? null : new TrackHistory<T>(capacity, unit.toMillis(samplingInterval));
+        return this;
+    }
+
+    /**
+     * Sets the minimum distance a target must move from its last published position before its new position is
+     * published to subscriptions. Smaller movements, such as GPS jitter of moored vessels, are suppressed before they
+     * are routed to subscriptions. The published position is kept while movements are suppressed, so a target that
+     * drifts slowly is published once it has drifted the minimum movement. Suppressed positions are still visible to
+     * area queries. But targets that cross the boundary of an area by less than the minimum movement are not reported
+     * as entering or exiting until they have moved far enough.
+     * 
+     * @param meters
+     *            the minimum movement in meters, or 0 to publish every change of position
+     * @return this tracker
+     * @throws IllegalArgumentException
+     *             if the minimum movement is negative
+     */
+    public PositionTracker<T> setMinMovement(double meters) {
+        if (!(meters >= 0)) {
+            throw new IllegalArgumentException("Minimum movement must be non-negative, was " + meters);
+        }
+        minMovement = meters;
+        return this;
+    }
+
+    /**
+     * Sets the minimum time between the reports of a target that are published to subscriptions, measured by the time
+     * of the reports. A report within the interval of the last published report of the target is held back. It is
+     * published by a later tick, when the target reports again after the interval, or at the latest when it has been
+     * held back for the interval. Newer reports replace the held back report.
+     * 
+     * @param interval
+     *            the minimum update interval, or 0 for no minimum
+     * @param unit
+     *            the unit of the interval
+     * @return this tracker
+     * @throws IllegalArgumentException
+     *             if the interval is negative
+     */
+    public PositionTracker<T> setMinUpdateInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Minimum update interval must be non-negative, was " + interval);
+        }
+        minUpdateIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * Sets the time to live of targets. Targets that have not been updated within the time to live are evicted at the
+     * next tick, and subscriptions that are tracking them are notified that they are exiting. Only targets that are
+     * updated after the time to live has been set are evicted.
+     * 
+     * @param timeToLive
+     *            the time to live, or 0 if targets should never be evicted
+     * @param unit
+     *            the unit of the time to live
+     * @return this tracker
+     */
+    public PositionTracker<T> setTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live must be non-negative, was " + timeToLive);
+        }
+        timeToLiveNanos = unit.toNanos(timeToLive);
+        return this;
     }
 
     /**
@@ -186,29 +967,88 @@ public class PositionTracker<T> {
      *            a subscription that can be used to cancel the subscription
      * @param slack
      *            is the precision in meters with which we want to report entering/exiting messages. We use it to avoid
-     *            situations where a boat sails on a boundary line and keeps changing from being inside to outside of it
+     *            situations where a boat sails on a boundary line and keeps changing from being inside to outside of
+     *            it. Slack is supported for circles, bounding boxes and polygons
      * @return
      */
     public Subscription<T> subscribe(Area area, PositionUpdatedHandler<? super T> handler, double slack) {
-        Area exitShape = requireNonNull(area, "area is null");
-        if (slack < 0) {
+        Geofence exitShape = exitShape(area, slack);
+        return register(new Subscription<>(this, handler, null, Geofence.of(area), exitShape));
+    }
+
+    /**
+     * Subscribes to changes in the specified area. Events are queued in a bounded queue, and delivered to the handler
+     * from the specified executor instead of from the thread running the tracker. Events are delivered one at a time in
+     * the order they happened, so the handler does not need to be thread safe. But events for different subscriptions
+     * are delivered in parallel if the executor has more than one thread.
+     * 
+     * @param area
+     *            the area to monitor
+     * @param handler
+     *            a subscription that can be used to cancel the subscription
+     * @param slack
+     *            is the precision in meters with which we want to report entering/exiting messages
+     * @param executor
+     *            the executor to deliver events from
+     * @param capacity
+     *            the maximum number of queued events (or targets with queued events if coalescing)
+     * @param policy
+     *            what to do if the queue is full
+     * @return a subscription that can be used to cancel the subscription
+     * @throws IllegalArgumentException
+     *             if the capacity is less than 1, or if the policy is {@link OverflowPolicy#BLOCK} and the executor is
+     *             the common fork join pool
+     */
+    public Subscription<T> subscribe(Area area, PositionUpdatedHandler<? super T> handler, double slack,
+            Executor executor, int capacity, OverflowPolicy policy) {
+        Geofence exitShape = exitShape(area, slack);
+        AsyncDispatcher<T> dispatcher = new AsyncDispatcher<T>(handler, executor, capacity, policy);
+        return register(new Subscription<>(this, handler, dispatcher, Geofence.of(area), exitShape));
+    }
+
+    /** Returns the shape that must be exited before a tracked object is reported as exiting the area. */
+    private static Geofence exitShape(Area area, double slack) {
+        requireNonNull(area, "area is null");
+        if (!(slack >= 0)) {
             throw new IllegalArgumentException("Slack must be non-negative, was " + slack);
         }
-        if (slack > 0) {
-            if (area instanceof Circle) {
-                Circle c = (Circle) area;
-                exitShape = c.withRadius(c.getRadius() + slack);
-            } else {
-                throw new UnsupportedOperationException("Only circles allowed for now");
-            }
-        }
-        Subscription<T> s = new Subscription<>(this, handler, area, exitShape);
-        if (subscriptions.putIfAbsent(handler, s) != null) {
+        return Geofence.expand(area, slack);
+    }
+
+    private Subscription<T> register(Subscription<T> s) {
+        if (subscriptions.putIfAbsent(s.handler, s) != null) {
             throw new IllegalArgumentException("The specified handler has already been registered");
         }
+        subscriptionIndex.add(s);
         return s;
     }
 
+    /**
+     * Returns all targets within the specified geodesic distance of a position. Has the same result as
+     * {@link #getTargetsWithin(Area)} with a circle around the position, but does not require creating one.
+     * 
+     * @param position
+     *            the position to measure from
+     * @param meters
+     *            the maximum distance in meters
+     * @return a map of all targets within the distance as keys and their latest position as the value
+     * @throws IllegalArgumentException
+     *             if the distance is negative
+     */
+    public Map<T, PositionTime> withinDistance(Position position, double meters) {
+        requireNonNull(position, "position is null");
+        if (!(meters >= 0)) {
+            throw new IllegalArgumentException("Distance must be non-negative, was " + meters);
+        }
+        final ConcurrentHashMap<T, PositionTime> result = new ConcurrentHashMap<>();
+        grid.forEachWithinDistance(position, meters, targets, new BiConsumer<T, PositionTime>() {
+            public void accept(T a, PositionTime b) {
+                result.put(a, b);
+            }
+        });
+        return result;
+    }
+
     /**
      * Updates the current position of the specified target.
      * 
@@ -218,12 +1058,170 @@ public class PositionTracker<T> {
      *            the position and reported time
      */
     public void update(T target, PositionTime positionTime) {
-        requireNonNull(positionTime, "positionTime is null"); // target gets checked in merge
-        // make sure we keep the positiontime with the highest timestamp
-        targets.merge(target, positionTime, new BiFunction<PositionTime, PositionTime, PositionTime>() {
-            public PositionTime apply(PositionTime a, PositionTime b) {
-                return a.getTime() >= b.getTime() ? a : b;
+        requireNonNull(target, "target is null");
+        requireNonNull(positionTime, "positionTime is null");
+        // make sure we keep the positiontime with the highest timestamp, the spatial index is updated while holding
+        // the lock for the target so it always agrees with the stored position
+        targets.update(target, positionTime, onUpdate);
+    }
+
+    /**
+     * Updates the current position of a number of targets. Has the same effect as invoking
+     * {@link #update(Object, PositionTime)} for each target, but with less overhead for each target. Large updates are
+     * applied in parallel.
+     * 
+     * @param targets
+     *            the targets
+     * @param positionTimes
+     *            the position and reported time of each target
+     * @throws IllegalArgumentException
+     *             if the two arrays does not have the same length
+     */
+    public void updateAll(final T[] targets, final PositionTime[] positionTimes) {
+        if (targets.length != positionTimes.length) {
+            throw new IllegalArgumentException("Both arrays must have the same length, targets.length = "
+                    + targets.length + ", positionTimes.length = " + positionTimes.length);
+        }
+        for (int i = 0; i < targets.length; i++) {
+            requireNonNull(targets[i], "target is null, index = " + i);
+            requireNonNull(positionTimes[i], "positionTime is null, index = " + i);
+        }
+        if (targets.length < BULK_PARALLEL_THRESHOLD) {
+            this.targets.updateAll(targets, positionTimes, 0, targets.length, onUpdate);
+        } else {
+            final int chunks = (targets.length + BULK_PARALLEL_THRESHOLD - 1) / BULK_PARALLEL_THRESHOLD;
+            IntStream.range(0, chunks).parallel().forEach(new IntConsumer() {
+                public void accept(int chunk) {
+                    int from = chunk * BULK_PARALLEL_THRESHOLD;
+                    int to = Math.min(targets.length, from + BULK_PARALLEL_THRESHOLD);
+                    PositionTracker.this.targets.updateAll(targets, positionTimes, from, to, onUpdate);
+                }
+            });
+        }
+    }
+
+    /**
+     * Updates the current position of a number of targets. Has the same effect as invoking
+     * {@link #update(Object, PositionTime)} for each entry in the map.
+     * 
+     * @param updates
+     *            a map of targets and their position and reported time
+     */
+    @SuppressWarnings("unchecked")
+    public void updateAll(Map<? extends T, ? extends PositionTime> updates) {
+        int size = updates.size();
+        T[] ts = (T[]) new Object[size];
+        PositionTime[] pts = new PositionTime[size];
+        int i = 0;
+        for (Map.Entry<? extends T, ? extends PositionTime> e : updates.entrySet()) {
+            if (i == size) {
+                break; // concurrently modified
             }
-        });
+            ts[i] = e.getKey();
+            pts[i++] = e.getValue();
+        }
+        updateAll(i == size ? ts : Arrays.copyOf(ts, i), i == size ? pts : Arrays.copyOf(pts, i));
+    }
+
+    /**
+     * Runs a tick at the end of every update period if anything has changed, and also as soon as the change threshold
+     * is reached.
+     */
+    private final class AdaptiveScheduler implements Runnable {
+
+        /** The number of changed targets that triggers an early tick. */
+        final int changeThreshold;
+
+        /** Whether or not an early tick has been submitted but not yet started. */
+        private final AtomicBoolean earlyTickPending = new AtomicBoolean();
+
+        /** The executor to run ticks on. */
+        private final ScheduledExecutorService ses;
+
+        /** The future of the periodic ticks. */
+        volatile Future<?> future;
+
+        /** The update period in milliseconds. */
+        private final int updatePeriodMS;
+
+        AdaptiveScheduler(ScheduledExecutorService ses, int updatePeriodMS, int changeThreshold) {
+            this.ses = ses;
+            this.updatePeriodMS = updatePeriodMS;
+            this.changeThreshold = changeThreshold;
+        }
+
+        /** Runs a periodic tick, unless there is nothing to do. */
+        public void run() {
+            // targets might expire even if nothing has changed
+            long timeToLiveNanos = PositionTracker.this.timeToLiveNanos;
+            if (pendingChanges.get() == 0
+                    && (timeToLiveNanos == 0 || !expiry.hasExpired(System.nanoTime(), timeToLiveNanos))) {
+                skippedTicks.incrementAndGet();
+            } else {
+                tick(updatePeriodMS);
+            }
+        }
+
+        /** Submits an early tick, unless one is already pending or the schedule has been cancelled. */
+        void triggerEarly() {
+            Future<?> f = future;
+            if (f != null && !f.isDone() && earlyTickPending.compareAndSet(false, true)) {
+                try {
+                    ses.execute(new Runnable() {
+                        public void run() {
+                            earlyTickPending.set(false);
+                            earlyTicks.incrementAndGet();
+                            tick(updatePeriodMS);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    earlyTickPending.set(false); // shutting down, the periodic tick will pick up the changes
+                }
+            }
+        }
+    }
+
+    /** Removes a target from the spatial and expiry indexes when it is removed from the target store. */
+    private final class Remover implements TargetStore.RemovalListener<T> {
+
+        /** Only remove targets still in this bucket of the expiry index, or Long.MIN_VALUE to always remove them. */
+        private final long bucket;
+
+        Remover(long bucket) {
+            this.bucket = bucket;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean removing(T t, PositionTime current, PositionTime latest) {
+            if (bucket != Long.MIN_VALUE && !expiry.isIn(t, bucket)) {
+                return false; // updated since we found it
+            }
+            grid.remove(t, current);
+            expiry.remove(t);
+            TrackHistory<T> history = PositionTracker.this.history;
+            if (history != null) {
+                history.remove(t);
+            }
+            if (latest != null && removed.put(t, latest) == null) {
+                pendingChanges.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /** How the position of each target is stored by a tracker. */
+    public enum StorageMode {
+
+        /** Each position is kept as a {@link PositionTime} object. */
+        OBJECTS,
+
+        /**
+         * Positions are kept as primitives in large shared arrays indexed by a slot id assigned to each target.
+         * {@link PositionTime} objects are only created when positions are handed out. Uses considerably less memory
+         * for large number of targets, at the cost of an allocation for each read. So a tick creates two or three
+         * position objects for each changed target, that are garbage once the tick has completed.
+         */
+        PACKED;
     }
 }
@@ -0,0 +1,143 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * All the changes a subscription has seen in a single tick of the tracker. Targets and their positions are stored in
+ * parallel lists, for example, the position of {@code getEntering().get(i)} is {@code getEnteringPositions().get(i)}.
+ * 
+ * @author Kasper Nielsen
+ * @see BatchPositionUpdatedHandler
+ */
+public final class PositionUpdateBatch<T> {
+
+    /** Objects entering the area of interest. */
+    private final ArrayList<T> entering = new ArrayList<>();
+
+    /** The positions of the objects entering the area of interest. */
+    private final ArrayList<PositionTime> enteringPositions = new ArrayList<>();
+
+    /** Objects exiting the area of interest. */
+    private final ArrayList<T> exiting = new ArrayList<>();
+
+    /** The previous positions of the updated objects. */
+    private final ArrayList<PositionTime> previousPositions = new ArrayList<>();
+
+    /** Objects whose position has been updated. */
+    private final ArrayList<T> updated = new ArrayList<>();
+
+    /** The current positions of the updated objects. */
+    private final ArrayList<PositionTime> updatedPositions = new ArrayList<>();
+
+    void addEntering(T t, PositionTime positionTime) {
+        entering.add(t);
+        enteringPositions.add(positionTime);
+    }
+
+    void addExiting(T t) {
+        exiting.add(t);
+    }
+
+    void addUpdated(T t, PositionTime previous, PositionTime current) {
+        updated.add(t);
+        previousPositions.add(previous);
+        updatedPositions.add(current);
+    }
+
+    /**
+     * Returns the objects that entered the area of interest.
+     * 
+     * @return the objects that entered the area of interest
+     */
+    public List<T> getEntering() {
+        return Collections.unmodifiableList(entering);
+    }
+
+    /**
+     * Returns the positions of the objects that entered the area of interest.
+     * 
+     * @return the positions of the objects that entered the area of interest
+     */
+    public List<PositionTime> getEnteringPositions() {
+        return Collections.unmodifiableList(enteringPositions);
+    }
+
+    /**
+     * Returns the objects that exited the area of interest.
+     * 
+     * @return the objects that exited the area of interest
+     */
+    public List<T> getExiting() {
+        return Collections.unmodifiableList(exiting);
+    }
+
+    /**
+     * Returns the previous positions of the updated objects.
+     * 
+     * @return the previous positions of the updated objects
+     */
+    public List<PositionTime> getPreviousPositions() {
+        return Collections.unmodifiableList(previousPositions);
+    }
+
+    /**
+     * Returns the objects whose position has been updated.
+     * 
+     * @return the objects whose position has been updated
+     */
+    public List<T> getUpdated() {
+        return Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Returns the current positions of the updated objects.
+     * 
+     * @return the current positions of the updated objects
+     */
+    public List<PositionTime> getUpdatedPositions() {
+        return Collections.unmodifiableList(updatedPositions);
+    }
+
+    /**
+     * Returns whether or not this batch contains any changes.
+     * 
+     * @return whether or not this batch contains any changes
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the total number of changes in this batch.
+     * 
+     * @return the total number of changes in this batch
+     */
+    public int size() {
+        return entering.size() + updated.size() + exiting.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "PositionUpdateBatch [entering=" + entering.size() + ", updated=" + updated.size() + ", exiting="
+                + exiting.size() + "]";
+    }
+}
@@ -0,0 +1,470 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import dk.dma.commons.management.ManagedAttribute;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A tracker that partitions targets by their hash code into a number of independent {@link PositionTracker shards}.
+ * Each shard has its own tick, so ticks of different shards run in parallel if scheduled on an executor with more than
+ * one thread.
+ * <p>
+ * A subscription is registered with every shard. Since each target belongs to exactly one shard, each shard notifies
+ * the handler of a disjoint set of targets. Invocations of the handler from different shards are serialized, so
+ * handlers do not need to be thread safe. But batch handlers receive a batch from each shard per tick.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShardedPositionTracker<T> {
+
+    /** The shards. */
+    final PositionTracker<T>[] shards;
+
+    /** All current subscriptions. */
+    final ConcurrentHashMap<PositionUpdatedHandler<? super T>, ShardedSubscription<T>> subscriptions =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new tracker with the specified number of shards and a spatial index of
+     * {@value PositionTracker#DEFAULT_CELL_SIZE} degree cells.
+     *
+     * @param shards
+     *            the number of shards, typically the number of available cores
+     * @throws IllegalArgumentException
+     *             if the number of shards is not positive
+     */
+    public ShardedPositionTracker(int shards) {
+        this(shards, PositionTracker.DEFAULT_CELL_SIZE, PositionTracker.StorageMode.OBJECTS);
+    }
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param shards
+     *            the number of shards, typically the number of available cores
+     * @param cellSize
+     *            the size in degrees of the cells in the spatial index of each shard
+     * @param storageMode
+     *            how the position of each target is stored
+     * @throws IllegalArgumentException
+     *             if the number of shards is not positive, or if the cell size is not greater than 0 and at most 90
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedPositionTracker(int shards, double cellSize, PositionTracker.StorageMode storageMode) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Number of shards must be positive, was " + shards);
+        }
+        this.shards = new PositionTracker[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new PositionTracker<>(cellSize, storageMode);
+        }
+    }
+
+    /** Runs a tick of every shard, one after the other. */
+    void doRun() {
+        for (PositionTracker<T> shard : shards) {
+            shard.doRun();
+        }
+    }
+
+    /**
+     * Invokes the callback for every tracked object within the specified area of interest.
+     *
+     * @param shape
+     *            the area of interest
+     * @param block
+     *            the callback
+     */
+    public void forEachWithinArea(Area shape, BiConsumer<T, PositionTime> block) {
+        for (PositionTracker<T> shard : shards) {
+            shard.forEachWithinArea(shape, block);
+        }
+    }
+
+    /**
+     * Returns the latest position time updated for the specified target.
+     *
+     * @param target
+     *            the target
+     * @return the latest position time updated, or null if no position has been recorded for the target
+     * @see PositionTracker#getLatest(Object)
+     */
+    public PositionTime getLatest(T target) {
+        return shard(target).getLatest(target);
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    @ManagedAttribute
+    public int getNumberOfShards() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the number of subscriptions.
+     *
+     * @return the number of subscriptions
+     */
+    @ManagedAttribute
+    public int getNumberOfSubscriptions() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Returns the number of tracked objects in all shards.
+     *
+     * @return the number of tracked objects
+     */
+    @ManagedAttribute
+    public int getNumberOfTrackedObjects() {
+        int result = 0;
+        for (PositionTracker<T> shard : shards) {
+            result += shard.getNumberOfTrackedObjects();
+        }
+        return result;
+    }
+
+    /**
+     * Returns a map of all tracked objects within the specified area and their latest position.
+     *
+     * @param shape
+     *            the area of interest
+     * @return a map of all tracked objects within the area as keys and their latest position as the value
+     */
+    public Map<T, PositionTime> getTargetsWithin(Area shape) {
+        Map<T, PositionTime> result = shards[0].getTargetsWithin(shape);
+        for (int i = 1; i < shards.length; i++) {
+            result.putAll(shards[i].getTargetsWithin(shape));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the targets nearest to the specified position.
+     *
+     * @param position
+     *            the position to measure from
+     * @param k
+     *            the maximum number of targets to return
+     * @return a map of the nearest targets and their latest position, iterating in order of increasing geodesic
+     *         distance
+     * @see PositionTracker#nearest(Position, int)
+     */
+    public Map<T, PositionTime> nearest(final Position position, int k) {
+        List<Map.Entry<T, PositionTime>> all = new ArrayList<>();
+        for (PositionTracker<T> shard : shards) {
+            all.addAll(shard.nearest(position, k).entrySet());
+        }
+        // the distances are recalculated when sorting, but there are at most k entries from each shard
+        Collections.sort(all, new Comparator<Map.Entry<T, PositionTime>>() {
+            public int compare(Map.Entry<T, PositionTime> a, Map.Entry<T, PositionTime> b) {
+                return Double.compare(position.geodesicDistanceTo(a.getValue()),
+                        position.geodesicDistanceTo(b.getValue()));
+            }
+        });
+        LinkedHashMap<T, PositionTime> result = new LinkedHashMap<>();
+        for (Map.Entry<T, PositionTime> e : all.subList(0, Math.min(k, all.size()))) {
+            result.put(e.getKey(), e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Removes the specified target from the tracker.
+     *
+     * @param t
+     *            the target to remove
+     * @return whether or not the target was being tracked
+     * @see PositionTracker#remove(Object)
+     */
+    public boolean remove(T t) {
+        return shard(requireNonNull(t, "target is null")).remove(t);
+    }
+
+    /**
+     * Schedules the tick of every shard at a fixed rate. The ticks of the shards are scheduled independently of each
+     * other, so they run in parallel if the executor has more than one thread.
+     *
+     * @param ses
+     *            the executor to run ticks on
+     * @param updatePeriodMS
+     *            the period in milliseconds between ticks
+     * @return a future that can be used to cancel the ticks of all shards
+     */
+    public Future<?> schedule(ScheduledExecutorService ses, int updatePeriodMS) {
+        Future<?>[] futures = new Future<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            futures[i] = shards[i].schedule(ses, updatePeriodMS);
+        }
+        return new CompositeFuture(futures);
+    }
+
+    /**
+     * Sets the minimum movement of targets in all shards.
+     *
+     * @param meters
+     *            the minimum movement in meters, or 0 to publish every change of position
+     * @return this tracker
+     * @see PositionTracker#setMinMovement(double)
+     */
+    public ShardedPositionTracker<T> setMinMovement(double meters) {
+        for (PositionTracker<T> shard : shards) {
+            shard.setMinMovement(meters);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the minimum update interval of targets in all shards.
+     *
+     * @param interval
+     *            the minimum update interval, or 0 for no minimum
+     * @param unit
+     *            the unit of the interval
+     * @return this tracker
+     * @see PositionTracker#setMinUpdateInterval(long, TimeUnit)
+     */
+    public ShardedPositionTracker<T> setMinUpdateInterval(long interval, TimeUnit unit) {
+        for (PositionTracker<T> shard : shards) {
+            shard.setMinUpdateInterval(interval, unit);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the time to live of targets in all shards.
+     *
+     * @param timeToLive
+     *            the time to live, or 0 if targets should never be evicted
+     * @param unit
+     *            the unit of the time to live
+     * @return this tracker
+     * @see PositionTracker#setTimeToLive(long, TimeUnit)
+     */
+    public ShardedPositionTracker<T> setTimeToLive(long timeToLive, TimeUnit unit) {
+        for (PositionTracker<T> shard : shards) {
+            shard.setTimeToLive(timeToLive, unit);
+        }
+        return this;
+    }
+
+    /** Returns the shard of the specified target. */
+    private PositionTracker<T> shard(T target) {
+        int h = target.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+
+    /**
+     * Subscribes to changes in the specified area with a slack of 100 meters.
+     *
+     * @param area
+     *            the area to monitor
+     * @param handler
+     *            the handler to notify
+     * @return a subscription that can be used to cancel the subscription
+     */
+    public ShardedSubscription<T> subscribe(Area area, PositionUpdatedHandler<? super T> handler) {
+        return subscribe(area, handler, 100);
+    }
+
+    /**
+     * Subscribes to changes in the specified area.
+     *
+     * @param area
+     *            the area to monitor
+     * @param handler
+     *            the handler to notify
+     * @param slack
+     *            the precision in meters with which we want to report entering/exiting messages
+     * @return a subscription that can be used to cancel the subscription
+     * @see PositionTracker#subscribe(Area, PositionUpdatedHandler, double)
+     */
+    public ShardedSubscription<T> subscribe(Area area, PositionUpdatedHandler<? super T> handler, double slack) {
+        requireNonNull(handler, "handler is null");
+        ShardedSubscription<T> s = new ShardedSubscription<>(this, handler);
+        if (subscriptions.putIfAbsent(handler, s) != null) {
+            throw new IllegalArgumentException("The specified handler has already been registered");
+        }
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                s.subscriptions[i] = shards[i].subscribe(area, s.serialized, slack);
+            }
+        } catch (RuntimeException e) {
+            s.cancel();
+            throw e;
+        }
+        return s;
+    }
+
+    /**
+     * Updates the current position of the specified target.
+     *
+     * @param target
+     *            the target
+     * @param positionTime
+     *            the position and reported time
+     */
+    public void update(T target, PositionTime positionTime) {
+        shard(requireNonNull(target, "target is null")).update(target, positionTime);
+    }
+
+    /**
+     * Updates the current position of a number of targets. The targets are partitioned by shard, and each shard is
+     * updated with a single bulk update.
+     *
+     * @param targets
+     *            the targets
+     * @param positionTimes
+     *            the position and reported time of each target
+     * @throws IllegalArgumentException
+     *             if the two arrays does not have the same length
+     * @see PositionTracker#updateAll(Object[], PositionTime[])
+     */
+    @SuppressWarnings("unchecked")
+    public void updateAll(T[] targets, PositionTime[] positionTimes) {
+        if (targets.length != positionTimes.length) {
+            throw new IllegalArgumentException("Both arrays must have the same length, targets.length = "
+                    + targets.length + ", positionTimes.length = " + positionTimes.length);
+        }
+        int[] shardOf = new int[targets.length];
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < targets.length; i++) {
+            int h = requireNonNull(targets[i], "target is null, index = " + i).hashCode();
+            shardOf[i] = Math.floorMod(h ^ (h >>> 16), shards.length);
+            counts[shardOf[i]]++;
+        }
+        T[][] ts = (T[][]) new Object[shards.length][];
+        PositionTime[][] pts = new PositionTime[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            ts[i] = (T[]) new Object[counts[i]];
+            pts[i] = new PositionTime[counts[i]];
+        }
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < targets.length; i++) {
+            int s = shardOf[i];
+            ts[s][counts[s]] = targets[i];
+            pts[s][counts[s]++] = positionTimes[i];
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (counts[i] > 0) {
+                shards[i].updateAll(ts[i], pts[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns all targets within the specified geodesic distance of a position.
+     *
+     * @param position
+     *            the position to measure from
+     * @param meters
+     *            the maximum distance in meters
+     * @return a map of all targets within the distance as keys and their latest position as the value
+     * @see PositionTracker#withinDistance(Position, double)
+     */
+    public Map<T, PositionTime> withinDistance(Position position, double meters) {
+        Map<T, PositionTime> result = shards[0].withinDistance(position, meters);
+        for (int i = 1; i < shards.length; i++) {
+            result.putAll(shards[i].withinDistance(position, meters));
+        }
+        return result;
+    }
+
+    /** A future that cancels a number of futures. */
+    static final class CompositeFuture implements Future<Object> {
+
+        /** The futures. */
+        private final Future<?>[] futures;
+
+        CompositeFuture(Future<?>[] futures) {
+            this.futures = futures;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = false;
+            for (Future<?> f : futures) {
+                result |= f.cancel(mayInterruptIfRunning);
+            }
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            return null;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (Future<?> f : futures) {
+                f.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            return null;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean isCancelled() {
+            for (Future<?> f : futures) {
+                if (!f.isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean isDone() {
+            for (Future<?> f : futures) {
+                if (!f.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
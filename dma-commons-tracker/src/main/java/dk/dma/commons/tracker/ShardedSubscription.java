@@ -0,0 +1,208 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import dk.dma.commons.management.ManagedAttribute;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A subscription of a {@link ShardedPositionTracker}. Consists of a {@link Subscription} in each shard that all
+ * notify the same handler.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShardedSubscription<T> {
+
+    /** The handler of the subscription. */
+    private final PositionUpdatedHandler<? super T> handler;
+
+    /** The handler registered with every shard, serializes invocations of the handler. */
+    final PositionUpdatedHandler<T> serialized;
+
+    /** The subscription in each shard. */
+    final Subscription<T>[] subscriptions;
+
+    /** The tracker that this subscription is registered with. */
+    private final ShardedPositionTracker<T> tracker;
+
+    @SuppressWarnings("unchecked")
+    ShardedSubscription(ShardedPositionTracker<T> tracker, PositionUpdatedHandler<? super T> handler) {
+        this.tracker = tracker;
+        this.handler = handler;
+        this.subscriptions = new Subscription[tracker.getNumberOfShards()];
+        this.serialized = handler instanceof BatchPositionUpdatedHandler ? new SerializedBatchHandler<>(
+                (BatchPositionUpdatedHandler<? super T>) handler) : new SerializedHandler<T>(handler);
+    }
+
+    /** Cancels the subscription in every shard. */
+    public synchronized void cancel() {
+        if (tracker.subscriptions.remove(handler, this)) {
+            for (Subscription<T> s : subscriptions) {
+                if (s != null) {
+                    s.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the total time spent in the handler of this subscription in microseconds.
+     *
+     * @return the total time spent in the handler in microseconds
+     */
+    @ManagedAttribute
+    public long getHandlerTimeMicros() {
+        long result = 0;
+        for (Subscription<T> s : subscriptions) {
+            result += s == null ? 0 : s.getHandlerTimeMicros();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of entering events this subscription has fired.
+     *
+     * @return the number of entering events
+     */
+    @ManagedAttribute
+    public long getNumberOfEnteringEvents() {
+        long result = 0;
+        for (Subscription<T> s : subscriptions) {
+            result += s == null ? 0 : s.getNumberOfEnteringEvents();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of exiting events this subscription has fired.
+     *
+     * @return the number of exiting events
+     */
+    @ManagedAttribute
+    public long getNumberOfExitingEvents() {
+        long result = 0;
+        for (Subscription<T> s : subscriptions) {
+            result += s == null ? 0 : s.getNumberOfExitingEvents();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of tracked objects in all shards.
+     *
+     * @return the number of tracked objects
+     */
+    @ManagedAttribute
+    public int getNumberOfTrackedObjects() {
+        int result = 0;
+        for (Subscription<T> s : subscriptions) {
+            result += s == null ? 0 : s.getNumberOfTrackedObjects();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of updated events this subscription has fired.
+     *
+     * @return the number of updated events
+     */
+    @ManagedAttribute
+    public long getNumberOfUpdatedEvents() {
+        long result = 0;
+        for (Subscription<T> s : subscriptions) {
+            result += s == null ? 0 : s.getNumberOfUpdatedEvents();
+        }
+        return result;
+    }
+
+    /**
+     * Returns a map of tracked objects in all shards with their current position.
+     *
+     * @return a map of tracked objects with their current position
+     */
+    public Map<T, Position> getTrackedObjects() {
+        HashMap<T, Position> result = new HashMap<>();
+        for (Subscription<T> s : subscriptions) {
+            if (s != null) {
+                result.putAll(s.getTrackedObjects());
+            }
+        }
+        return result;
+    }
+
+    /** Serializes invocations of a handler from the ticks of different shards. */
+    static final class SerializedHandler<T> extends PositionUpdatedHandler<T> {
+
+        /** The handler to invoke. */
+        private final PositionUpdatedHandler<? super T> handler;
+
+        /** Serializes invocations of the handler. Private, so it never contends with locks taken by the handler. */
+        private final Object lock = new Object();
+
+        SerializedHandler(PositionUpdatedHandler<? super T> handler) {
+            this.handler = handler;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void entering(T t, PositionTime positiontime) {
+            synchronized (lock) {
+                handler.entering(t, positiontime);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void exiting(T t) {
+            synchronized (lock) {
+                handler.exiting(t);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void updated(T t, PositionTime previous, PositionTime current) {
+            synchronized (lock) {
+                handler.updated(t, previous, current);
+            }
+        }
+    }
+
+    /** Serializes invocations of a batch handler from the ticks of different shards. */
+    static final class SerializedBatchHandler<T> extends BatchPositionUpdatedHandler<T> {
+
+        /** The handler to invoke. */
+        private final BatchPositionUpdatedHandler<? super T> handler;
+
+        /** Serializes invocations of the handler. */
+        private final Object lock = new Object();
+
+        SerializedBatchHandler(BatchPositionUpdatedHandler<? super T> handler) {
+            this.handler = handler;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void updated(PositionUpdateBatch<? extends T> batch) {
+            synchronized (lock) {
+                handler.updated(batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Reads and writes snapshots of the targets of a tracker. A snapshot consists of a header with {@link #MAGIC} and
+ * {@link #VERSION}, followed by an entry for each target, and finally a single 0 byte. Each entry is a 1 byte followed
+ * by the target, as written by a {@link TargetCodec}, and the latitude, longitude and time of its current position.
+ * <p>
+ * Snapshots are written to a uniquely named temporary file that is moved in place when complete, so a snapshot is
+ * never partially written, even if several snapshots are written to the same file concurrently. Snapshots are memory
+ * mapped when read.
+ *
+ * @author Kasper Nielsen
+ */
+final class Snapshot {
+
+    /** The first 4 bytes of every snapshot. */
+    static final int MAGIC = 0x444d4154; // DMAT
+
+    /** The version of the snapshot format. */
+    static final int VERSION = 1;
+
+    /** Cannot instantiate. */
+    private Snapshot() {}
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param path
+     *            the file to read
+     * @param codec
+     *            the codec to read targets with
+     * @param block
+     *            invoked for each target in the snapshot
+     * @return the number of targets read
+     * @throws IOException
+     *             if the snapshot could not be read
+     */
+    static <T> int read(Path path, TargetCodec<? extends T> codec, BiConsumer<T, PositionTime> block)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new InputStream() {
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                public int read(byte[] b, int off, int len) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, len);
+                    return len;
+                }
+            });
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a tracker snapshot, " + path);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version, expected " + VERSION + ", was " + version);
+            }
+            int count = 0;
+            while (in.readByte() != 0) {
+                T t = codec.read(in);
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                block.accept(t, PositionTime.create(latitude, longitude, in.readLong()));
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current position of all targets in the specified store.
+     *
+     * @param path
+     *            the file to write
+     * @param codec
+     *            the codec to write targets with
+     * @param targets
+     *            the targets to write
+     * @return the number of targets written
+     * @throws IOException
+     *             if the snapshot could not be written
+     */
+    static <T> int write(Path path, final TargetCodec<? super T> codec, TargetStore<T> targets) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        // a unique temporary file, so concurrent writers of the same snapshot never write to the same file
+        Path tmp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        final int[] count = new int[1];
+        try {
+            write(tmp, codec, targets, count);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try {
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return count[0];
+    }
+
+    private static <T> void write(Path tmp, final TargetCodec<? super T> codec, TargetStore<T> targets,
+            final int[] count) throws IOException {
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            try {
+                targets.forEach(new BiConsumer<T, PositionTime>() {
+                    public void accept(T t, PositionTime pt) {
+                        try {
+                            out.writeByte(1);
+                            codec.write(out, t);
+                            out.writeDouble(pt.getLatitude());
+                            out.writeDouble(pt.getLongitude());
+                            out.writeLong(pt.getTime());
+                            count[0]++;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeByte(0);
+        }
+    }
+}
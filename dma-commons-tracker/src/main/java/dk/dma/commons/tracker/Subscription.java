@@ -16,11 +16,14 @@ package dk.dma.commons.tracker;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import dk.dma.enav.model.geometry.Area;
+import dk.dma.commons.management.ManagedAttribute;
 import dk.dma.enav.model.geometry.Position;
 import dk.dma.enav.model.geometry.PositionTime;
 import java.util.function.BiConsumer;
@@ -33,14 +36,32 @@ import java.util.function.Consumer;
  */
 public class Subscription<T> {
 
+    /** The handler if it is a batch handler that is invoked directly, otherwise null. */
+    private final BatchPositionUpdatedHandler<? super T> batchHandler;
+
+    /** The number of entering events. */
+    private final AtomicLong entering = new AtomicLong();
+
+    /** The number of exiting events. */
+    private final AtomicLong exiting = new AtomicLong();
+
+    /** The total time in nanoseconds spent in the handler, if it is invoked directly. */
+    private final AtomicLong handlerNanos = new AtomicLong();
+
+    /** The number of updated events. */
+    private final AtomicLong updated = new AtomicLong();
+
+    /** The asynchronous dispatcher of events, or null if the handler is invoked directly. */
+    private final AsyncDispatcher<T> dispatcher;
+
     /** The handler that should be called whenever objects are entering/exiting. */
-    private final PositionUpdatedHandler<? super T> handler;
+    final PositionUpdatedHandler<? super T> handler;
 
     /** The shape we look at to see if we are entering the area of interest. */
-    private final Area shapeEntering;
+    private final Geofence shapeEntering;
 
     /** The shape we look at to see if we are exiting the area of interest. */
-    private final Area shapeExiting;
+    private final Geofence shapeExiting;
 
     /** A map of currently tracked objects for this subscription. */
     private final ConcurrentHashMap<T, PositionTime> trackedObjects = new ConcurrentHashMap<>();
@@ -48,17 +69,26 @@ public class Subscription<T> {
     /** The tracker that this subscription is registered with. */
     private final PositionTracker<T> tracker;
 
-    Subscription(PositionTracker<T> tracker, PositionUpdatedHandler<? super T> handler, Area shape, Area exitShape) {
+    @SuppressWarnings("unchecked")
+    Subscription(PositionTracker<T> tracker, PositionUpdatedHandler<? super T> handler,
+            AsyncDispatcher<T> dispatcher, Geofence shape, Geofence exitShape) {
         this.tracker = requireNonNull(tracker);
         this.shapeEntering = requireNonNull(shape);
         this.shapeExiting = requireNonNull(exitShape);
-        this.handler = requireNonNull(handler);
+        this.handler = requireNonNull(handler, "handler is null");
+        this.dispatcher = dispatcher;
+        this.batchHandler = dispatcher == null && handler instanceof BatchPositionUpdatedHandler
+                ? (BatchPositionUpdatedHandler<? super T>) handler : null;
     }
 
     /** Cancels the subscription and free up any resources. */
     public synchronized void cancel() {
         if (tracker.subscriptions.remove(handler, this)) {
+            tracker.subscriptionIndex.remove(this);
             trackedObjects.clear();
+            if (dispatcher != null) {
+                dispatcher.clear();
+            }
         }
     }
 
@@ -92,15 +122,119 @@ public class Subscription<T> {
         });
     }
 
+    /**
+     * Returns the time the last delivered event spent in the queue of an asynchronous subscription.
+     * 
+     * @param unit
+     *            the unit of the returned value
+     * @return the time the last delivered event spent in the queue, or 0 if the subscription is not asynchronous
+     */
+    public long getDispatchLag(TimeUnit unit) {
+        return dispatcher == null ? 0 : dispatcher.getLag(unit);
+    }
+
+    /**
+     * Returns the maximum time any delivered event has spent in the queue of an asynchronous subscription.
+     * 
+     * @param unit
+     *            the unit of the returned value
+     * @return the maximum time any event has spent in the queue, or 0 if the subscription is not asynchronous
+     */
+    public long getMaxDispatchLag(TimeUnit unit) {
+        return dispatcher == null ? 0 : dispatcher.getMaxLag(unit);
+    }
+
+    /**
+     * Returns the total time spent in the handler of this subscription in microseconds. For asynchronous subscriptions
+     * this is the time spent delivering events from the executor.
+     * 
+     * @return the total time spent in the handler in microseconds
+     */
+    @ManagedAttribute
+    public long getHandlerTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(dispatcher == null ? handlerNanos.get() : dispatcher.handlerNanos.get());
+    }
+
+    /**
+     * Returns the number of events that has been dropped because the queue of an asynchronous subscription was full.
+     * 
+     * @return the number of dropped events
+     */
+    @ManagedAttribute
+    public long getNumberOfDroppedEvents() {
+        return dispatcher == null ? 0 : dispatcher.dropped.get();
+    }
+
+    /**
+     * Returns the number of times the executor of an asynchronous subscription rejected delivering events. The events
+     * are kept in the queue, and delivery is attempted again with the next event.
+     * 
+     * @return the number of rejected deliveries
+     */
+    @ManagedAttribute
+    public long getNumberOfRejectedDeliveries() {
+        return dispatcher == null ? 0 : dispatcher.rejected.get();
+    }
+
+    /**
+     * Returns the number of entering events this subscription has fired.
+     * 
+     * @return the number of entering events
+     */
+    @ManagedAttribute
+    public long getNumberOfEnteringEvents() {
+        return entering.get();
+    }
+
+    /**
+     * Returns the number of exiting events this subscription has fired.
+     * 
+     * @return the number of exiting events
+     */
+    @ManagedAttribute
+    public long getNumberOfExitingEvents() {
+        return exiting.get();
+    }
+
+    /**
+     * Returns the number of events waiting to be delivered by an asynchronous subscription.
+     * 
+     * @return the number of events waiting to be delivered
+     */
+    @ManagedAttribute
+    public int getNumberOfPendingEvents() {
+        return dispatcher == null ? 0 : dispatcher.getNumberOfPendingEvents();
+    }
+
+    /**
+     * Returns the shape we look at to see if we are exiting the area of interest. Always contains the entry shape.
+     * 
+     * @return the shape we look at to see if we are exiting the area of interest
+     */
+    Geofence getExitShape() {
+        return shapeExiting;
+    }
+
     /**
      * Returns the number of tracked objects.
      * 
      * @return the number of tracked objects
      */
+    @ManagedAttribute
     public int getNumberOfTrackedObjects() {
         return trackedObjects.size();
     }
 
+    /**
+     * Returns the number of updated events this subscription has fired.
+     * 
+     * @return the number of updated events
+     */
+    @ManagedAttribute
+    public long getNumberOfUpdatedEvents() {
+        return updated.get();
+    }
+
     /**
      * Returns a map of tracked objects with their current position.
      * 
@@ -117,14 +251,39 @@ public class Subscription<T> {
         return result;
     }
 
+    /**
+     * Starts tracking a target restored from a snapshot, without notifying the handler, if it is within the area of
+     * interest.
+     * 
+     * @param t
+     *            the target
+     * @param pt
+     *            the position of the target
+     */
+    synchronized void restore(T t, PositionTime pt) {
+        if (shapeEntering.contains(pt)) {
+            trackedObjects.putIfAbsent(t, pt);
+        }
+    }
+
     /**
      * Called regular by the position tracked with updated positions. If any of updated objects are within the area of
-     * interest. This class must notify the installed handler.
+     * interest. This class must notify the installed handler. The tracker only passes updates for targets that are
+     * within, or were previously within, a cell of the spatial index overlapping the exit shape. Batch handlers are
+     * notified once with all changes.
      * 
      * @param updates
      *            the position that have been updated since this method was last invoked
+     * @param removed
+     *            targets that have been removed from the tracker since this method was last invoked
      */
-    synchronized void updateWith(ConcurrentHashMap<T, PositionTime> updates) {
+    synchronized void updateWith(Map<T, PositionTime> updates, Collection<T> removed) {
+        PositionUpdateBatch<T> batch = batchHandler == null ? null : new PositionUpdateBatch<T>();
+        for (T t : removed) {
+            if (trackedObjects.remove(t) != null) {
+                fireExiting(t, batch);
+            }
+        }
         for (Map.Entry<T, PositionTime> e : updates.entrySet()) {
             T t = e.getKey();
             PositionTime pt = e.getValue();
@@ -133,17 +292,73 @@ public class Subscription<T> {
             if (current == null) {// not tracked
                 if (shapeEntering.contains(pt)) {
                     trackedObjects.put(t, pt);
-                    handler.entering(t, pt);
+                    fireEntering(t, pt, batch);
                 }
             } else if (!shapeExiting.contains(pt)) {
-                handler.exiting(t);
+                fireExiting(t, batch);
                 trackedObjects.remove(t);
             } else {
                 if (positionChanged) {
-                    handler.updated(t, current, pt);
+                    fireUpdated(t, current, pt, batch);
                 }
                 trackedObjects.put(t, pt);
             }
         }
+        if (batch != null && !batch.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                batchHandler.updated(batch);
+            } finally {
+                handlerNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void fireEntering(T t, PositionTime pt, PositionUpdateBatch<T> batch) {
+        entering.incrementAndGet();
+        if (batch != null) {
+            batch.addEntering(t, pt);
+        } else if (dispatcher != null) {
+            dispatcher.entering(t, pt);
+        } else {
+            long start = System.nanoTime();
+            try {
+                handler.entering(t, pt);
+            } finally {
+                handlerNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void fireExiting(T t, PositionUpdateBatch<T> batch) {
+        exiting.incrementAndGet();
+        if (batch != null) {
+            batch.addExiting(t);
+        } else if (dispatcher != null) {
+            dispatcher.exiting(t);
+        } else {
+            long start = System.nanoTime();
+            try {
+                handler.exiting(t);
+            } finally {
+                handlerNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void fireUpdated(T t, PositionTime previous, PositionTime current, PositionUpdateBatch<T> batch) {
+        updated.incrementAndGet();
+        if (batch != null) {
+            batch.addUpdated(t, previous, current);
+        } else if (dispatcher != null) {
+            dispatcher.updated(t, previous, current);
+        } else {
+            long start = System.nanoTime();
+            try {
+                handler.updated(t, previous, current);
+            } finally {
+                handlerNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
     }
 }
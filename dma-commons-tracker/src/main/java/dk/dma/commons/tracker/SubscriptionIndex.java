@@ -0,0 +1,174 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Maps the cells of a {@link GridIndex} to the subscriptions whose exit shape overlaps them. Used for routing each
+ * updated target only to the subscriptions that can possibly be interested in it.
+ * <p>
+ * Since the exit shape of a subscription always contains the entry shape, and a subscription only tracks targets
+ * within its exit shape, a subscription that is tracking a target is always registered in the cell of the last known
+ * position of the target.
+ *
+ * @author Kasper Nielsen
+ */
+final class SubscriptionIndex<T> {
+
+    /** Subscriptions whose exit shape overlap more cells than this are not routed but receives all updates. */
+    static final int MAX_CELLS = 4096;
+
+    /** Subscriptions that receives all updates. */
+    final Set<Subscription<T>> global = ConcurrentHashMap.newKeySet();
+
+    /** The grid to use for finding the cells of a subscription. */
+    private final GridIndex<T> grid;
+
+    /** All cells with at least one subscription. */
+    private final ConcurrentHashMap<Long, Set<Subscription<T>>> cells = new ConcurrentHashMap<>();
+
+    SubscriptionIndex(GridIndex<T> grid) {
+        this.grid = grid;
+    }
+
+    /**
+     * Adds the specified subscription to the index.
+     *
+     * @param s
+     *            the subscription to add
+     */
+    void add(final Subscription<T> s) {
+        long[] keys = grid.cellsOverlapping(s.getExitShape(), MAX_CELLS);
+        if (keys == null) {
+            global.add(s);
+        } else {
+            for (long key : keys) {
+                cells.compute(key, new BiFunction<Long, Set<Subscription<T>>, Set<Subscription<T>>>() {
+                    public Set<Subscription<T>> apply(Long key, Set<Subscription<T>> set) {
+                        if (set == null) {
+                            set = ConcurrentHashMap.newKeySet();
+                        }
+                        set.add(s);
+                        return set;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Removes the specified subscription from the index.
+     *
+     * @param s
+     *            the subscription to remove
+     */
+    void remove(final Subscription<T> s) {
+        long[] keys = grid.cellsOverlapping(s.getExitShape(), MAX_CELLS);
+        if (keys == null) {
+            global.remove(s);
+        } else {
+            for (long key : keys) {
+                cells.computeIfPresent(key, new BiFunction<Long, Set<Subscription<T>>, Set<Subscription<T>>>() {
+                    public Set<Subscription<T>> apply(Long key, Set<Subscription<T>> set) {
+                        set.remove(s);
+                        return set.isEmpty() ? null : set;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Routes an updated target to the subscriptions registered in the cell of its previous or current position.
+     * Subscriptions in {@link #global} are not included.
+     *
+     * @param t
+     *            the updated target
+     * @param previous
+     *            the previous position of the target, or null if the target has not been seen before
+     * @param current
+     *            the current position of the target
+     * @param routed
+     *            the changes of each subscription
+     */
+    void route(T t, PositionTime previous, PositionTime current,
+            ConcurrentHashMap<Subscription<T>, Changes<T>> routed) {
+        long cell = grid.cellOf(current);
+        routeTo(cells.get(cell), t, current, routed);
+        if (previous != null) {
+            long previousCell = grid.cellOf(previous);
+            if (previousCell != cell) {
+                routeTo(cells.get(previousCell), t, current, routed);
+            }
+        }
+    }
+
+    /**
+     * Routes a removed target to the subscriptions registered in the cell of its last position. Subscriptions in
+     * {@link #global} are not included.
+     *
+     * @param t
+     *            the removed target
+     * @param latest
+     *            the position of the target at the last tick
+     * @param routed
+     *            the changes of each subscription
+     */
+    void routeRemoved(T t, PositionTime latest, ConcurrentHashMap<Subscription<T>, Changes<T>> routed) {
+        routeTo(cells.get(grid.cellOf(latest)), t, null, routed);
+    }
+
+    private void routeTo(Set<Subscription<T>> set, T t, PositionTime current,
+            ConcurrentHashMap<Subscription<T>, Changes<T>> routed) {
+        if (set != null) {
+            for (Subscription<T> s : set) {
+                Changes<T> c = routed.computeIfAbsent(s, new Function<Subscription<T>, Changes<T>>() {
+                    public Changes<T> apply(Subscription<T> s) {
+                        return new Changes<>(new ConcurrentHashMap<T, PositionTime>(), new ConcurrentLinkedQueue<T>());
+                    }
+                });
+                if (current == null) {
+                    c.removed.add(t);
+                } else {
+                    c.updates.put(t, current);
+                }
+            }
+        }
+    }
+
+    /** The changes routed to a single subscription in a tick of the tracker. */
+    static final class Changes<T> {
+
+        /** Targets that have been removed from the tracker. */
+        final Collection<T> removed;
+
+        /** Updated targets and their current position. */
+        final Map<T, PositionTime> updates;
+
+        Changes(Map<T, PositionTime> updates, Collection<T> removed) {
+            this.updates = updates;
+            this.removed = removed;
+        }
+    }
+}
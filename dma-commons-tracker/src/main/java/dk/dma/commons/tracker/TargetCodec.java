@@ -0,0 +1,83 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads targets to and from snapshots of a {@link PositionTracker}.
+ *
+ * @author Kasper Nielsen
+ */
+public interface TargetCodec<T> {
+
+    /** A codec for integer targets, for example, MMSI numbers. */
+    TargetCodec<Integer> INTEGER = new TargetCodec<Integer>() {
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+
+        public void write(DataOutput out, Integer target) throws IOException {
+            out.writeInt(target);
+        }
+    };
+
+    /** A codec for long targets. */
+    TargetCodec<Long> LONG = new TargetCodec<Long>() {
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+
+        public void write(DataOutput out, Long target) throws IOException {
+            out.writeLong(target);
+        }
+    };
+
+    /** A codec for string targets. */
+    TargetCodec<String> STRING = new TargetCodec<String>() {
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+
+        public void write(DataOutput out, String target) throws IOException {
+            out.writeUTF(target);
+        }
+    };
+
+    /**
+     * Reads a target.
+     *
+     * @param in
+     *            the input to read from
+     * @return the target
+     * @throws IOException
+     *             if the target could not be read
+     */
+    T read(DataInput in) throws IOException;
+
+    /**
+     * Writes a target.
+     *
+     * @param out
+     *            the output to write to
+     * @param target
+     *            the target to write
+     * @throws IOException
+     *             if the target could not be written
+     */
+    void write(DataOutput out, T target) throws IOException;
+}
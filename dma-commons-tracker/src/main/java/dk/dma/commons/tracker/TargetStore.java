@@ -0,0 +1,157 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.function.BiConsumer;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Stores the current position of each target, as well as the position each target had at the last tick of the
+ * tracker. All modifications of a single target are serialized, reads never block.
+ *
+ * @author Kasper Nielsen
+ */
+abstract class TargetStore<T> {
+
+    /**
+     * Invokes the callback for every stored target with its current position. Targets that are updated or removed
+     * concurrently might or might not be visited.
+     *
+     * @param block
+     *            the callback
+     */
+    abstract void forEach(BiConsumer<T, PositionTime> block);
+
+    /**
+     * Returns the current position of the specified target.
+     *
+     * @param t
+     *            the target
+     * @return the current position of the target, or null if the target is not stored
+     */
+    abstract PositionTime get(T t);
+
+    /**
+     * Returns the position of the specified target at the last tick.
+     *
+     * @param t
+     *            the target
+     * @return the position of the target at the last tick, or null if the target has not been published
+     */
+    abstract PositionTime getLatest(T t);
+
+    /**
+     * Sets the position of the specified target at the last tick.
+     *
+     * @param t
+     *            the target
+     * @param pt
+     *            the position that was read with {@link #get(Object)}
+     * @return the previous position at the last tick, or null if the target has not been published before
+     */
+    abstract PositionTime publish(T t, PositionTime pt);
+
+    /**
+     * Removes the specified target, if the listener agrees.
+     *
+     * @param t
+     *            the target
+     * @param listener
+     *            invoked, while holding the lock of the target, to decide if the target should be removed
+     * @return whether or not the target was removed
+     */
+    abstract boolean remove(T t, RemovalListener<T> listener);
+
+    /**
+     * Returns the number of stored targets.
+     *
+     * @return the number of stored targets
+     */
+    abstract int size();
+
+    /**
+     * Updates the current position of the specified target, unless the stored position has a later timestamp.
+     *
+     * @param t
+     *            the target
+     * @param pt
+     *            the position and reported time
+     * @param listener
+     *            invoked, while holding the lock of the target, if the position was updated
+     */
+    abstract void update(T t, PositionTime pt, UpdateListener<T> listener);
+
+    /**
+     * Updates the current positions of a range of targets, keeping the position with the latest timestamp for each
+     * target. Implementations can override this to avoid allocations for each target.
+     *
+     * @param targets
+     *            the targets
+     * @param positionTimes
+     *            the positions and reported times of the targets
+     * @param from
+     *            the index of the first target to update (inclusive)
+     * @param to
+     *            the index of the last target to update (exclusive)
+     * @param listener
+     *            invoked, while holding the lock of the target, if the position was updated
+     */
+    void updateAll(T[] targets, PositionTime[] positionTimes, int from, int to, UpdateListener<T> listener) {
+        for (int i = from; i < to; i++) {
+            update(targets[i], positionTimes[i], listener);
+        }
+    }
+
+    /** Creates a new store. */
+    static <T> TargetStore<T> create(PositionTracker.StorageMode mode) {
+        return mode == PositionTracker.StorageMode.PACKED ? new PackedTargetStore<T>() : new MapTargetStore<T>();
+    }
+
+    /** A listener that decides whether or not a target should be removed. */
+    interface RemovalListener<T> {
+
+        /**
+         * Invoked before a target is removed.
+         *
+         * @param t
+         *            the target
+         * @param current
+         *            the current position of the target
+         * @param latest
+         *            the position of the target at the last tick, or null if the target has never been published
+         * @return whether or not the target should be removed
+         */
+        boolean removing(T t, PositionTime current, PositionTime latest);
+    }
+
+    /** A listener that is notified whenever the position of a target has been updated. */
+    interface UpdateListener<T> {
+
+        /**
+         * Invoked whenever the position of a target has been updated.
+         *
+         * @param t
+         *            the target
+         * @param previousLatitude
+         *            the previous latitude of the target, or {@link Double#NaN} if the target was not stored
+         * @param previousLongitude
+         *            the previous longitude of the target, or {@link Double#NaN} if the target was not stored
+         * @param current
+         *            the new position of the target
+         */
+        void updated(T t, double previousLatitude, double previousLongitude, PositionTime current);
+    }
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * The recent positions of each target, kept in a fixed capacity ring buffer of primitives per target. A position is
+ * only added if at least the sampling interval has passed since the previous position that was added.
+ * <p>
+ * Positions are added while holding the lock of the target in the target store, so the positions of a single target
+ * are always added in order of increasing time. Each ring is additionally guarded by its own monitor, so readers never
+ * see a partially written position.
+ *
+ * @author Kasper Nielsen
+ */
+final class TrackHistory<T> {
+
+    /** The number of longs used for each position. */
+    static final int FIELDS = 3;
+
+    /** The maximum number of positions kept for each target. */
+    final int capacity;
+
+    /** The minimum time in milliseconds between two positions kept for the same target. */
+    final long samplingIntervalMillis;
+
+    /** The ring of each target. */
+    private final ConcurrentHashMap<T, Ring> rings = new ConcurrentHashMap<>();
+
+    TrackHistory(int capacity, long samplingIntervalMillis) {
+        this.capacity = capacity;
+        this.samplingIntervalMillis = samplingIntervalMillis;
+    }
+
+    /**
+     * Adds the specified position to the history of a target, unless it was sampled too recently. Must be invoked
+     * while holding the lock of the target.
+     *
+     * @param t
+     *            the target
+     * @param pt
+     *            the new position of the target
+     */
+    void add(T t, PositionTime pt) {
+        Ring r = rings.get(t);
+        if (r == null) {
+            r = new Ring(capacity);
+            rings.put(t, r);
+        }
+        r.add(pt, samplingIntervalMillis);
+    }
+
+    /**
+     * Copies the most recent positions of a target into the specified arrays, oldest first.
+     *
+     * @param t
+     *            the target
+     * @param n
+     *            the maximum number of positions to copy
+     * @param latitudes
+     *            the array to copy latitudes into
+     * @param longitudes
+     *            the array to copy longitudes into
+     * @param times
+     *            the array to copy times into
+     * @return the number of positions copied
+     */
+    int copyLast(T t, int n, double[] latitudes, double[] longitudes, long[] times) {
+        Ring r = rings.get(t);
+        return r == null ? 0 : r.copy(Long.MIN_VALUE, n, latitudes, longitudes, times);
+    }
+
+    /**
+     * Copies the positions of a target with a time greater than or equal to the specified time into the specified
+     * arrays, oldest first. If there are more positions than room in the arrays, only the most recent positions are
+     * copied.
+     *
+     * @param t
+     *            the target
+     * @param time
+     *            the time of the oldest position to copy
+     * @param latitudes
+     *            the array to copy latitudes into
+     * @param longitudes
+     *            the array to copy longitudes into
+     * @param times
+     *            the array to copy times into
+     * @return the number of positions copied
+     */
+    int copySince(T t, long time, double[] latitudes, double[] longitudes, long[] times) {
+        Ring r = rings.get(t);
+        return r == null ? 0 : r.copy(time, latitudes.length, latitudes, longitudes, times);
+    }
+
+    /**
+     * Removes the history of the specified target.
+     *
+     * @param t
+     *            the target
+     */
+    void remove(T t) {
+        rings.remove(t);
+    }
+
+    /** The history of a single target. */
+    static final class Ring {
+
+        /** The latitude, longitude and time of each position. */
+        private final long[] data;
+
+        /** The index of the next position to write. */
+        private int next;
+
+        /** The number of positions in the ring. */
+        private int size;
+
+        Ring(int capacity) {
+            data = new long[capacity * FIELDS];
+        }
+
+        synchronized void add(PositionTime pt, long samplingIntervalMillis) {
+            int capacity = data.length / FIELDS;
+            if (size > 0) {
+                long previous = data[Math.floorMod(next - 1, capacity) * FIELDS + 2];
+                if (pt.getTime() - previous < samplingIntervalMillis) {
+                    return;
+                }
+            }
+            int base = next * FIELDS;
+            data[base] = Double.doubleToRawLongBits(pt.getLatitude());
+            data[base + 1] = Double.doubleToRawLongBits(pt.getLongitude());
+            data[base + 2] = pt.getTime();
+            next = next + 1 == capacity ? 0 : next + 1;
+            size = Math.min(capacity, size + 1);
+        }
+
+        /** Copies at most the n most recent positions with a time of at least the specified time. */
+        synchronized int copy(long since, int n, double[] latitudes, double[] longitudes, long[] times) {
+            int capacity = data.length / FIELDS;
+            int count = 0;
+            // count backwards from the most recent position to find the first position to copy
+            while (count < n && count < size && data[Math.floorMod(next - 1 - count, capacity) * FIELDS + 2] >= since) {
+                count++;
+            }
+            int index = Math.floorMod(next - count, capacity);
+            for (int i = 0; i < count; i++) {
+                int base = index * FIELDS;
+                latitudes[i] = Double.longBitsToDouble(data[base]);
+                longitudes[i] = Double.longBitsToDouble(data[base + 1]);
+                times[i] = data[base + 2];
+                index = index + 1 == capacity ? 0 : index + 1;
+            }
+            return count;
+        }
+    }
+}
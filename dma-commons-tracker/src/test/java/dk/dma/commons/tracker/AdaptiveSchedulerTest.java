@@ -0,0 +1,79 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link PositionTracker#scheduleAdaptive(ScheduledExecutorService, int, int)}.
+ *
+ * @author Kasper Nielsen
+ */
+public class AdaptiveSchedulerTest {
+
+    private final ScheduledExecutorService ses = new ScheduledThreadPoolExecutor(1);
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    @After
+    public void after() {
+        ses.shutdownNow();
+    }
+
+    @Test
+    public void skipUntilExpired() throws InterruptedException {
+        tracker.setTimeToLive(500, TimeUnit.MILLISECONDS);
+        tracker.update(1, PositionTime.create(55, 10, 1));
+        tracker.scheduleAdaptive(ses, 10, 1000);
+        // nothing changes and nothing expires after the first tick
+        Thread.sleep(200);
+        assertEquals(1, tracker.getNumberOfTicks());
+        assertTrue(tracker.getNumberOfSkippedTicks() > 0);
+        assertEquals(0, tracker.getNumberOfEvictedTargets());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tracker.getNumberOfTicks() == 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, tracker.getNumberOfTicks());
+        assertEquals(1, tracker.getNumberOfEvictedTargets());
+    }
+
+    @Test
+    public void scheduleAgain() throws InterruptedException {
+        Future<?> first = tracker.scheduleAdaptive(ses, 10, 1000);
+        Future<?> second = tracker.scheduleAdaptive(ses, 10, 1000);
+        assertTrue(first.isCancelled());
+        assertFalse(second.isDone());
+        tracker.update(1, PositionTime.create(55, 10, 1));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tracker.getNumberOfTicks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, tracker.getNumberOfTicks());
+    }
+}
@@ -0,0 +1,226 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link AsyncDispatcher}.
+ *
+ * @author Kasper Nielsen
+ */
+public class AsyncDispatcherTest {
+
+    /** The number of targets entering all subscriptions. */
+    static final int TARGETS = 10;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /** Released when the slow handler may return. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /** Counts down when the slow handler has been invoked. */
+    private final CountDownLatch stalled = new CountDownLatch(1);
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    @After
+    public void after() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Subscriptions are notified by tasks on the pool of the tick, so a blocked subscription only stalls the
+     * subscriptions that the same task notifies after it. The blocked task is compensated with another thread, which
+     * notifies the subscriptions of the remaining tasks.
+     */
+    @Test
+    public void blockedHandlerDoesNotStallOtherSubscriptions() throws Exception {
+        Subscription<Integer> slow = tracker.subscribe(box(50, 60, 0, 20), new Slow(), 0, executor, 1,
+                OverflowPolicy.BLOCK);
+        Counter[] others = subscribeOthers(16);
+        // tick on a pool with a single thread, so no other thread is around to notify the other subscriptions
+        ForkJoinPool pool = new ForkJoinPool(1);
+        Future<?> tick = pool.submit(tick());
+        assertTrue(stalled.await(10, TimeUnit.SECONDS));
+        // one event is being handled, one is queued and the tick is waiting to queue the third
+        long deadline = System.currentTimeMillis() + 10000;
+        while (slow.getNumberOfPendingEvents() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, slow.getNumberOfPendingEvents());
+        assertFalse(tick.isDone());
+        assertTrue(pool.getPoolSize() > 1);
+
+        release.countDown();
+        tick.get(10, TimeUnit.SECONDS);
+        for (Counter c : others) {
+            c.await(TARGETS);
+        }
+        assertEquals(TARGETS, slow.getNumberOfEnteringEvents());
+        assertEquals(0, slow.getNumberOfDroppedEvents());
+        pool.shutdown();
+    }
+
+    @Test
+    public void interruptedWhileBlocked() throws InterruptedException {
+        Subscription<Integer> slow = tracker.subscribe(box(50, 60, 0, 20), new Slow(), 0, executor, 1,
+                OverflowPolicy.BLOCK);
+        Thread tick = new Thread(tick());
+        tick.start();
+        assertTrue(stalled.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tick.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        // the tick gives up on the events that does not fit in the queue
+        tick.interrupt();
+        tick.join(10000);
+        assertFalse(tick.isAlive());
+        assertEquals(TARGETS - 2, slow.getNumberOfDroppedEvents());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void blockOnCommonPool() {
+        tracker.subscribe(box(50, 60, 0, 20), new Slow(), 0, ForkJoinPool.commonPool(), 1, OverflowPolicy.BLOCK);
+    }
+
+    @Test
+    public void rejectedByExecutor() {
+        RejectingExecutor e = new RejectingExecutor();
+        Counter c = new Counter();
+        Subscription<Integer> s = tracker.subscribe(box(50, 60, 0, 20), c, 0, e, 100, OverflowPolicy.DROP_OLDEST);
+        e.reject = true;
+        tracker.update(1, PositionTime.create(55, 10, 1));
+        tracker.doRun();
+        assertEquals(1, s.getNumberOfRejectedDeliveries());
+        assertEquals(1, s.getNumberOfPendingEvents());
+        // the queued event is delivered once the executor accepts the drainer again
+        e.reject = false;
+        tracker.update(2, PositionTime.create(55, 11, 1));
+        tracker.doRun();
+        assertEquals(2, c.entering.get());
+        assertEquals(0, s.getNumberOfPendingEvents());
+        assertEquals(1, s.getNumberOfRejectedDeliveries());
+    }
+
+    @Test
+    public void rejectedByExecutorWhileBlocking() {
+        RejectingExecutor e = new RejectingExecutor();
+        e.reject = true;
+        Counter c = new Counter();
+        Subscription<Integer> s = tracker.subscribe(box(50, 60, 0, 20), c, 0, e, 1, OverflowPolicy.BLOCK);
+        // the tick must not wait for a drainer that was never scheduled
+        tick().run();
+        assertEquals(TARGETS - 1, s.getNumberOfDroppedEvents());
+        assertEquals(1, s.getNumberOfPendingEvents());
+        e.reject = false;
+        tracker.update(0, PositionTime.create(30, 10, 2));
+        tracker.doRun();
+        assertEquals(1, c.entering.get());
+        assertEquals(0, s.getNumberOfPendingEvents());
+    }
+
+    /** Updates the targets, and returns a task that runs a single tick. */
+    private Runnable tick() {
+        for (int i = 0; i < TARGETS; i++) {
+            tracker.update(i, PositionTime.create(55, 10 + i * 0.1, 1));
+        }
+        return new Runnable() {
+            public void run() {
+                tracker.doRun();
+            }
+        };
+    }
+
+    private Counter[] subscribeOthers(int count) {
+        Counter[] result = new Counter[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new Counter();
+            tracker.subscribe(box(50, 60, 0, 20), result[i], 0);
+        }
+        return result;
+    }
+
+    /** Counts the entering events. */
+    static class Counter extends PositionUpdatedHandler<Integer> {
+
+        private final AtomicInteger entering = new AtomicInteger();
+
+        /** Waits for the specified number of entering events. */
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (entering.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, entering.get());
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void entering(Integer t, PositionTime positiontime) {
+            entering.incrementAndGet();
+        }
+    }
+
+    /** Runs tasks on the calling thread, or rejects them. */
+    static class RejectingExecutor implements Executor {
+
+        volatile boolean reject;
+
+        /** {@inheritDoc} */
+        @Override
+        public void execute(Runnable command) {
+            if (reject) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        }
+    }
+
+    /** A handler that does not return from the first event until released. */
+    class Slow extends PositionUpdatedHandler<Integer> {
+
+        /** {@inheritDoc} */
+        @Override
+        protected void entering(Integer t, PositionTime positiontime) {
+            stalled.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static dk.dma.commons.tracker.PackedTargetStoreTest.assertPosition;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link BatchPositionUpdatedHandler} invoked directly from the tick of the tracker.
+ *
+ * @author Kasper Nielsen
+ */
+public class BatchPositionUpdatedHandlerTest {
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    private final Batches batches = new Batches();
+
+    @Test
+    public void oneBatchPerTick() {
+        tracker.subscribe(box(55, 56, 10, 11), batches, 0);
+        tracker.update(1, PositionTime.create(55.1, 10.1, 1));
+        tracker.update(2, PositionTime.create(55.2, 10.2, 1));
+        tracker.update(3, PositionTime.create(55.3, 10.3, 1));
+        tracker.update(4, PositionTime.create(57, 12, 1));
+        tracker.doRun();
+        assertEquals(1, batches.list.size());
+        PositionUpdateBatch<? extends Integer> b = batches.list.get(0);
+        assertEquals(Arrays.asList(1, 2, 3), sorted(b.getEntering()));
+        assertEquals(3, b.getEnteringPositions().size());
+        assertEquals(0, b.getUpdated().size());
+        assertEquals(0, b.getExiting().size());
+
+        PositionTime moved = PositionTime.create(55.4, 10.4, 2);
+        tracker.update(1, moved);
+        tracker.update(2, PositionTime.create(57, 12, 2));
+        tracker.remove(3);
+        tracker.update(4, PositionTime.create(55.5, 10.5, 2));
+        tracker.doRun();
+        assertEquals(2, batches.list.size());
+        b = batches.list.get(1);
+        assertEquals(Arrays.asList(4), b.getEntering());
+        assertPosition(PositionTime.create(55.5, 10.5, 2), b.getEnteringPositions().get(0));
+        assertEquals(Arrays.asList(1), b.getUpdated());
+        assertPosition(PositionTime.create(55.1, 10.1, 1), b.getPreviousPositions().get(0));
+        assertPosition(moved, b.getUpdatedPositions().get(0));
+        assertEquals(Arrays.asList(2, 3), sorted(b.getExiting()));
+        assertEquals(4, b.size());
+    }
+
+    @Test
+    public void noBatchForEmptyTick() {
+        tracker.subscribe(box(55, 56, 10, 11), batches, 0);
+        tracker.update(1, PositionTime.create(55.1, 10.1, 1));
+        tracker.doRun();
+        assertEquals(1, batches.list.size());
+        // nothing changed
+        tracker.doRun();
+        // changes outside of the area
+        tracker.update(2, PositionTime.create(57, 12, 2));
+        tracker.doRun();
+        // a report at the same position
+        tracker.update(1, PositionTime.create(55.1, 10.1, 3));
+        tracker.doRun();
+        assertEquals(1, batches.list.size());
+    }
+
+    private static List<Integer> sorted(List<? extends Integer> list) {
+        List<Integer> result = new ArrayList<>(list);
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Records every batch. */
+    static class Batches extends BatchPositionUpdatedHandler<Integer> {
+
+        final List<PositionUpdateBatch<? extends Integer>> list = new ArrayList<>();
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void updated(PositionUpdateBatch<? extends Integer> batch) {
+            list.add(batch);
+        }
+    }
+}
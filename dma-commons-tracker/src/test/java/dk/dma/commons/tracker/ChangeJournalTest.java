@@ -0,0 +1,179 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.PackedTargetStoreTest.assertPosition;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link PositionTracker#changesSince(long)} and {@link ChangeJournal}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ChangeJournalTest {
+
+    private static final PositionTime P1 = PositionTime.create(55.1, 10.1, 1);
+
+    private static final PositionTime P2 = PositionTime.create(55.2, 10.2, 1);
+
+    private static final PositionTime P3 = PositionTime.create(55.3, 10.3, 2);
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<Integer>(1).setChangeJournal(10);
+
+    @Test
+    public void mergedWithinWindow() {
+        tracker.update(1, P1);
+        tracker.update(2, P2);
+        tracker.doRun();
+        PositionTime moved = PositionTime.create(55.4, 10.4, 2);
+        tracker.update(1, moved);
+        tracker.update(3, P3);
+        tracker.doRun();
+
+        ChangeSet<Integer> cs = tracker.changesSince(0);
+        assertFalse(cs.isFull());
+        assertEquals(2, cs.getVersion());
+        assertEquals(3, cs.getUpdated().size());
+        assertPosition(moved, cs.getUpdated().get(1));
+        assertPosition(P2, cs.getUpdated().get(2));
+        assertPosition(P3, cs.getUpdated().get(3));
+        assertTrue(cs.getRemoved().isEmpty());
+
+        cs = tracker.changesSince(1);
+        assertFalse(cs.isFull());
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)), cs.getUpdated().keySet());
+
+        cs = tracker.changesSince(2);
+        assertFalse(cs.isFull());
+        assertEquals(2, cs.getVersion());
+        assertTrue(cs.getUpdated().isEmpty());
+        assertTrue(cs.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void updateAfterRemoval() {
+        tracker.update(1, P1);
+        tracker.update(2, P2);
+        tracker.doRun();
+        tracker.remove(1);
+        tracker.remove(2);
+        tracker.doRun();
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), tracker.changesSince(1).getRemoved());
+        // a later tick updates target 1 again, which cancels its removal
+        tracker.update(1, P3);
+        tracker.doRun();
+
+        ChangeSet<Integer> cs = tracker.changesSince(1);
+        assertFalse(cs.isFull());
+        assertEquals(Collections.singleton(1), cs.getUpdated().keySet());
+        assertPosition(P3, cs.getUpdated().get(1));
+        assertEquals(Collections.singleton(2), cs.getRemoved());
+
+        // and a removal after an update cancels the update
+        cs = tracker.changesSince(0);
+        assertEquals(Collections.singleton(1), cs.getUpdated().keySet());
+        assertEquals(Collections.singleton(2), cs.getRemoved());
+    }
+
+    @Test
+    public void fullOutsideWindow() {
+        tracker.setChangeJournal(2);
+        tracker.update(1, P1);
+        tracker.doRun();
+        tracker.update(2, P2);
+        tracker.doRun();
+        tracker.update(3, P3);
+        tracker.remove(1);
+        tracker.doRun();
+
+        // version 0 is older than the oldest tick kept
+        ChangeSet<Integer> cs = tracker.changesSince(0);
+        assertTrue(cs.isFull());
+        assertEquals(3, cs.getVersion());
+        assertEquals(new HashSet<>(Arrays.asList(2, 3)), cs.getUpdated().keySet());
+        assertTrue(cs.getRemoved().isEmpty());
+
+        assertFalse(tracker.changesSince(1).isFull());
+
+        // a version newer than the current version, for example from before the tracker was restarted
+        cs = tracker.changesSince(4);
+        assertTrue(cs.isFull());
+        assertEquals(3, cs.getVersion());
+        assertEquals(2, cs.getUpdated().size());
+    }
+
+    @Test
+    public void emptyTicksNotKept() {
+        tracker.setChangeJournal(2);
+        tracker.update(1, P1);
+        tracker.doRun();
+        for (int i = 0; i < 5; i++) {
+            tracker.doRun();
+        }
+        tracker.update(2, P2);
+        tracker.doRun();
+        assertEquals(7, tracker.getVersion());
+
+        // both ticks with changes are kept, so every version since 0 is within the window
+        for (long v = 0; v <= 7; v++) {
+            ChangeSet<Integer> cs = tracker.changesSince(v);
+            assertFalse(cs.isFull());
+            assertEquals(7, cs.getVersion());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1, 2)), tracker.changesSince(0).getUpdated().keySet());
+        assertEquals(Collections.singleton(2), tracker.changesSince(1).getUpdated().keySet());
+        assertEquals(Collections.singleton(2), tracker.changesSince(6).getUpdated().keySet());
+        assertTrue(tracker.changesSince(7).getUpdated().isEmpty());
+    }
+
+    @Test
+    public void journal() {
+        ChangeJournal<Integer> journal = new ChangeJournal<>(1, 5);
+        assertNotNull(journal.changesSince(5));
+        assertNull(journal.changesSince(4));
+        assertNull(journal.changesSince(6));
+        journal.add(6, Collections.<Integer, PositionTime> emptyMap(), Collections.<Integer> emptyList());
+        journal.add(7, Collections.singletonMap(1, P1), Collections.<Integer> emptyList());
+        journal.add(8, Collections.<Integer, PositionTime> emptyMap(), Collections.<Integer> emptyList());
+        assertEquals(8, journal.getVersion());
+        assertEquals(Collections.singleton(1), journal.changesSince(5).getUpdated().keySet());
+        // the next tick with changes discards the oldest tick
+        journal.add(9, Collections.singletonMap(2, P2), Collections.<Integer> emptyList());
+        assertNull(journal.changesSince(6));
+        assertEquals(Collections.singleton(2), journal.changesSince(7).getUpdated().keySet());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noJournal() {
+        new PositionTracker<Integer>(1).changesSince(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeVersion() {
+        tracker.changesSince(-1);
+    }
+}
@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import dk.dma.commons.tracker.SubscriptionIndexTest.Recorder;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests that a tick of {@link PositionTracker} only visits the targets that have been updated since the last tick, and
+ * that no update is lost to a concurrent tick.
+ *
+ * @author Kasper Nielsen
+ */
+public class ChangedTargetsTest {
+
+    @Test
+    public void visitsOnlyChangedTargets() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        for (int i = 0; i < 100; i++) {
+            tracker.update(i, PositionTime.create(55, 10 + i * 0.01, 1));
+        }
+        assertEquals(100, tracker.changed.size());
+        tracker.doRun();
+        assertTrue(tracker.changed.isEmpty());
+        assertEquals(100, tracker.getNumberOfUpdatesInLastTick());
+
+        tracker.update(3, PositionTime.create(56, 10, 2));
+        tracker.update(17, PositionTime.create(56, 11, 2));
+        // an older report is ignored, and does not mark the target as changed
+        tracker.update(42, PositionTime.create(57, 12, 0));
+        assertEquals(new HashSet<>(Arrays.asList(3, 17)), tracker.changed.keySet());
+        tracker.doRun();
+        assertTrue(tracker.changed.isEmpty());
+        assertEquals(2, tracker.getNumberOfUpdatesInLastTick());
+        assertEquals(102, tracker.getNumberOfPublishedUpdates());
+
+        tracker.doRun();
+        assertEquals(0, tracker.getNumberOfUpdatesInLastTick());
+    }
+
+    @Test
+    public void updatedDuringTick() {
+        final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        Recorder r = new Recorder() {
+            protected synchronized void entering(Integer t, PositionTime positiontime) {
+                super.entering(t, positiontime);
+                if (t == 1) {
+                    // after the changed targets have been drained
+                    tracker.update(2, PositionTime.create(55.5, 10.5, 2));
+                }
+            }
+        };
+        tracker.subscribe(box(55, 56, 10, 11), r, 0);
+        tracker.update(1, PositionTime.create(55.2, 10.2, 1));
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        assertNull(tracker.getLatest(2));
+        assertEquals(Collections.singleton(2), tracker.changed.keySet());
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 2"), r.drain());
+    }
+
+    @Test
+    public void updatedConcurrentlyWithTicks() throws InterruptedException {
+        final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        final int targets = 100;
+        final int rounds = 2000;
+        Thread updater = new Thread(new Runnable() {
+            public void run() {
+                for (int round = 1; round <= rounds; round++) {
+                    for (int i = 0; i < targets; i++) {
+                        tracker.update(i, PositionTime.create(55 + round * 1e-4, 10 + i * 0.01, round));
+                    }
+                }
+            }
+        });
+        updater.start();
+        while (updater.isAlive()) {
+            tracker.doRun();
+        }
+        tracker.doRun();
+        // the last update of every target has been published, even if it was made while a tick was running
+        for (int i = 0; i < targets; i++) {
+            PositionTime latest = tracker.getLatest(i);
+            assertEquals(rounds, latest.getTime());
+            assertTrue(latest.positionEquals(PositionTime.create(55 + rounds * 1e-4, 10 + i * 0.01, rounds)));
+        }
+        assertTrue(tracker.changed.isEmpty());
+    }
+}
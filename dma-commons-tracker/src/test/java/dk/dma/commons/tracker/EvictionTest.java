@@ -0,0 +1,118 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import dk.dma.commons.tracker.SubscriptionIndexTest.Recorder;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests eviction of targets that stop reporting, see {@link PositionTracker#setTimeToLive(long, TimeUnit)}.
+ *
+ * @author Kasper Nielsen
+ */
+public class EvictionTest {
+
+    /** The time to live in milliseconds. */
+    static final long TTL = 50;
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    @Test
+    public void evicted() throws InterruptedException {
+        tracker.setTimeToLive(TTL, TimeUnit.MILLISECONDS).setHistory(10, 0, TimeUnit.MILLISECONDS);
+        Recorder r = new Recorder();
+        tracker.subscribe(box(55, 56, 10, 11), r, 0);
+        tracker.update(1, PositionTime.create(55.1, 10.1, 1));
+        tracker.update(2, PositionTime.create(55.2, 10.2, 1));
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 1", "entering 2"), r.drain());
+
+        Thread.sleep(2 * TTL);
+        tracker.update(2, PositionTime.create(55.3, 10.3, 2));
+        tracker.doRun();
+        assertEquals(Arrays.asList("exiting 1"), r.drain());
+        assertEquals(1, tracker.getNumberOfEvictedTargets());
+        // gone from the store, the spatial index, the history and the expiry index
+        assertEquals(1, tracker.getNumberOfTrackedObjects());
+        assertNull(tracker.getLatest(1));
+        assertEquals(Collections.singleton(2), tracker.getTargetsWithin(box(55, 56, 10, 11)).keySet());
+        assertEquals(0, tracker.getHistory(1, 10, new double[10], new double[10], new long[10]));
+        assertEquals(2, tracker.getHistory(2, 10, new double[10], new double[10], new long[10]));
+        assertEquals(1, tracker.expiry.size());
+        // the exiting event has been published
+        assertTrue(tracker.removed.isEmpty());
+
+        tracker.doRun();
+        assertEquals(Collections.emptyList(), r.drain());
+        assertEquals(1, tracker.getNumberOfEvictedTargets());
+    }
+
+    @Test
+    public void updatedBeforeTick() throws InterruptedException {
+        tracker.setTimeToLive(TTL, TimeUnit.MILLISECONDS);
+        Recorder r = new Recorder();
+        tracker.subscribe(box(55, 56, 10, 11), r, 0);
+        tracker.update(1, PositionTime.create(55.1, 10.1, 1));
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        // the bucket of the target has expired, but it reported again before the tick
+        Thread.sleep(2 * TTL);
+        tracker.update(1, PositionTime.create(55.1, 10.1, 2));
+        tracker.doRun();
+        assertEquals(Collections.emptyList(), r.drain());
+        assertEquals(0, tracker.getNumberOfEvictedTargets());
+        assertEquals(1, tracker.getNumberOfTrackedObjects());
+    }
+
+    /** A target that is updated after it was found in an expired bucket must be checked again before it is removed. */
+    @Test
+    public void updatedWhileExpiring() {
+        final ExpiryIndex<Integer> index = new ExpiryIndex<>();
+        final long ttl = TimeUnit.MILLISECONDS.toNanos(TTL);
+        index.touch(1, 0, ttl);
+        index.touch(2, 0, ttl);
+        final long now = 2 * ttl;
+        assertTrue(index.hasExpired(now, ttl));
+        final AtomicInteger found = new AtomicInteger();
+        index.expire(now, ttl, new ExpiryIndex.ExpiryCallback<Integer>() {
+            public void expired(Integer t, long bucket) {
+                found.incrementAndGet();
+                if (t == 1) {
+                    index.touch(1, now, ttl);
+                    assertFalse(index.isIn(1, bucket));
+                } else {
+                    assertTrue(index.isIn(2, bucket));
+                    index.remove(2);
+                }
+            }
+        });
+        assertEquals(2, found.get());
+        assertEquals(1, index.size());
+        assertFalse(index.hasExpired(now, ttl));
+    }
+}
@@ -0,0 +1,285 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static dk.dma.commons.tracker.GridIndexTest.circle;
+import static dk.dma.commons.tracker.GridIndexTest.polygon;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.commons.tracker.SubscriptionIndexTest.Recorder;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Polygon;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link Geofence}.
+ *
+ * @author Kasper Nielsen
+ */
+public class GeofenceTest {
+
+    private final Random random = new Random(4711);
+
+    private long time;
+
+    @Test
+    public void compiledCircle() {
+        for (int i = 0; i < 2000; i++) {
+            // mostly circles that are compiled, but also large ones and ones close to the poles that are not
+            double lat = i % 4 == 0 ? random.nextDouble() * 180 - 90 : random.nextDouble() * 140 - 70;
+            Circle c = circle(lat, random.nextDouble() * 360 - 180, random.nextDouble() * 600000);
+            Geofence fence = Geofence.of(c);
+            for (int j = 0; j < 50; j++) {
+                // on the boundary, or within a fraction of the tolerance of the planar approximation of it
+                double f = j % 5 == 0 ? 1 : 1 + (random.nextDouble() * 2 - 1) * Geofence.PLANAR_TOLERANCE * 1.5;
+                assertContains(c, fence, destination(c.getCenter(), random.nextDouble() * 360, c.getRadius() * f));
+            }
+            for (int j = 0; j < 50; j++) {
+                assertContains(c, fence, near(c.getCenter(), c.getRadius() * 1.5));
+            }
+        }
+    }
+
+    @Test
+    public void compiledPolygon() {
+        for (int i = 0; i < 2000; i++) {
+            double lat;
+            double lon;
+            if (i % 3 == 0) { // across the antimeridian
+                lat = random.nextDouble() * 140 - 70;
+                lon = 180 + (random.nextDouble() * 2 - 1) * 5;
+            } else if (i % 3 == 1) { // high latitude
+                lat = (random.nextBoolean() ? 1 : -1) * (70 + random.nextDouble() * 15);
+                lon = random.nextDouble() * 360 - 180;
+            } else {
+                lat = random.nextDouble() * 140 - 70;
+                lon = random.nextDouble() * 360 - 180;
+            }
+            Polygon polygon = randomPolygon(lat, lon, random.nextDouble() * 3);
+            Geofence fence = Geofence.of(polygon);
+            List<Position> vertices = polygon.getVertices();
+            for (int j = 0; j < vertices.size(); j++) {
+                Position a = vertices.get(j);
+                Position b = vertices.get((j + 1) % vertices.size());
+                assertContains(polygon, fence, a);
+                for (int k = 0; k < 10; k++) {
+                    // on the straight line between the vertices, and close to it
+                    double f = random.nextDouble();
+                    double d = k % 2 == 0 ? 0 : (random.nextDouble() * 2 - 1) * 1e-4;
+                    Position p = Position.create(a.getLatitude() + f * (b.getLatitude() - a.getLatitude()) + d,
+                            a.getLongitude() + f * (b.getLongitude() - a.getLongitude()));
+                    assertContains(polygon, fence, p);
+                }
+            }
+            for (int j = 0; j < 100; j++) {
+                assertContains(polygon, fence, near(Position.create(lat, normalize(lon)), 400000));
+            }
+        }
+    }
+
+    /** Checks that the compiled geofence contains the same positions as the area. */
+    private static void assertContains(Area area, Geofence fence, Position p) {
+        assertTrue(vertices(area) + " contains " + p, area.contains(p) == fence.contains(p));
+    }
+
+    /** Returns the position at the specified distance and bearing from a position on a sphere. */
+    private static Position destination(Position p, double bearing, double meters) {
+        double delta = meters / Geofence.EARTH_RADIUS;
+        double theta = Math.toRadians(bearing);
+        double phi1 = Math.toRadians(p.getLatitude());
+        double phi2 = Math.asin(Math.sin(phi1) * Math.cos(delta) + Math.cos(phi1) * Math.sin(delta)
+                * Math.cos(theta));
+        double lambda = Math.atan2(Math.sin(theta) * Math.sin(delta) * Math.cos(phi1),
+                Math.cos(delta) - Math.sin(phi1) * Math.sin(phi2));
+        return Position.create(Math.toDegrees(phi2), normalize(p.getLongitude() + Math.toDegrees(lambda)));
+    }
+
+    /** Returns a random polygon whose vertices are within the specified number of degrees of a position. */
+    private Polygon randomPolygon(double lat, double lon, double degrees) {
+        int n = 3 + random.nextInt(6);
+        double[] angles = new double[n];
+        for (int i = 0; i < n; i++) {
+            angles[i] = random.nextDouble() * 2 * Math.PI;
+        }
+        Arrays.sort(angles);
+        double[] coordinates = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            // a star shaped polygon, that is not self intersecting
+            double r = degrees * (0.2 + 0.8 * random.nextDouble());
+            coordinates[2 * i] = Math.max(-89.9, Math.min(89.9, lat + r * Math.sin(angles[i])));
+            coordinates[2 * i + 1] = normalize(lon + r * Math.cos(angles[i]));
+        }
+        return polygon(coordinates);
+    }
+
+    /** Returns the longitude in the range [-180, 180). */
+    private static double normalize(double longitude) {
+        return Geofence.longitudeDifference(longitude, 0);
+    }
+
+    @Test
+    public void expandBoxWithinSlack() {
+        Area box = box(55, 56, 10, 11);
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        Recorder r = new Recorder();
+        tracker.subscribe(box, r, 1000);
+        update(tracker, 1, 55.5, 10.5);
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        // outside of the box, but within the slack of each edge and corner
+        update(tracker, 1, 56 + degrees(500), 10.5);
+        update(tracker, 1, 55.5, 11 + degrees(500) / Math.cos(Math.toRadians(55.5)));
+        update(tracker, 1, 55 - degrees(500), 10.5);
+        update(tracker, 1, 55.5, 10 - degrees(500) / Math.cos(Math.toRadians(55.5)));
+        update(tracker, 1, 56 + degrees(500), 11);
+        assertEquals(Collections.emptyList(), r.drain());
+        // beyond the slack
+        update(tracker, 1, 56 + degrees(1500), 10.5);
+        assertEquals(Arrays.asList("exiting 1"), r.drain());
+        // only entering the area itself counts
+        update(tracker, 1, 56 + degrees(500), 10.5);
+        assertEquals(Collections.emptyList(), r.drain());
+        update(tracker, 1, 55.9, 10.5);
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+    }
+
+    @Test
+    public void expandPolygonWithinSlack() {
+        Area polygon = polygon(55, 10, 55, 12, 57, 11);
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        Recorder r = new Recorder();
+        tracker.subscribe(polygon, r, 1000);
+        update(tracker, 1, 55.5, 11);
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        // within the slack of the southern edge and the northern vertex
+        update(tracker, 1, 55 - degrees(500), 11);
+        update(tracker, 1, 57 + degrees(500), 11);
+        assertEquals(Collections.emptyList(), r.drain());
+        // beyond the slack of the southern edge
+        update(tracker, 1, 55 - degrees(1500), 11);
+        assertEquals(Arrays.asList("exiting 1"), r.drain());
+        // beyond the slack of the northern vertex
+        update(tracker, 1, 56, 11);
+        update(tracker, 1, 57 + degrees(1500), 11);
+        assertEquals(Arrays.asList("entering 1", "exiting 1"), r.drain());
+    }
+
+    @Test
+    public void expandCircleAsBefore() {
+        // a circle with slack exits like a circle with the slack added to the radius, as it always has
+        Circle c = circle(55, 10, 10000);
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        Recorder r = new Recorder();
+        tracker.subscribe(c, r, 1000);
+        update(tracker, 1, 55, 10);
+        update(tracker, 1, 55 + degrees(10500), 10);
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        update(tracker, 1, 55 + degrees(11500), 10);
+        assertEquals(Arrays.asList("exiting 1"), r.drain());
+
+        for (int i = 0; i < 10000; i++) {
+            Circle area = circle(random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180,
+                    random.nextDouble() * 1000000);
+            double slack = random.nextDouble() * 100000;
+            Geofence expanded = Geofence.expand(area, slack);
+            Circle expected = area.withRadius(area.getRadius() + slack);
+            for (int j = 0; j < 10; j++) {
+                Position p = near(area.getCenter(), area.getRadius() + slack);
+                assertEquals(expected.contains(p), expanded.contains(p));
+            }
+        }
+    }
+
+    @Test
+    public void expandMatchesDistanceToEdges() {
+        double slack = 2000;
+        for (int i = 0; i < 100; i++) {
+            double lat = random.nextDouble() * 140 - 70;
+            double lon = random.nextDouble() * 358 - 179;
+            Area area = random.nextBoolean() ? box(lat, lat + 0.5, lon, lon + 0.5)
+                    : polygon(lat, lon, lat, lon + 0.5, lat + 0.5, lon + 0.2);
+            List<Position> vertices = vertices(area);
+            Geofence expanded = Geofence.expand(area, slack);
+            for (int j = 0; j < 100; j++) {
+                Position p = near(vertices.get(random.nextInt(vertices.size())), 60000);
+                double distance = distanceToEdges(vertices, p);
+                if (area.contains(p) || distance < slack * 0.98) {
+                    assertTrue(expanded.contains(p));
+                } else if (distance > slack * 1.02) {
+                    assertFalse(expanded.contains(p));
+                }
+            }
+        }
+    }
+
+    /** Returns the approximate geodesic distance from a position to the nearest edge between the vertices. */
+    private static double distanceToEdges(List<Position> vertices, Position p) {
+        double result = Double.POSITIVE_INFINITY;
+        for (int i = 0, j = vertices.size() - 1; i < vertices.size(); j = i++) {
+            Position a = vertices.get(j);
+            Position b = vertices.get(i);
+            for (int k = 0; k <= 1000; k++) {
+                double f = k / 1000d;
+                Position e = Position.create(a.getLatitude() + f * (b.getLatitude() - a.getLatitude()),
+                        a.getLongitude() + f * (b.getLongitude() - a.getLongitude()));
+                result = Math.min(result, p.geodesicDistanceTo(e));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the vertices of a box or polygon created by this test. */
+    private static List<Position> vertices(Area area) {
+        if (area instanceof Polygon) {
+            return ((Polygon) area).getVertices();
+        }
+        double minLat = area.getBoundingBox().getMinLat();
+        double maxLat = area.getBoundingBox().getMaxLat();
+        double minLon = area.getBoundingBox().getMinLon();
+        double maxLon = area.getBoundingBox().getMaxLon();
+        return Arrays.asList(Position.create(minLat, minLon), Position.create(minLat, maxLon),
+                Position.create(maxLat, maxLon), Position.create(maxLat, minLon));
+    }
+
+    /** Returns a random position within approximately the specified distance of a position. */
+    Position near(Position p, double meters) {
+        double d = degrees(meters) * 1.2;
+        double lat = Math.max(-90, Math.min(90, p.getLatitude() + (random.nextDouble() * 2 - 1) * d));
+        double lon = p.getLongitude() + (random.nextDouble() * 2 - 1) * d / Math.cos(Math.toRadians(lat));
+        return Position.create(lat, normalize(lon));
+    }
+
+    /** Converts meters along a meridian to degrees of latitude. */
+    static double degrees(double meters) {
+        return Math.toDegrees(meters / Geofence.EARTH_RADIUS);
+    }
+
+    /** Updates a target and runs a tick. */
+    private void update(PositionTracker<Integer> tracker, int id, double latitude, double longitude) {
+        tracker.update(id, PositionTime.create(latitude, longitude, ++time));
+        tracker.doRun();
+    }
+}
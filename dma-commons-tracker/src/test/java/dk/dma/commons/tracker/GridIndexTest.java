@@ -0,0 +1,276 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Polygon;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests the spatial queries of {@link PositionTracker} backed by {@link GridIndex} against a brute force search of all
+ * targets.
+ *
+ * @author Kasper Nielsen
+ */
+public class GridIndexTest {
+
+    /** The latest position of each target, used for the brute force search. */
+    private final Map<Integer, PositionTime> positions = new HashMap<>();
+
+    private final Random random = new Random(4711);
+
+    private long time;
+
+    @Test
+    public void withinArea() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        updateRandom(tracker, 2000, 50, 60, 0, 20);
+        for (int i = 0; i < 200; i++) {
+            assertWithin(tracker, randomArea(50, 60, 0, 20, 300000));
+        }
+    }
+
+    @Test
+    public void withinAreaOnCellEdges() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        int id = 0;
+        for (int lat = 50; lat <= 60; lat++) {
+            for (int lon = 0; lon <= 20; lon++) {
+                update(tracker, id++, Position.create(lat, lon));
+                update(tracker, id++, Position.create(lat + 0.5, lon));
+                update(tracker, id++, Position.create(lat, lon + 0.5));
+            }
+        }
+        // areas whose edges are exactly on cell edges
+        assertWithin(tracker, box(52, 55, 3, 10));
+        assertWithin(tracker, box(52, 52, 3, 3));
+        assertWithin(tracker, polygon(52, 3, 55, 3, 55, 10));
+        assertWithin(tracker, circle(55, 10, 111000));
+        for (int i = 0; i < 200; i++) {
+            int lat = 50 + random.nextInt(8);
+            int lon = random.nextInt(18);
+            assertWithin(tracker, box(lat, lat + random.nextInt(3), lon, lon + random.nextInt(3)));
+        }
+    }
+
+    @Test
+    public void withinAreaSpanningManyCells() {
+        // many more cells than a subscription is routed to, see SubscriptionIndex.MAX_CELLS
+        PositionTracker<Integer> tracker = new PositionTracker<>(0.1);
+        updateRandom(tracker, 5000, -40, 40, -60, 60);
+        BoundingBox box = box(-30, 30, -50, 50);
+        assertNull(tracker.grid.cellsOverlapping(Geofence.of(box), SubscriptionIndex.MAX_CELLS));
+        assertWithin(tracker, box);
+        assertWithin(tracker, polygon(-30, -50, 30, -50, 30, 50, -20, 40));
+        assertWithin(tracker, circle(0, 0, 3000000));
+    }
+
+    @Test
+    public void withinAreaMovingTargets() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(0.5);
+        updateRandom(tracker, 500, 54, 58, 8, 14);
+        List<Area> areas = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            areas.add(randomArea(54, 58, 8, 14, 100000));
+        }
+        for (int round = 0; round < 20; round++) {
+            // move every target a bit, most of them into another cell
+            for (int id = 0; id < 500; id++) {
+                PositionTime p = positions.get(id);
+                double lat = Math.max(54, Math.min(58, p.getLatitude() + random.nextDouble() - 0.5));
+                double lon = Math.max(8, Math.min(14, p.getLongitude() + random.nextDouble() - 0.5));
+                update(tracker, id, Position.create(lat, lon));
+            }
+            for (Area a : areas) {
+                assertWithin(tracker, a);
+            }
+        }
+        // removed targets must be gone from the index
+        for (int id = 0; id < 500; id += 2) {
+            tracker.remove(id);
+            positions.remove(id);
+        }
+        for (Area a : areas) {
+            assertWithin(tracker, a);
+        }
+    }
+
+    @Test
+    public void nearest() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(0.5);
+        updateRandom(tracker, 1000, 50, 60, 0, 20);
+        for (int i = 0; i < 200; i++) {
+            Position p = Position.create(45 + random.nextDouble() * 20, -5 + random.nextDouble() * 30);
+            assertNearest(tracker, p, 1 + random.nextInt(20));
+        }
+        // more than the number of targets
+        assertNearest(tracker, Position.create(55, 10), 1010);
+        assertNearest(tracker, Position.create(-55, -170), 1010);
+    }
+
+    @Test
+    public void nearestAcrossEmptyRings() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(0.1);
+        // a few small clusters far apart, so most rings around a position are empty
+        int id = 0;
+        for (double[] c : new double[][] { { 55, 10 }, { 57, 14 }, { 10, 179.8 }, { 10, -179.8 }, { 89.5, 0 } }) {
+            for (int i = 0; i < 20; i++) {
+                Position p = Position.create(c[0] + random.nextDouble() * 0.3, c[1] + random.nextDouble() * 0.1);
+                update(tracker, id++, p);
+            }
+        }
+        assertNearest(tracker, Position.create(56, 12), 5);
+        assertNearest(tracker, Position.create(56, 12), 30);
+        assertNearest(tracker, Position.create(10, 179.95), 30);
+        assertNearest(tracker, Position.create(10, -179.5), 30);
+        assertNearest(tracker, Position.create(89.9, 120), 25);
+        assertNearest(tracker, Position.create(30, 60), 150);
+        for (int i = 0; i < 20; i++) {
+            Position p = Position.create(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+            assertNearest(tracker, p, 1 + random.nextInt(110));
+        }
+    }
+
+    @Test
+    public void withinDistance() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        updateRandom(tracker, 2000, 50, 60, 0, 20);
+        int id = 2000;
+        for (int i = 0; i < 500; i++) {
+            // around the antimeridian and the north pole
+            update(tracker, id++, Position.create(random.nextDouble() * 20 - 10, aroundAntimeridian(5)));
+            update(tracker, id++, Position.create(80 + random.nextDouble() * 10, random.nextDouble() * 360 - 180));
+        }
+        for (int i = 0; i < 100; i++) {
+            double meters = random.nextDouble() * 500000;
+            assertWithinDistance(tracker, Position.create(50 + random.nextDouble() * 10, random.nextDouble() * 20),
+                    meters);
+            assertWithinDistance(tracker, Position.create(random.nextDouble() * 20 - 10, aroundAntimeridian(5)),
+                    meters);
+            assertWithinDistance(tracker, Position.create(85 + random.nextDouble() * 5, random.nextDouble() * 360
+                    - 180), meters);
+        }
+        assertWithinDistance(tracker, Position.create(55, 10), 0);
+        assertWithinDistance(tracker, Position.create(55, 10), 30000000);
+    }
+
+    /** Checks the nearest targets against sorting all targets by their distance. */
+    private void assertNearest(PositionTracker<Integer> tracker, final Position p, int k) {
+        List<Map.Entry<Integer, PositionTime>> all = new ArrayList<>(positions.entrySet());
+        Collections.sort(all, new Comparator<Map.Entry<Integer, PositionTime>>() {
+            public int compare(Map.Entry<Integer, PositionTime> a, Map.Entry<Integer, PositionTime> b) {
+                return Double.compare(p.geodesicDistanceTo(a.getValue()), p.geodesicDistanceTo(b.getValue()));
+            }
+        });
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, all.size()); i++) {
+            expected.add(all.get(i).getKey());
+        }
+        assertEquals(expected, new ArrayList<>(tracker.nearest(p, k).keySet()));
+    }
+
+    /** Checks the targets within the distance against all targets within the distance. */
+    private void assertWithinDistance(PositionTracker<Integer> tracker, Position p, double meters) {
+        Map<Integer, PositionTime> expected = new HashMap<>();
+        for (Map.Entry<Integer, PositionTime> e : positions.entrySet()) {
+            if (p.geodesicDistanceTo(e.getValue()) <= meters) {
+                expected.put(e.getKey(), e.getValue());
+            }
+        }
+        assertEquals(expected, new HashMap<>(tracker.withinDistance(p, meters)));
+    }
+
+    /** Checks the targets within the area against all targets contained in the area. */
+    private void assertWithin(PositionTracker<Integer> tracker, Area area) {
+        Map<Integer, PositionTime> expected = new HashMap<>();
+        for (Map.Entry<Integer, PositionTime> e : positions.entrySet()) {
+            if (area.contains(e.getValue())) {
+                expected.put(e.getKey(), e.getValue());
+            }
+        }
+        assertEquals(expected, new HashMap<>(tracker.getTargetsWithin(area)));
+    }
+
+    private Area randomArea(double minLat, double maxLat, double minLon, double maxLon, double maxRadius) {
+        double lat = minLat + random.nextDouble() * (maxLat - minLat);
+        double lon = minLon + random.nextDouble() * (maxLon - minLon);
+        double dLat = random.nextDouble() * 2;
+        double dLon = random.nextDouble() * 3;
+        switch (random.nextInt(3)) {
+        case 0:
+            return circle(lat, lon, random.nextDouble() * maxRadius);
+        case 1:
+            return box(lat, lat + dLat, lon, lon + dLon);
+        default:
+            return polygon(lat, lon, lat + dLat, lon + dLon / 2, lat + dLat / 3, lon + dLon);
+        }
+    }
+
+    /** Returns a random longitude within the specified number of degrees of the antimeridian. */
+    private double aroundAntimeridian(double degrees) {
+        double lon = 180 - degrees + random.nextDouble() * 2 * degrees;
+        return lon > 180 ? lon - 360 : lon;
+    }
+
+    private void update(PositionTracker<Integer> tracker, int id, Position p) {
+        PositionTime pt = PositionTime.create(p, ++time);
+        positions.put(id, pt);
+        tracker.update(id, pt);
+    }
+
+    private void updateRandom(PositionTracker<Integer> tracker, int count, double minLat, double maxLat,
+            double minLon, double maxLon) {
+        for (int id = 0; id < count; id++) {
+            double lat = minLat + random.nextDouble() * (maxLat - minLat);
+            double lon = minLon + random.nextDouble() * (maxLon - minLon);
+            update(tracker, id, Position.create(lat, lon));
+        }
+    }
+
+    static BoundingBox box(double minLat, double maxLat, double minLon, double maxLon) {
+        return BoundingBox.create(Position.create(minLat, minLon), Position.create(maxLat, maxLon),
+                CoordinateSystem.CARTESIAN);
+    }
+
+    static Circle circle(double lat, double lon, double radius) {
+        return new Circle(Position.create(lat, lon), radius, CoordinateSystem.GEODETIC);
+    }
+
+    /** Creates a polygon from pairs of latitudes and longitudes. */
+    static Polygon polygon(double... coordinates) {
+        List<Position> vertices = new ArrayList<>();
+        for (int i = 0; i < coordinates.length; i += 2) {
+            vertices.add(Position.create(coordinates[i], coordinates[i + 1]));
+        }
+        return new Polygon(vertices, CoordinateSystem.CARTESIAN);
+    }
+}
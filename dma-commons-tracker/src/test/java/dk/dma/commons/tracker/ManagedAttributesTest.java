@@ -0,0 +1,117 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+
+import org.junit.Test;
+
+import dk.dma.commons.management.Managements;
+import dk.dma.commons.tracker.SubscriptionIndexTest.Recorder;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests the statistics of {@link PositionTracker} and {@link Subscription}, and that they are exposed as managed
+ * attributes.
+ *
+ * @author Kasper Nielsen
+ */
+public class ManagedAttributesTest {
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    private final Subscription<Integer> subscription = tracker.subscribe(box(55, 56, 10, 11), new Recorder(), 0);
+
+    /** Runs three ticks: three targets entering, one updated and one exiting, and no changes. */
+    private void ticks() {
+        tracker.update(1, PositionTime.create(55.1, 10.1, 1));
+        tracker.update(2, PositionTime.create(55.2, 10.2, 1));
+        tracker.update(3, PositionTime.create(55.3, 10.3, 1));
+        tracker.doRun();
+        assertEquals(3, tracker.getNumberOfUpdatesInLastTick());
+        tracker.update(1, PositionTime.create(55.4, 10.4, 2));
+        tracker.update(2, PositionTime.create(57, 12, 2));
+        tracker.doRun();
+        assertEquals(2, tracker.getNumberOfUpdatesInLastTick());
+        tracker.doRun();
+    }
+
+    @Test
+    public void statistics() {
+        ticks();
+        assertEquals(3, tracker.getNumberOfTicks());
+        assertEquals(0, tracker.getNumberOfUpdatesInLastTick());
+        assertEquals(5, tracker.getNumberOfPublishedUpdates());
+        assertEquals(5.0 / 3, tracker.getAverageUpdatesPerTick(), 1e-9);
+        assertEquals(3, tracker.getNumberOfTrackedObjects());
+        assertEquals(1, tracker.getNumberOfSubscriptions());
+        assertEquals(3, tracker.getVersion());
+        long total = 0;
+        for (long count : tracker.getTickDurationHistogram()) {
+            total += count;
+        }
+        assertEquals(3, total);
+        assertTrue(tracker.getLastTickDurationMicros() <= tracker.getMaxTickDurationMicros());
+        assertTrue(tracker.getAverageTickDurationMicros() <= tracker.getMaxTickDurationMicros());
+
+        assertEquals(3, subscription.getNumberOfEnteringEvents());
+        assertEquals(1, subscription.getNumberOfUpdatedEvents());
+        assertEquals(1, subscription.getNumberOfExitingEvents());
+        assertEquals(2, subscription.getNumberOfTrackedObjects());
+        assertEquals(0, subscription.getNumberOfDroppedEvents());
+        assertEquals(0, subscription.getNumberOfPendingEvents());
+    }
+
+    @Test
+    public void managedAttributes() throws Exception {
+        ticks();
+        DynamicMBean mbean = Managements.tryCreate(tracker, "tracker");
+        assertAttributes(mbean, "AverageTickDurationMicros", "AverageUpdatesPerTick", "LastTickDurationMicros",
+                "MaxTickDurationMicros", "NumberOfEarlyTicks", "NumberOfEvictedTargets", "NumberOfOverruns",
+                "NumberOfPublishedUpdates", "NumberOfSkippedTicks", "NumberOfSubscriptions",
+                "NumberOfSuppressedUpdates", "NumberOfTicks", "NumberOfTrackedObjects", "NumberOfUpdatesInLastTick",
+                "TickDurationHistogram", "Version");
+        assertEquals(3L, mbean.getAttribute("NumberOfTicks"));
+        assertEquals(5L, mbean.getAttribute("NumberOfPublishedUpdates"));
+        assertEquals(tracker.getTickDurationHistogram().length,
+                ((long[]) mbean.getAttribute("TickDurationHistogram")).length);
+
+        mbean = Managements.tryCreate(subscription, "subscription");
+        assertAttributes(mbean, "HandlerTimeMicros", "NumberOfDroppedEvents", "NumberOfEnteringEvents",
+                "NumberOfExitingEvents", "NumberOfPendingEvents", "NumberOfRejectedDeliveries",
+                "NumberOfTrackedObjects", "NumberOfUpdatedEvents");
+        assertEquals(3L, mbean.getAttribute("NumberOfEnteringEvents"));
+        assertEquals(1L, mbean.getAttribute("NumberOfUpdatedEvents"));
+        assertEquals(1L, mbean.getAttribute("NumberOfExitingEvents"));
+    }
+
+    private static void assertAttributes(DynamicMBean mbean, String... names) {
+        Set<String> actual = new HashSet<>();
+        for (MBeanAttributeInfo a : mbean.getMBeanInfo().getAttributes()) {
+            actual.add(a.getName());
+        }
+        for (String name : names) {
+            assertTrue(name + " not in " + actual, actual.contains(name));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.PackedTargetStoreTest.assertPosition;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link PositionTracker#setMinMovement(double)} and
+ * {@link PositionTracker#setMinUpdateInterval(long, TimeUnit)}.
+ *
+ * @author Kasper Nielsen
+ */
+public class MinMovementTest {
+
+    /** Roughly 11 meters of latitude. */
+    private static final double METERS_11 = 0.0001;
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    @Test
+    public void jitterSuppressed() {
+        tracker.setMinMovement(50);
+        PositionTime start = PositionTime.create(55, 10, 1);
+        tracker.update(1, start);
+        tracker.doRun();
+        for (int i = 2; i < 10; i++) {
+            tracker.update(1, PositionTime.create(55 + (i % 2 == 0 ? METERS_11 : -METERS_11), 10, i));
+            tracker.doRun();
+            assertEquals(0, tracker.getNumberOfUpdatesInLastTick());
+            assertPosition(start, tracker.getLatest(1));
+        }
+        assertEquals(8, tracker.getNumberOfSuppressedUpdates());
+        assertTrue(tracker.changed.isEmpty());
+    }
+
+    @Test
+    public void slowDriftPublished() {
+        tracker.setMinMovement(50);
+        tracker.update(1, PositionTime.create(55, 10, 1));
+        tracker.doRun();
+        // each report moves 22 meters from the previous one, but it is measured from the published position
+        for (int i = 1; i <= 2; i++) {
+            tracker.update(1, PositionTime.create(55 + 2 * i * METERS_11, 10, 1 + i));
+            tracker.doRun();
+            assertEquals(0, tracker.getNumberOfUpdatesInLastTick());
+        }
+        PositionTime drifted = PositionTime.create(55 + 6 * METERS_11, 10, 4);
+        tracker.update(1, drifted);
+        tracker.doRun();
+        assertEquals(1, tracker.getNumberOfUpdatesInLastTick());
+        assertPosition(drifted, tracker.getLatest(1));
+        assertEquals(2, tracker.getNumberOfSuppressedUpdates());
+    }
+
+    @Test
+    public void intervalHeldBackUntilReportedAfterInterval() {
+        tracker.setMinUpdateInterval(10, TimeUnit.SECONDS);
+        PositionTime first = PositionTime.create(55, 10, 0);
+        tracker.update(1, first);
+        tracker.doRun();
+        tracker.update(1, PositionTime.create(55.1, 10, 1000));
+        tracker.doRun();
+        assertPosition(first, tracker.getLatest(1));
+        // held back, not dropped, so it is visited again by the next tick
+        assertFalse(tracker.changed.isEmpty());
+        tracker.doRun();
+        assertPosition(first, tracker.getLatest(1));
+        assertEquals(1, tracker.getNumberOfSuppressedUpdates());
+
+        PositionTime after = PositionTime.create(55.2, 10, 11000);
+        tracker.update(1, after);
+        tracker.doRun();
+        assertEquals(1, tracker.getNumberOfUpdatesInLastTick());
+        assertPosition(after, tracker.getLatest(1));
+        assertTrue(tracker.changed.isEmpty());
+    }
+
+    @Test
+    public void intervalHeldBackUntilIntervalPassed() throws InterruptedException {
+        tracker.setMinUpdateInterval(50, TimeUnit.MILLISECONDS);
+        tracker.update(1, PositionTime.create(55, 10, 0));
+        tracker.doRun();
+        long start = System.nanoTime();
+        tracker.update(1, PositionTime.create(55.1, 10, 10));
+        tracker.doRun();
+        PositionTime newest = PositionTime.create(55.2, 10, 20);
+        tracker.update(1, newest);
+        tracker.doRun();
+        if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50)) {
+            assertEquals(0, tracker.getNumberOfUpdatesInLastTick());
+        }
+        Thread.sleep(60);
+        // published by a later tick, without the target reporting again
+        tracker.doRun();
+        assertEquals(1, tracker.getNumberOfUpdatesInLastTick());
+        assertPosition(newest, tracker.getLatest(1));
+        assertTrue(tracker.changed.isEmpty());
+    }
+
+    @Test
+    public void heldBackTargetRemoved() {
+        tracker.setMinUpdateInterval(10, TimeUnit.SECONDS);
+        tracker.update(1, PositionTime.create(55, 10, 0));
+        tracker.doRun();
+        tracker.update(1, PositionTime.create(55.1, 10, 1000));
+        tracker.doRun();
+        assertFalse(tracker.changed.isEmpty());
+        tracker.remove(1);
+        tracker.doRun();
+        assertTrue(tracker.changed.isEmpty());
+        assertNull(tracker.getLatest(1));
+    }
+}
@@ -0,0 +1,97 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link PackedTargetStore} against {@link MapTargetStore}.
+ *
+ * @author Kasper Nielsen
+ */
+public class PackedTargetStoreTest {
+
+    /** Accepts every update. */
+    static final TargetStore.UpdateListener<Integer> UPDATED = new TargetStore.UpdateListener<Integer>() {
+        public void updated(Integer t, double previousLatitude, double previousLongitude, PositionTime current) {}
+    };
+
+    /** Accepts every removal. */
+    static final TargetStore.RemovalListener<Integer> REMOVING = new TargetStore.RemovalListener<Integer>() {
+        public boolean removing(Integer t, PositionTime current, PositionTime latest) {
+            return true;
+        }
+    };
+
+    @Test
+    public void sameAsMap() {
+        PackedTargetStore<Integer> packed = new PackedTargetStore<>();
+        MapTargetStore<Integer> map = new MapTargetStore<>();
+        Random r = new Random(4711);
+        // more targets than fit in a single chunk, and removed slots are reused many times
+        for (int i = 0; i < 100000; i++) {
+            Integer t = r.nextInt(PackedTargetStore.CHUNK_MASK + 100);
+            int op = r.nextInt(10);
+            if (op == 0) {
+                assertEquals(map.remove(t, REMOVING), packed.remove(t, REMOVING));
+            } else if (op < 3) {
+                PositionTime pt = map.get(t);
+                if (pt != null) {
+                    assertPosition(map.publish(t, pt), packed.publish(t, pt));
+                }
+            } else {
+                PositionTime pt = PositionTime.create(r.nextDouble() * 180 - 90, r.nextDouble() * 360 - 180, i);
+                map.update(t, pt, UPDATED);
+                packed.update(t, pt, UPDATED);
+            }
+            assertPosition(map.get(t), packed.get(t));
+            assertPosition(map.getLatest(t), packed.getLatest(t));
+        }
+        assertEquals(map.size(), packed.size());
+    }
+
+    @Test
+    public void publishRemoved() {
+        PackedTargetStore<Integer> packed = new PackedTargetStore<>();
+        PositionTime pt = PositionTime.create(55, 10, 1);
+        packed.update(1, pt, UPDATED);
+        packed.remove(1, REMOVING);
+        assertNull(packed.publish(1, pt));
+        assertNull(packed.get(1));
+        // the slot is reused by another target, that has not been published
+        packed.update(2, PositionTime.create(56, 11, 2), UPDATED);
+        assertNull(packed.getLatest(2));
+        assertNull(packed.publish(2, packed.get(2)));
+        assertPosition(packed.get(2), packed.getLatest(2));
+    }
+
+    /** Checks that two positions are equal, including their time. */
+    static void assertPosition(PositionTime expected, PositionTime actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertTrue(expected + " != " + actual,
+                    actual != null && expected.positionEquals(actual) && expected.getTime() == actual.getTime());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static dk.dma.commons.tracker.PackedTargetStoreTest.assertPosition;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dk.dma.commons.tracker.PositionTracker.StorageMode;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link ShardedPositionTracker} and {@link ShardedSubscription}.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShardedPositionTrackerTest {
+
+    private static final int SHARDS = 4;
+
+    private final ScheduledThreadPoolExecutor ses = new ScheduledThreadPoolExecutor(2);
+
+    private final ShardedPositionTracker<Integer> tracker = new ShardedPositionTracker<>(SHARDS, 1,
+            StorageMode.OBJECTS);
+
+    @After
+    public void after() {
+        ses.shutdownNow();
+    }
+
+    /** Returns the shard that has published the target, failing unless exactly one shard has. */
+    private int shardOf(Integer t) {
+        int result = -1;
+        for (int i = 0; i < SHARDS; i++) {
+            if (tracker.shards[i].getLatest(t) != null) {
+                if (result >= 0) {
+                    fail("target " + t + " is tracked by shard " + result + " and " + i);
+                }
+                result = i;
+            }
+        }
+        assertTrue("target " + t + " is not tracked", result >= 0);
+        return result;
+    }
+
+    /** Runs a tick of every shard concurrently. */
+    private void concurrentTicks() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (final PositionTracker<Integer> shard : tracker.shards) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ignore) {
+                        return;
+                    }
+                    shard.doRun();
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    @Test
+    public void sameShard() {
+        int[] shardOf = new int[200];
+        for (int i = 0; i < 200; i++) {
+            tracker.update(i, PositionTime.create(55, 10 + i * 0.01, 1));
+        }
+        tracker.doRun();
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            shardOf[i] = shardOf(i);
+            used.add(shardOf[i]);
+        }
+        assertEquals(SHARDS, used.size());
+
+        // bulk updates use the same shards
+        Integer[] ts = new Integer[200];
+        PositionTime[] pts = new PositionTime[200];
+        for (int i = 0; i < 200; i++) {
+            ts[i] = i;
+            pts[i] = PositionTime.create(56, 10 + i * 0.01, 2);
+        }
+        tracker.updateAll(ts, pts);
+        // an older report is rejected by the shard that has the newer one
+        tracker.update(7, PositionTime.create(57, 10, 0));
+        tracker.doRun();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(shardOf[i], shardOf(i));
+            assertPosition(pts[i], tracker.getLatest(i));
+        }
+        assertEquals(200, tracker.getNumberOfTrackedObjects());
+
+        assertTrue(tracker.remove(7));
+        tracker.doRun();
+        assertEquals(199, tracker.getNumberOfTrackedObjects());
+        assertNull(tracker.getLatest(7));
+    }
+
+    @Test
+    public void oneEventPerTarget() throws InterruptedException {
+        Serialized h = new Serialized();
+        ShardedSubscription<Integer> s = tracker.subscribe(box(55, 56, 10, 11), h, 0);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            tracker.update(i, PositionTime.create(55.5, 10 + i * 0.005, 1));
+            expected.add("entering " + i);
+        }
+        concurrentTicks();
+        assertEquals(sorted(expected), h.drain());
+        assertEquals(100, s.getNumberOfEnteringEvents());
+        assertEquals(100, s.getNumberOfTrackedObjects());
+        assertEquals(100, s.getTrackedObjects().size());
+
+        expected.clear();
+        for (int i = 0; i < 100; i += 2) {
+            tracker.update(i, PositionTime.create(57, 12, 2));
+            expected.add("exiting " + i);
+        }
+        concurrentTicks();
+        assertEquals(sorted(expected), h.drain());
+        assertEquals(50, s.getNumberOfExitingEvents());
+        assertEquals(50, s.getNumberOfTrackedObjects());
+        assertFalse(h.overlapped);
+
+        s.cancel();
+        assertEquals(0, tracker.getNumberOfSubscriptions());
+        for (PositionTracker<Integer> shard : tracker.shards) {
+            assertEquals(0, shard.getNumberOfSubscriptions());
+        }
+    }
+
+    @Test
+    public void combinesShards() {
+        for (int i = 0; i < 200; i++) {
+            // every other target within the box
+            tracker.update(i, PositionTime.create(i % 2 == 0 ? 55.5 : 57.5, 10 + i * 0.004, 1));
+        }
+        tracker.doRun();
+        assertEquals(200, tracker.getNumberOfTrackedObjects());
+        Map<Integer, PositionTime> within = tracker.getTargetsWithin(box(55, 56, 10, 11));
+        assertEquals(100, within.size());
+        for (int i = 0; i < 200; i += 2) {
+            assertPosition(tracker.getLatest(i), within.get(i));
+        }
+        final AtomicInteger count = new AtomicInteger();
+        tracker.forEachWithinArea(box(55, 56, 10, 11), new BiConsumer<Integer, PositionTime>() {
+            public void accept(Integer t, PositionTime pt) {
+                assertEquals(0, t % 2);
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(100, count.get());
+
+        Position p = Position.create(55.5, 10);
+        Map<Integer, PositionTime> nearest = tracker.nearest(p, 5);
+        assertEquals(Arrays.asList(0, 2, 4, 6, 8), new ArrayList<>(nearest.keySet()));
+        assertEquals(5, tracker.withinDistance(p, 2200).size());
+    }
+
+    @Test
+    public void cancelsEveryShard() throws InterruptedException {
+        ses.setRemoveOnCancelPolicy(true);
+        Future<?> f = tracker.schedule(ses, 5);
+        long deadline = System.currentTimeMillis() + 10000;
+        for (PositionTracker<Integer> shard : tracker.shards) {
+            while (shard.getNumberOfTicks() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(shard.getNumberOfTicks() > 0);
+        }
+        assertFalse(f.isDone());
+        assertTrue(f.cancel(false));
+        assertTrue(f.isCancelled());
+        assertTrue(f.isDone());
+        // let a tick that was running when cancelled complete
+        Thread.sleep(50);
+        assertTrue(ses.getQueue().isEmpty());
+        long[] ticks = new long[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            ticks[i] = tracker.shards[i].getNumberOfTicks();
+        }
+        Thread.sleep(50);
+        for (int i = 0; i < SHARDS; i++) {
+            assertEquals(ticks[i], tracker.shards[i].getNumberOfTicks());
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> result = new ArrayList<>(list);
+        Collections.sort(result);
+        return result;
+    }
+
+    /** A handler that is not thread safe, and records whether it is ever invoked concurrently. */
+    static class Serialized extends PositionUpdatedHandler<Integer> {
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final List<String> events = new ArrayList<>();
+
+        volatile boolean overlapped;
+
+        /** Returns the recorded events sorted, and clears them. */
+        List<String> drain() {
+            List<String> result = sorted(events);
+            events.clear();
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void entering(Integer t, PositionTime positiontime) {
+            record("entering " + t);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void exiting(Integer t) {
+            record("exiting " + t);
+        }
+
+        private void record(String event) {
+            if (active.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            events.add(event);
+            Thread.yield();
+            active.decrementAndGet();
+        }
+    }
+}
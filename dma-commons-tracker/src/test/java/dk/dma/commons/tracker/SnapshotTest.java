@@ -0,0 +1,195 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static dk.dma.commons.tracker.PackedTargetStoreTest.assertPosition;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.commons.tracker.PositionTracker.StorageMode;
+import dk.dma.commons.tracker.SubscriptionIndexTest.Recorder;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link PositionTracker#writeSnapshot(Path, TargetCodec)} and
+ * {@link PositionTracker#restoreSnapshot(Path, TargetCodec)}.
+ *
+ * @author Kasper Nielsen
+ */
+public class SnapshotTest {
+
+    private static final PositionTime P1 = PositionTime.create(55.1, 10.1, 5);
+
+    private static final PositionTime P2 = PositionTime.create(55.2, 10.2, 5);
+
+    private static final PositionTime P3 = PositionTime.create(57.3, 12.3, 5);
+
+    private Path dir;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("snapshot");
+        file = dir.resolve("tracker.snapshot");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Path p : files()) {
+            Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    /** Returns the files in the snapshot directory. */
+    private List<Path> files() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    /** Writes a snapshot of a tracker with the three test positions. */
+    private void writeSnapshot(StorageMode mode) throws IOException {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+        tracker.update(1, P1);
+        tracker.update(2, P2);
+        tracker.update(3, P3);
+        tracker.doRun();
+        assertEquals(3, tracker.writeSnapshot(file, TargetCodec.INTEGER));
+        assertEquals(Collections.singletonList(file), files());
+    }
+
+    @Test
+    public void restore() throws IOException {
+        for (StorageMode written : StorageMode.values()) {
+            writeSnapshot(written);
+            for (StorageMode mode : StorageMode.values()) {
+                PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+                assertEquals(3, tracker.restoreSnapshot(file, TargetCodec.INTEGER));
+                assertEquals(3, tracker.getNumberOfTrackedObjects());
+                // published immediately
+                assertPosition(P1, tracker.getLatest(1));
+                assertPosition(P2, tracker.getLatest(2));
+                assertPosition(P3, tracker.getLatest(3));
+                assertEquals(2, tracker.getTargetsWithin(box(55, 56, 10, 11)).size());
+                tracker.doRun();
+                assertEquals(0, tracker.getNumberOfUpdatesInLastTick());
+            }
+        }
+    }
+
+    @Test
+    public void newerLivePositionWins() throws IOException {
+        for (StorageMode mode : StorageMode.values()) {
+            writeSnapshot(mode);
+            PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+            PositionTime newer1 = PositionTime.create(55.5, 10.5, 10);
+            PositionTime newer2 = PositionTime.create(55.6, 10.6, 10);
+            PositionTime older3 = PositionTime.create(55.7, 10.7, 1);
+            tracker.update(1, newer1);
+            tracker.update(3, older3);
+            tracker.doRun();
+            // not yet published
+            tracker.update(2, newer2);
+            tracker.restoreSnapshot(file, TargetCodec.INTEGER);
+            assertPosition(newer1, tracker.getLatest(1));
+            assertPosition(newer2, tracker.getLatest(2));
+            assertPosition(older3, tracker.getLatest(3));
+            tracker.doRun();
+            assertPosition(newer1, tracker.getLatest(1));
+            assertPosition(newer2, tracker.getLatest(2));
+            assertPosition(P3, tracker.getLatest(3));
+        }
+    }
+
+    @Test
+    public void noEnteringForRegisteredSubscriptions() throws IOException {
+        for (StorageMode mode : StorageMode.values()) {
+            writeSnapshot(mode);
+            PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+            Recorder r = new Recorder();
+            Subscription<Integer> s = tracker.subscribe(box(55, 56, 10, 11), r, 0);
+            tracker.restoreSnapshot(file, TargetCodec.INTEGER);
+            tracker.doRun();
+            assertEquals(Collections.emptyList(), r.drain());
+            assertEquals(0, s.getNumberOfEnteringEvents());
+            // but the restored targets are tracked
+            assertEquals(2, s.getNumberOfTrackedObjects());
+            tracker.update(1, PositionTime.create(57, 12, 10));
+            tracker.doRun();
+            assertEquals(Collections.singletonList("exiting 1"), r.drain());
+        }
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        for (int i = 0; i < 1000; i++) {
+            tracker.update(i, PositionTime.create(55 + i * 0.001, 10, 5));
+        }
+        tracker.doRun();
+        ExecutorService e = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(e.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (int j = 0; j < 25; j++) {
+                            assertEquals(1000, tracker.writeSnapshot(file, TargetCodec.INTEGER));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } finally {
+            e.shutdown();
+        }
+        // no temporary files are left behind, and the snapshot is complete
+        assertEquals(Collections.singletonList(file), files());
+        PositionTracker<Integer> restored = new PositionTracker<>(1);
+        assertEquals(1000, restored.restoreSnapshot(file, TargetCodec.INTEGER));
+        for (int i = 0; i < 1000; i++) {
+            assertPosition(tracker.getLatest(i), restored.getLatest(i));
+        }
+        assertNull(restored.getLatest(1000));
+        assertTrue(Files.size(file) > 1000 * 28);
+    }
+}
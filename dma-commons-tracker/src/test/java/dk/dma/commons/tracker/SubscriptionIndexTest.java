@@ -0,0 +1,118 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests that {@link SubscriptionIndex} routes every change a subscription is interested in to it, also when a target
+ * leaves the area through a cell the subscription is not registered in.
+ *
+ * @author Kasper Nielsen
+ */
+public class SubscriptionIndexTest {
+
+    private long time;
+
+    @Test
+    public void exitThroughCellNotOverlapped() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        Recorder r = new Recorder();
+        tracker.subscribe(box(55.1, 55.5, 10.1, 10.5), r, 0);
+        update(tracker, 1, 55.2, 10.2);
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        // the subscription only overlaps cell (55, 10), the new position is several cells away
+        update(tracker, 1, 57.5, 12.5);
+        tracker.doRun();
+        assertEquals(Arrays.asList("exiting 1"), r.drain());
+        // neither the previous nor the current cell is overlapped
+        update(tracker, 1, 58.5, 13.5);
+        tracker.doRun();
+        assertEquals(Collections.emptyList(), r.drain());
+    }
+
+    @Test
+    public void exitWhenRemoved() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1);
+        Recorder r = new Recorder();
+        tracker.subscribe(box(55.1, 55.5, 10.1, 10.5), r, 0);
+        update(tracker, 1, 55.2, 10.2);
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 1"), r.drain());
+        // moved out of the cell and removed before the next tick, routed by the position at the last tick
+        update(tracker, 1, 57.5, 12.5);
+        tracker.remove(1);
+        tracker.doRun();
+        assertEquals(Arrays.asList("exiting 1"), r.drain());
+    }
+
+    @Test
+    public void exitGlobalSubscription() {
+        PositionTracker<Integer> tracker = new PositionTracker<>(0.1);
+        Recorder r = new Recorder();
+        Subscription<Integer> s = tracker.subscribe(box(40, 60, 0, 20), r, 0);
+        assertTrue(tracker.subscriptionIndex.global.contains(s));
+        update(tracker, 1, 55, 10);
+        update(tracker, 2, 56, 11);
+        tracker.doRun();
+        assertEquals(Arrays.asList("entering 1", "entering 2"), r.drain());
+        update(tracker, 1, 30, 10);
+        tracker.remove(2);
+        tracker.doRun();
+        assertEquals(Arrays.asList("exiting 1", "exiting 2"), r.drain());
+    }
+
+    private void update(PositionTracker<Integer> tracker, int id, double latitude, double longitude) {
+        tracker.update(id, PositionTime.create(latitude, longitude, ++time));
+    }
+
+    /** Records all events in the order they are received. */
+    static class Recorder extends PositionUpdatedHandler<Integer> {
+
+        private final List<String> events = new ArrayList<>();
+
+        /** Returns the recorded events sorted, and clears them. */
+        synchronized List<String> drain() {
+            List<String> result = new ArrayList<>(events);
+            Collections.sort(result);
+            events.clear();
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void entering(Integer t, PositionTime positiontime) {
+            events.add("entering " + t);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected synchronized void exiting(Integer t) {
+            events.add("exiting " + t);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests the history kept by {@link PositionTracker}, see {@link TrackHistory}.
+ *
+ * @author Kasper Nielsen
+ */
+public class TrackHistoryTest {
+
+    private final PositionTracker<Integer> tracker = new PositionTracker<>(1);
+
+    private final double[] latitudes = new double[20];
+
+    private final double[] longitudes = new double[20];
+
+    private final long[] times = new long[20];
+
+    @Test
+    public void wrapAround() {
+        tracker.setHistory(5, 0, TimeUnit.MILLISECONDS);
+        for (int time = 1; time <= 13; time++) {
+            update(1, time);
+        }
+        // only the 5 most recent positions are kept, oldest first
+        assertEquals(5, tracker.getHistory(1, 5, latitudes, longitudes, times));
+        assertHistory(0, 9, 10, 11, 12, 13);
+        assertEquals(3, tracker.getHistory(1, 3, latitudes, longitudes, times));
+        assertHistory(0, 11, 12, 13);
+        assertEquals(3, tracker.getHistorySince(1, 11, latitudes, longitudes, times));
+        assertHistory(0, 11, 12, 13);
+        assertEquals(0, tracker.getHistorySince(1, 14, latitudes, longitudes, times));
+    }
+
+    @Test
+    public void moreThanStored() {
+        tracker.setHistory(5, 0, TimeUnit.MILLISECONDS);
+        update(1, 1);
+        update(1, 2);
+        assertEquals(2, tracker.getHistory(1, 20, latitudes, longitudes, times));
+        assertHistory(0, 1, 2);
+        assertEquals(2, tracker.getHistorySince(1, 0, latitudes, longitudes, times));
+        assertHistory(0, 1, 2);
+        assertEquals(0, tracker.getHistory(2, 20, latitudes, longitudes, times));
+    }
+
+    @Test
+    public void sinceWithSmallArrays() {
+        tracker.setHistory(10, 0, TimeUnit.MILLISECONDS);
+        for (int time = 1; time <= 8; time++) {
+            update(1, time);
+        }
+        // only the most recent positions that fit
+        assertEquals(3, tracker.getHistorySince(1, 2, new double[3], new double[3], new long[3]));
+        double[] lats = new double[3];
+        long[] ts = new long[3];
+        tracker.getHistorySince(1, 2, lats, new double[4], ts);
+        assertEquals(6, ts[0]);
+        assertEquals(8, ts[2]);
+        assertEquals(55 + 8 * 0.01, lats[2], 0);
+    }
+
+    @Test
+    public void samplingInterval() {
+        tracker.setHistory(10, 10, TimeUnit.SECONDS);
+        for (int time = 0; time <= 60000; time += 3000) {
+            update(1, time);
+        }
+        // a position is kept if at least 10 seconds have passed since the previous kept position
+        assertEquals(6, tracker.getHistory(1, 10, latitudes, longitudes, times));
+        assertHistory(0, 0, 12000, 24000, 36000, 48000, 60000);
+    }
+
+    @Test
+    public void removed() {
+        tracker.setHistory(10, 0, TimeUnit.MILLISECONDS);
+        update(1, 1);
+        update(1, 2);
+        tracker.remove(1);
+        assertEquals(0, tracker.getHistory(1, 10, latitudes, longitudes, times));
+        // a new history is started if the target reports again
+        update(1, 3);
+        assertEquals(1, tracker.getHistory(1, 10, latitudes, longitudes, times));
+        assertHistory(0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void arraysTooSmall() {
+        tracker.setHistory(10, 0, TimeUnit.MILLISECONDS);
+        tracker.getHistory(1, 5, new double[5], new double[5], new long[4]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sinceArraysTooSmall() {
+        tracker.setHistory(10, 0, TimeUnit.MILLISECONDS);
+        tracker.getHistorySince(1, 0, new double[5], new double[4], new long[5]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeCount() {
+        tracker.getHistory(1, -1, latitudes, longitudes, times);
+    }
+
+    /** Checks the copied positions starting at the specified index, the position of each time is known. */
+    private void assertHistory(int from, long... expectedTimes) {
+        for (int i = 0; i < expectedTimes.length; i++) {
+            assertEquals(expectedTimes[i], times[from + i]);
+            assertEquals(latitude(expectedTimes[i]), latitudes[from + i], 0);
+            assertEquals(10, longitudes[from + i], 0);
+        }
+    }
+
+    private void update(int target, long time) {
+        tracker.update(target, PositionTime.create(latitude(time), 10, time));
+    }
+
+    private static double latitude(long time) {
+        return 55 + (time % 1000) * 0.01;
+    }
+}
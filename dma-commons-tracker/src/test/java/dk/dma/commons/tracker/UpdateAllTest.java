@@ -0,0 +1,131 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.commons.tracker;
+
+import static dk.dma.commons.tracker.GridIndexTest.box;
+import static dk.dma.commons.tracker.PackedTargetStoreTest.assertPosition;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.commons.tracker.PositionTracker.StorageMode;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Tests {@link PositionTracker#updateAll(Object[], PositionTime[])} with both storage modes.
+ *
+ * @author Kasper Nielsen
+ */
+public class UpdateAllTest {
+
+    private final Random random = new Random(4711);
+
+    @Test
+    public void keepsNewest() {
+        for (StorageMode mode : StorageMode.values()) {
+            keepsNewest(mode, 100, 50);
+        }
+    }
+
+    @Test
+    public void keepsNewestInParallel() {
+        for (StorageMode mode : StorageMode.values()) {
+            keepsNewest(mode, PositionTracker.BULK_PARALLEL_THRESHOLD * 3 + 17, 1000);
+        }
+    }
+
+    /** Applies batches with duplicate targets and reports out of order, and checks that the newest report is kept. */
+    private void keepsNewest(StorageMode mode, int batchSize, int targets) {
+        PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+        Map<Integer, PositionTime> expected = new HashMap<>();
+        // unique times, so the newest report of a target is well defined
+        List<Long> times = new ArrayList<>();
+        for (long t = 1; t <= 3 * batchSize; t++) {
+            times.add(t);
+        }
+        Collections.shuffle(times, random);
+        for (int batch = 0; batch < 3; batch++) {
+            Integer[] ts = new Integer[batchSize];
+            PositionTime[] pts = new PositionTime[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                ts[i] = random.nextInt(targets);
+                pts[i] = PositionTime.create(50 + random.nextDouble() * 10, random.nextDouble() * 20,
+                        times.get(batch * batchSize + i));
+                PositionTime e = expected.get(ts[i]);
+                if (e == null || e.getTime() < pts[i].getTime()) {
+                    expected.put(ts[i], pts[i]);
+                }
+            }
+            tracker.updateAll(ts, pts);
+            assertEquals(expected.size(), tracker.getNumberOfTrackedObjects());
+            Map<Integer, PositionTime> within = tracker.getTargetsWithin(box(50, 60, 0, 20));
+            assertEquals(expected.size(), within.size());
+            for (Map.Entry<Integer, PositionTime> e : expected.entrySet()) {
+                assertPosition(e.getValue(), within.get(e.getKey()));
+            }
+            tracker.doRun();
+            for (Map.Entry<Integer, PositionTime> e : expected.entrySet()) {
+                assertPosition(e.getValue(), tracker.getLatest(e.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void map() {
+        for (StorageMode mode : StorageMode.values()) {
+            PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+            tracker.update(1, PositionTime.create(55, 10, 5));
+            Map<Integer, PositionTime> updates = new HashMap<>();
+            updates.put(1, PositionTime.create(56, 11, 4));
+            updates.put(2, PositionTime.create(57, 12, 4));
+            tracker.updateAll(updates);
+            tracker.doRun();
+            assertPosition(PositionTime.create(55, 10, 5), tracker.getLatest(1));
+            assertPosition(PositionTime.create(57, 12, 4), tracker.getLatest(2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentLengths() {
+        new PositionTracker<Integer>().updateAll(new Integer[2], new PositionTime[1]);
+    }
+
+    @Test
+    public void nullElements() {
+        for (StorageMode mode : StorageMode.values()) {
+            PositionTracker<Integer> tracker = new PositionTracker<>(1, mode);
+            PositionTime pt = PositionTime.create(55, 10, 1);
+            assertNullRejected(tracker, new Integer[] { 1, null }, new PositionTime[] { pt, pt });
+            assertNullRejected(tracker, new Integer[] { 1, 2 }, new PositionTime[] { pt, null });
+            // nothing is applied if any element is null
+            assertEquals(0, tracker.getNumberOfTrackedObjects());
+        }
+    }
+
+    private static void assertNullRejected(PositionTracker<Integer> tracker, Integer[] ts, PositionTime[] pts) {
+        try {
+            tracker.updateAll(ts, pts);
+            fail("Expected a NullPointerException");
+        } catch (NullPointerException ok) {}
+    }
+}